@@ -34,6 +34,9 @@ import org.neo4j.kernel.impl.util.StringLogger;
 
 class BackupClient extends Client<TheBackupInterface> implements TheBackupInterface
 {
+    // Chunks are a quarter of those of HA, so more of them can be read ahead of the store files being written
+    static final int READ_AHEAD_CHUNKS = 8;
+
     public BackupClient( String hostNameOrIp, int port, StringLogger logger, StoreIdGetter storeIdGetter )
     {
         super( hostNameOrIp, port, logger, storeIdGetter, BackupServer.FRAME_LENGTH,
@@ -54,6 +57,12 @@ class BackupClient extends Client<TheBackupInterface> implements TheBackupInterf
                 Protocol.EMPTY_SERIALIZER, Protocol.VOID_DESERIALIZER );
     }
 
+    @Override
+    protected int getReadAheadChunks()
+    {
+        return READ_AHEAD_CHUNKS;
+    }
+
     @Override
     protected boolean shouldCheckStoreId( RequestType<TheBackupInterface> type )
     {
@@ -35,12 +35,26 @@ class BackupServer extends Server<TheBackupInterface, Object>
     private final BackupRequestType[] contexts = BackupRequestType.values();
     static int DEFAULT_PORT = DEFAULT_BACKUP_PORT;
     static final int FRAME_LENGTH = Protocol.MEGA*4;
+    private final boolean compress;
     
     public BackupServer( TheBackupInterface realMaster, int port, StringLogger logger )
+    {
+        this( realMaster, port, logger, false );
+    }
+    
+    public BackupServer( TheBackupInterface realMaster, int port, StringLogger logger, boolean compress )
     {
         super( realMaster, port, logger, FRAME_LENGTH, PROTOCOL_VERSION,
                 DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
                 TxChecksumVerifier.ALWAYS_MATCH );
+        this.compress = compress;
+    }
+
+    @Override
+    protected boolean shouldCompressResponse( RequestType<TheBackupInterface> type )
+    {
+        // Backup responses are all bulk data, store files and transactions
+        return compress;
     }
 
     @Override
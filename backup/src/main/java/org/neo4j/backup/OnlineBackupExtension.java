@@ -52,7 +52,8 @@ public class OnlineBackupExtension extends KernelExtension<BackupServer>
         {
             TheBackupInterface backup = new BackupImpl( kernel.graphDatabase() );
             return new BackupServer( backup, kernel.getConfig().getInteger( OnlineBackupSettings.online_backup_port ),
-                                                    kernel.graphDatabase().getMessageLog());
+                                                    kernel.graphDatabase().getMessageLog(),
+                                                    kernel.getConfig().getBoolean( OnlineBackupSettings.online_backup_compression ) );
         } else
             return null;
     }
@@ -37,4 +37,8 @@ public class OnlineBackupSettings
     @Description( "Listening port for online backups" )
     @Default("6362")
     public static final GraphDatabaseSetting.PortSetting online_backup_port = new GraphDatabaseSetting.PortSetting( "online_backup_port" );
+
+    @Description( "Compress the data sent to backup clients, worth it over slow links" )
+    @Default( FALSE )
+    public static final GraphDatabaseSetting.BooleanSetting online_backup_compression = new GraphDatabaseSetting.BooleanSetting( "online_backup_compression" );
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a transaction, as it's streamed in a response,
+ * with {@link BlockLogBuffer}/{@link BlockLogReader} and with
+ * {@link LargeBlockLogBuffer}/{@link LargeBlockLogReader}. The transaction is
+ * made up of commands of a few primitives and a byte array each, like property
+ * records, {@code transactionSize} bytes in total.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class BlockLogBufferBenchmark
+{
+    private static final int COMMAND_BYTES = 64;
+
+    @Param( { "block", "largeBlock" } )
+    public String format;
+
+    @Param( { "128", "8192", "1048576" } )
+    public int transactionSize;
+
+    private final byte[] commandBytes = new byte[COMMAND_BYTES-8-4-2];
+    private ChannelBuffer target;
+    private ChannelBuffer encoded;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        target = ChannelBuffers.dynamicBuffer( transactionSize*2 );
+        readBuffer = ByteBuffer.allocate( 8192 );
+        encode();
+        encoded = target.copy();
+    }
+
+    @Benchmark
+    public int encode() throws IOException
+    {
+        target.clear();
+        if ( format.equals( "block" ) )
+        {
+            BlockLogBuffer buffer = new BlockLogBuffer( target );
+            writeTransaction( buffer );
+            buffer.done();
+        }
+        else
+        {
+            LargeBlockLogBuffer buffer = new LargeBlockLogBuffer( target );
+            writeTransaction( buffer );
+            buffer.done();
+        }
+        return target.writerIndex();
+    }
+
+    @Benchmark
+    public int decode() throws IOException
+    {
+        ChannelBuffer source = encoded.duplicate();
+        ReadableByteChannel reader = format.equals( "block" ) ? new BlockLogReader( source ) :
+                new LargeBlockLogReader( source );
+        int bytes = 0;
+        int read;
+        while ( (read = reader.read( readBuffer )) > 0 )
+        {
+            bytes += read;
+            readBuffer.clear();
+        }
+        reader.close();
+        return bytes;
+    }
+
+    private void writeTransaction( LogBuffer buffer ) throws IOException
+    {
+        for ( int written = 0; written < transactionSize; written += COMMAND_BYTES )
+        {
+            buffer.putLong( written );
+            buffer.putInt( written );
+            buffer.putShort( (short) 1 );
+            buffer.put( commandBytes );
+        }
+    }
+}
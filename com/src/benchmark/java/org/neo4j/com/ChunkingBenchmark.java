@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a message into chunks with {@link ChunkingChannelBuffer} and
+ * reading it back out of them with {@link DechunkingChannelBuffer}, with and
+ * without compression. Chunks are written to an in-VM channel, which hands
+ * them over to the other end right away, so that no network is involved.
+ * Messages are written in pieces, like transactions are, since a chunk is
+ * never split in the middle of a write.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ChunkingBenchmark
+{
+    private static final int FRAME_LENGTH = 256*1024;
+    private static final int PIECE_SIZE = 4*1024;
+
+    @Param( { "1024", "65536", "4194304" } )
+    public int payloadSize;
+
+    @Param( { "false", "true" } )
+    public boolean compress;
+
+    private final ChannelBufferPool bufferPool =
+            new ChannelBufferPool( ChannelBufferPool.DEFAULT_MAX_POOLED_BYTES, false );
+    private final byte[] piece = new byte[PIECE_SIZE];
+    private final byte[] readPiece = new byte[PIECE_SIZE];
+    private Channel serverChannel;
+    private Channel channel;
+    private Receiver receiver;
+    private List<ChannelBuffer> chunks;
+
+    @Setup
+    public void setUp()
+    {
+        for ( int i = 0; i < piece.length; i++ )
+        {
+            piece[i] = (byte) (i % 97);
+        }
+
+        receiver = new Receiver();
+        ServerBootstrap server = new ServerBootstrap( new DefaultLocalServerChannelFactory() );
+        server.getPipeline().addLast( "handler", receiver );
+        serverChannel = server.bind( new LocalAddress( LocalAddress.EPHEMERAL ) );
+        ClientBootstrap client = new ClientBootstrap( new DefaultLocalClientChannelFactory() );
+        client.getPipeline().addLast( "handler", new SimpleChannelUpstreamHandler() );
+        channel = client.connect( serverChannel.getLocalAddress() ).awaitUninterruptibly().getChannel();
+
+        receiver.received = new ArrayList<ChannelBuffer>();
+        encode();
+        chunks = receiver.received;
+        receiver.received = null;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        channel.close().awaitUninterruptibly();
+        serverChannel.close().awaitUninterruptibly();
+    }
+
+    @Benchmark
+    public int encode()
+    {
+        ChunkingChannelBuffer buffer = new ChunkingChannelBuffer( null, bufferPool, channel, FRAME_LENGTH,
+                Server.INTERNAL_PROTOCOL_VERSION, (byte) 0, ChunkingChannelBuffer.NO_CORRELATION_ID, compress );
+        for ( int written = 0; written < payloadSize; written += PIECE_SIZE )
+        {
+            buffer.writeBytes( piece, 0, Math.min( PIECE_SIZE, payloadSize - written ) );
+        }
+        buffer.done();
+        return payloadSize;
+    }
+
+    @Benchmark
+    public int decode()
+    {
+        final Iterator<ChannelBuffer> chunk = chunks.iterator();
+        DechunkingChannelBuffer buffer = new DechunkingChannelBuffer( null, 1, Server.INTERNAL_PROTOCOL_VERSION,
+                (byte) 0, null )
+        {
+            @Override
+            protected ChannelBuffer readNext()
+            {
+                return chunk.next().duplicate();
+            }
+        };
+        int sum = 0;
+        for ( int read = 0; read < payloadSize; read += PIECE_SIZE )
+        {
+            int length = Math.min( PIECE_SIZE, payloadSize - read );
+            buffer.readBytes( readPiece, 0, length );
+            sum += readPiece[length - 1];
+        }
+        return sum;
+    }
+
+    /**
+     * Keeps copies of the chunks it gets, if asked to, otherwise just drops them.
+     */
+    private static class Receiver extends SimpleChannelUpstreamHandler
+    {
+        volatile List<ChannelBuffer> received;
+
+        @Override
+        public void messageReceived( ChannelHandlerContext ctx, MessageEvent event )
+        {
+            List<ChannelBuffer> chunks = received;
+            if ( chunks != null )
+            {
+                chunks.add( ((ChannelBuffer) event.getMessage()).copy() );
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all the benchmarks of the wire protocol. The single threaded ones, for
+ * encoding and decoding, go to target/com-codecs.json and the others to files
+ * of their own, per number of threads.
+ */
+public class ComBenchmarks
+{
+    public static void main( String[] args ) throws RunnerException
+    {
+        new Runner( new OptionsBuilder()
+                .include( BlockLogBufferBenchmark.class.getSimpleName() )
+                .include( ChunkingBenchmark.class.getSimpleName() )
+                .include( ProtocolStringBenchmark.class.getSimpleName() )
+                .resultFormat( ResultFormatType.JSON )
+                .result( "target/com-codecs.json" )
+                .build() ).run();
+        RoundTripBenchmark.main( args );
+        ConnectedSlaveChannelsBenchmark.main( args );
+    }
+}
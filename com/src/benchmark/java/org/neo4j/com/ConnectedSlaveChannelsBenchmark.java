@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of the bookkeeping {@link Server} does for every request, which
+ * is to map the slave to its channel when the request comes in and unmap it
+ * when it's done. {@link ConnectedSlaveChannels} is compared to the
+ * synchronized map it replaced, with 1, 8 and 64 concurrent slaves each
+ * over a channel of its own. Results go to target/connected-slave-channels-*.json.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConnectedSlaveChannelsBenchmark
+{
+    private static final int[] SLAVES = { 1, 8, 64 };
+
+    @Param( { "synchronized", "concurrent" } )
+    public String registry;
+
+    private HashedWheelTimer timer;
+    private Registry slaveChannels;
+
+    @Setup
+    public void setUp()
+    {
+        timer = new HashedWheelTimer();
+        slaveChannels = registry.equals( "synchronized" ) ? new SynchronizedRegistry() : new ConcurrentRegistry( timer );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        timer.stop();
+    }
+
+    @State( Scope.Thread )
+    public static class Slave
+    {
+        private static final AtomicInteger machineIds = new AtomicInteger();
+
+        Channel channel;
+        SlaveContext context;
+
+        @Setup
+        public void setUp()
+        {
+            channel = new DefaultLocalClientChannelFactory().newChannel( Channels.pipeline( new SimpleChannelUpstreamHandler() ) );
+            context = new SlaveContext( 0, machineIds.incrementAndGet(), 0, new SlaveContext.Tx[0], 0, 0 );
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public void dispatchRequest( Slave slave )
+    {
+        slaveChannels.map( slave.channel, slave.context );
+        slaveChannels.unmap( slave.channel, slave.context );
+    }
+
+    public static void main( String[] args ) throws RunnerException
+    {
+        for ( int slaves : SLAVES )
+        {
+            new Runner( new OptionsBuilder()
+                    .include( ConnectedSlaveChannelsBenchmark.class.getSimpleName() )
+                    .threads( slaves )
+                    .resultFormat( ResultFormatType.JSON )
+                    .result( "target/connected-slave-channels-" + slaves + ".json" )
+                    .build() ).run();
+        }
+    }
+
+    private interface Registry
+    {
+        void map( Channel channel, SlaveContext slave );
+
+        void unmap( Channel channel, SlaveContext slave );
+    }
+
+    private static class ConcurrentRegistry implements Registry
+    {
+        private final ConnectedSlaveChannels channels;
+
+        ConcurrentRegistry( HashedWheelTimer timer )
+        {
+            channels = new ConnectedSlaveChannels( timer, TimeUnit.MINUTES.toMillis( 10 ),
+                    new ConnectedSlaveChannels.SilentChannelHandler()
+                    {
+                        @Override
+                        public void channelWentSilent( Channel channel, long silentMillis )
+                        {
+                        }
+                    } );
+        }
+
+        @Override
+        public void map( Channel channel, SlaveContext slave )
+        {
+            channels.map( channel, slave );
+        }
+
+        @Override
+        public void unmap( Channel channel, SlaveContext slave )
+        {
+            channels.unmap( channel, slave );
+        }
+    }
+
+    /**
+     * What {@link Server} did before {@link ConnectedSlaveChannels}.
+     */
+    private static class SynchronizedRegistry implements Registry
+    {
+        private final Map<Channel, Map<SlaveContext, AtomicLong>> channels =
+                new HashMap<Channel, Map<SlaveContext, AtomicLong>>();
+
+        @Override
+        public void map( Channel channel, SlaveContext slave )
+        {
+            synchronized ( channels )
+            {
+                Map<SlaveContext, AtomicLong> requests = channels.get( channel );
+                if ( requests == null )
+                {
+                    requests = new HashMap<SlaveContext, AtomicLong>();
+                    channels.put( channel, requests );
+                }
+                AtomicLong previous = requests.get( slave );
+                if ( previous != null )
+                {
+                    previous.set( System.currentTimeMillis() );
+                }
+                else
+                {
+                    requests.put( slave, new AtomicLong( System.currentTimeMillis() ) );
+                }
+            }
+        }
+
+        @Override
+        public void unmap( Channel channel, SlaveContext slave )
+        {
+            synchronized ( channels )
+            {
+                Map<SlaveContext, AtomicLong> requests = channels.get( channel );
+                if ( requests != null ) requests.remove( slave );
+                if ( requests == null || requests.isEmpty() )
+                {
+                    channels.remove( channel );
+                }
+            }
+        }
+    }
+}
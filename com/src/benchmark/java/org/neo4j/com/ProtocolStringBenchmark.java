@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading the strings of a request, f.ex. resource and index names,
+ * with {@link Protocol#writeString(ChannelBuffer, String)} and
+ * {@link Protocol#readString(ChannelBuffer)}, with and without a
+ * {@link StringDictionary} on each side. The dictionaries have seen all the
+ * strings before, which is what they look like on a connection that has been
+ * up for a while.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ProtocolStringBenchmark
+{
+    private static final int STRINGS = 16;
+
+    @Param( { "8", "64", "1024" } )
+    public int length;
+
+    @Param( { "false", "true" } )
+    public boolean dictionary;
+
+    private final String[] strings = new String[STRINGS];
+    private ChannelBuffer target;
+    private ChannelBuffer encoded;
+    private StringDictionary readDictionary;
+
+    @Setup
+    public void setUp()
+    {
+        for ( int i = 0; i < STRINGS; i++ )
+        {
+            StringBuilder string = new StringBuilder( length );
+            while ( string.length() < length )
+            {
+                string.append( (char) ('a' + (string.length() + i) % 26) );
+            }
+            strings[i] = string.toString();
+        }
+
+        ChannelBuffer buffer = ChannelBuffers.buffer( STRINGS * (length + 4) );
+        target = dictionary ? new StringDictionary.DictionaryChannelBuffer( buffer, new StringDictionary() ) : buffer;
+        readDictionary = dictionary ? new StringDictionary() : null;
+        encode();
+        read( target );
+        encode();
+        encoded = target.copy();
+    }
+
+    @Benchmark
+    public int encode()
+    {
+        target.clear();
+        for ( String string : strings )
+        {
+            Protocol.writeString( target, string );
+        }
+        return target.writerIndex();
+    }
+
+    @Benchmark
+    public int decode()
+    {
+        return read( encoded );
+    }
+
+    private int read( ChannelBuffer source )
+    {
+        ChannelBuffer reader = dictionary ? new StringDictionary.DictionaryChannelBuffer( source, readDictionary ) :
+                source.duplicate();
+        int characters = 0;
+        for ( int i = 0; i < STRINGS; i++ )
+        {
+            characters += Protocol.readString( reader ).length();
+        }
+        return characters;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Whole requests, from {@link Client} to {@link Server} and back over loopback,
+ * with the payload either in the request or in the response. Done by 1, 8 and
+ * 16 concurrent threads, which stays within the channels a client may have open,
+ * over a channel each or multiplexed over a few. Results go to
+ * target/round-trips-*.json.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RoundTripBenchmark
+{
+    private static final int[] THREADS = { 1, 8, 16 };
+    private static final int PORT = 8765;
+
+    @Param( { "16", "4096", "1048576" } )
+    public int payloadSize;
+
+    @Param( { "0", "4" } )
+    public int multiplexedChannels;
+
+    private MadeUpServer server;
+    private MadeUpClient client;
+    private byte[] payload;
+
+    @Setup
+    public void setUp()
+    {
+        StoreId storeId = new StoreId();
+        server = new MadeUpServer( new MadeUpImplementation( storeId ), PORT, Server.INTERNAL_PROTOCOL_VERSION,
+                (byte) 0, TxChecksumVerifier.ALWAYS_MATCH );
+        client = new MadeUpClient( PORT, storeId, Server.INTERNAL_PROTOCOL_VERSION, (byte) 0, multiplexedChannels );
+        payload = new byte[payloadSize];
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            payload[i] = (byte) i;
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public int requestPayload()
+    {
+        Response<Integer> response = client.sumOfData( payload );
+        try
+        {
+            return response.response();
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    @Benchmark
+    public int responsePayload()
+    {
+        Drain drain = new Drain();
+        client.streamSomeData( drain, payloadSize ).close();
+        return drain.bytes;
+    }
+
+    public static void main( String[] args ) throws RunnerException
+    {
+        for ( int threads : THREADS )
+        {
+            new Runner( new OptionsBuilder()
+                    .include( RoundTripBenchmark.class.getSimpleName() )
+                    .threads( threads )
+                    .resultFormat( ResultFormatType.JSON )
+                    .result( "target/round-trips-" + threads + ".json" )
+                    .build() ).run();
+        }
+    }
+
+    /**
+     * Reads the data of a response to the end, but keeps nothing of it.
+     */
+    private static class Drain implements MadeUpWriter
+    {
+        private final ByteBuffer buffer = ByteBuffer.allocate( 8192 );
+        int bytes;
+
+        @Override
+        public void write( ReadableByteChannel data )
+        {
+            try
+            {
+                int read;
+                while ( (read = data.read( buffer )) > 0 )
+                {
+                    bytes += read;
+                    buffer.clear();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+    }
+}
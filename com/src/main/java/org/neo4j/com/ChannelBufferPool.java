@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+/**
+ * Bounded pool of dynamic {@link ChannelBuffer}s, to keep the request hot path
+ * from allocating new buffers for every request and chunk. Buffers are leased
+ * with {@link #lease()} and handed back with {@link #release(ChannelBuffer)}
+ * when nobody, including Netty, references them anymore. A buffer which never
+ * gets released is simply garbage collected, the pool doesn't keep track of
+ * leased buffers.
+ * <p>
+ * The pool is bounded by the total capacity of the buffers it holds on to.
+ * Released buffers that would exceed that are discarded instead.
+ * <p>
+ * Buffers can be either heap or direct. Heap buffers are backed by arrays,
+ * which compression in {@link ChunkingChannelBuffer} requires.
+ */
+public class ChannelBufferPool
+{
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64*Protocol.MEGA;
+    private static final int INITIAL_BUFFER_CAPACITY = 256;
+
+    private final Queue<ChannelBuffer> buffers = new ConcurrentLinkedQueue<ChannelBuffer>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final long maxPooledBytes;
+    private final ChannelBufferFactory factory;
+
+    public ChannelBufferPool( long maxPooledBytes, boolean direct )
+    {
+        this.maxPooledBytes = maxPooledBytes;
+        this.factory = direct ? DirectChannelBufferFactory.getInstance() : HeapChannelBufferFactory.getInstance();
+    }
+
+    /**
+     * @return a cleared buffer, either a pooled one or a new one if the pool is empty.
+     */
+    public ChannelBuffer lease()
+    {
+        ChannelBuffer buffer = buffers.poll();
+        if ( buffer == null )
+        {
+            misses.incrementAndGet();
+            return ChannelBuffers.dynamicBuffer( INITIAL_BUFFER_CAPACITY, factory );
+        }
+        pooledBuffers.decrementAndGet();
+        pooledBytes.addAndGet( -buffer.capacity() );
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands {@code buffer} back to the pool. It must not be used by the caller after this.
+     */
+    public void release( ChannelBuffer buffer )
+    {
+        int capacity = buffer.capacity();
+        if ( pooledBytes.addAndGet( capacity ) > maxPooledBytes )
+        {
+            pooledBytes.addAndGet( -capacity );
+            discarded.incrementAndGet();
+            return;
+        }
+        pooledBuffers.incrementAndGet();
+        buffers.offer( buffer );
+    }
+
+    /**
+     * @return number of leases served by a pooled buffer.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return number of leases which had to allocate a new buffer.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return number of released buffers which didn't fit in the pool.
+     */
+    public long getDiscarded()
+    {
+        return discarded.get();
+    }
+
+    public int getPooledBuffers()
+    {
+        return pooledBuffers.get();
+    }
+
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+}
@@ -24,10 +24,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.charset.Charset;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferFactory;
@@ -36,6 +37,9 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultFileRegion;
 
 /**
  * A decorator around a {@link ChannelBuffer} which adds the ability to transfer
@@ -51,32 +55,85 @@ import org.jboss.netty.channel.ChannelFutureListener;
  * this stream. A final serialization round happens when <code>done()</code> is
  * called, if content has been added.
  * <p>
- * Each chunk written is marked as pending and no more than
- * MAX_WRITE_AHEAD_CHUNKS are left pending - in such a case the write process
- * sleeps until some acknowledgment comes back from the other side that chunks
- * have been read.
+ * If a correlation id is given the highest bit of the first header byte is set
+ * and the id follows the header in each chunk, so that several requests can be
+ * in flight over the same channel at the same time. Without a correlation id
+ * strings are written through the {@link StringDictionary} of the channel.
+ * <p>
+ * If compression is enabled each chunk bigger than a few hundred bytes is
+ * compressed with {@link Deflater}, as long as that makes it smaller. Such
+ * chunks are flagged in the header and have their uncompressed length
+ * following the header. Compression is decided per chunk so the receiving
+ * side always knows how to read a chunk, no matter what the sender chose.
+ * <p>
+ * File contents can be written with {@link #writeFileRegion(FileChannel, long, long)},
+ * which transfers them straight from the file to the socket in chunks of their
+ * own instead of copying them through the buffer.
+ * <p>
+ * If a {@link ChannelBufferPool} is given the buffers for new chunks are leased
+ * from it and handed back as soon as they've been written to the channel.
+ * <p>
+ * The bytes of each chunk written are pending until they've made it to the
+ * socket, and writing waits while there are more pending bytes over the
+ * channel than its {@link WriteAheadWindow} allows for.
  */
-public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListener
+public class ChunkingChannelBuffer implements ChannelBuffer, StringDictionary.Holder
 {
     static final byte CONTINUATION_LAST = 0;
     static final byte CONTINUATION_MORE = 1;
     static final byte OUTCOME_SUCCESS = 0;
     static final byte OUTCOME_FAILURE = 1;
-    private static final int MAX_WRITE_AHEAD_CHUNKS = 5;
+    static final int NO_CORRELATION_ID = -1;
+    static final int CORRELATION_ID_FLAG = 0x80;
+    static final int COMPRESSED_FLAG = 0x40;
+    static final int INTERNAL_PROTOCOL_VERSION_MASK = 0x0F;
+    private static final int MIN_COMPRESSION_SIZE = 512;
 
     private ChannelBuffer buffer;
     private final Channel channel;
     private final int capacity;
     private int continuationPosition;
-    private final AtomicInteger writeAheadCounter = new AtomicInteger();
+    private final WriteAheadWindow writeAheadWindow;
     private volatile boolean failure;
     private final byte applicationProtocolVersion;
     private final byte internalProtocolVersion;
+    private final int correlationId;
+    private final boolean compress;
+    private Deflater deflater;
+    private final ChannelBufferPool bufferPool;
+    private boolean bufferIsLeased;
+    private final StringDictionary dictionary;
+    private long writtenBytes;
+    private long writeNanos;
 
     public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion, byte applicationProtocolVersion )
     {
-        this.buffer = buffer;
+        this( buffer, channel, capacity, internalProtocolVersion, applicationProtocolVersion, NO_CORRELATION_ID );
+    }
+
+    public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion,
+            byte applicationProtocolVersion, int correlationId )
+    {
+        this( buffer, null, channel, capacity, internalProtocolVersion, applicationProtocolVersion, correlationId, false );
+    }
+
+    /**
+     * @param buffer the buffer for the first chunk, it's owned by the caller and
+     * never handed to {@code bufferPool}. If {@code null} it's leased from
+     * {@code bufferPool} as well.
+     * @param bufferPool pool to lease buffers for new chunks from, or {@code null}
+     * if they should be allocated.
+     */
+    public ChunkingChannelBuffer( ChannelBuffer buffer, ChannelBufferPool bufferPool, Channel channel, int capacity,
+            byte internalProtocolVersion, byte applicationProtocolVersion, int correlationId, boolean compress )
+    {
+        this.correlationId = correlationId;
+        this.compress = compress;
+        this.bufferPool = bufferPool;
+        this.buffer = buffer != null ? buffer : newBuffer();
         this.channel = channel;
+        this.writeAheadWindow = WriteAheadWindow.of( channel );
+        this.dictionary = correlationId == NO_CORRELATION_ID ? StringDictionary.of( channel ) : null;
         this.capacity = capacity;
         this.internalProtocolVersion = internalProtocolVersion;
         this.applicationProtocolVersion = applicationProtocolVersion;
@@ -86,19 +143,57 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
     private void addRoomForContinuationHeader()
     {
         continuationPosition = writerIndex();
-        // byte 0: [pppp,ppoc] p: internal protocol version, o: outcome, c: continuation
+        // byte 0: [izpp,ppoc] i: correlation id follows, z: compressed, p: internal protocol version,
+        //                    o: outcome, c: continuation
         // byte 1: [aaaa,aaaa] a: application protocol version
+        // byte 2-5: correlation id, only if i is set
+        // then the uncompressed length (int), only if z is set
         buffer.writeBytes( header( CONTINUATION_LAST ) );
     }
 
     private byte[] header( byte continuation )
     {
-        byte[] header = new byte[2];
-        header[0] = (byte)((internalProtocolVersion << 2) | ((failure?OUTCOME_FAILURE:OUTCOME_SUCCESS) << 1) | continuation );
+        boolean correlated = correlationId != NO_CORRELATION_ID;
+        byte[] header = new byte[correlated ? 6 : 2];
+        header[0] = (byte)(((internalProtocolVersion & INTERNAL_PROTOCOL_VERSION_MASK) << 2) |
+                ((failure?OUTCOME_FAILURE:OUTCOME_SUCCESS) << 1) | continuation );
         header[1] = applicationProtocolVersion;
+        if ( correlated )
+        {
+            header[0] |= CORRELATION_ID_FLAG;
+            header[2] = (byte) (correlationId >>> 24);
+            header[3] = (byte) (correlationId >>> 16);
+            header[4] = (byte) (correlationId >>> 8);
+            header[5] = (byte) correlationId;
+        }
         return header;
     }
 
+    /**
+     * @return the correlation id of the chunk in {@code buffer}, without moving
+     * its reader index, or {@link #NO_CORRELATION_ID} if it hasn't got one.
+     */
+    static int peekCorrelationId( ChannelBuffer buffer )
+    {
+        int index = buffer.readerIndex();
+        return (buffer.getByte( index ) & CORRELATION_ID_FLAG) != 0 ? buffer.getInt( index+2 ) : NO_CORRELATION_ID;
+    }
+
+    /**
+     * @return whether or not the chunk in {@code buffer} is the last one of its
+     * response, without moving its reader index.
+     */
+    static boolean peekLastChunk( ChannelBuffer buffer )
+    {
+        return (buffer.getByte( buffer.readerIndex() ) & CONTINUATION_MORE) == CONTINUATION_LAST;
+    }
+
+    @Override
+    public StringDictionary dictionary()
+    {
+        return dictionary;
+    }
+
     private void setContinuation( byte continuation )
     {
         buffer.setBytes( continuationPosition, header( continuation ) );
@@ -171,6 +266,10 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
 
     public void clear( boolean failure )
     {
+        if ( buffer == null )
+        {   // Cleared after done(), when the last buffer went back to the pool
+            buffer = newBuffer();
+        }
         buffer.clear();
         this.failure = failure;
         addRoomForContinuationHeader();
@@ -532,68 +631,194 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         {
             setContinuation( CONTINUATION_MORE );
             writeCurrentChunk();
-            // TODO Reuse buffers?
-            buffer = ChannelBuffers.dynamicBuffer();
+            buffer = newBuffer();
             addRoomForContinuationHeader();
         }
     }
 
     private void writeCurrentChunk()
     {
-        if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
-            throw new ComException( "Channel has been closed, so no need to try to write to it anymore. Client closed it?" );
-        
-        waitForClientToCatchUpOnReadingChunks();
-        ChannelFuture future = channel.write( buffer );
-        future.addListener( this );
-        writeAheadCounter.incrementAndGet();
+        assertChannelIsOpen();
+        ChannelBuffer chunk = compress ? compressed( buffer ) : buffer;
+        int chunkBytes = chunk.readableBytes();
+        long start = System.nanoTime();
+        ChannelFutureListener drained = writeAheadWindow.acquire( channel, chunkBytes );
+        ChannelFuture future = channel.write( chunk );
+        writeNanos += System.nanoTime()-start;
+        writtenBytes += chunkBytes;
+        future.addListener( drained );
+        if ( bufferIsLeased )
+        {
+            if ( chunk == buffer )
+            {
+                future.addListener( releaser( buffer ) );
+            }
+            else
+            {   // What's written is a compressed copy, so it's free already
+                bufferPool.release( buffer );
+            }
+            bufferIsLeased = false;
+        }
+    }
+
+    private ChannelBuffer newBuffer()
+    {
+        if ( bufferPool == null )
+        {
+            return ChannelBuffers.dynamicBuffer();
+        }
+        bufferIsLeased = true;
+        return bufferPool.lease();
     }
 
-    private void waitForClientToCatchUpOnReadingChunks()
+    private ChannelFutureListener releaser( final ChannelBuffer writtenBuffer )
     {
-        // Wait until channel gets disconnected or client catches up.
-        // If channel has been disconnected we can exit and the next write
-        // will produce a decent exception out.
-        boolean waited = false;
-        while ( channel.isConnected() && writeAheadCounter.get() >= MAX_WRITE_AHEAD_CHUNKS )
+        return new ChannelFutureListener()
         {
-            waited = true;
-            try
+            @Override
+            public void operationComplete( ChannelFuture future )
             {
-                Thread.sleep( 200 );
-            }
-            catch ( InterruptedException e )
-            {   // OK
-                Thread.interrupted();
+                bufferPool.release( writtenBuffer );
             }
+        };
+    }
+
+    /**
+     * @return the chunk in {@code chunk} compressed, or {@code chunk} itself if
+     * it's too small to bother or compression wouldn't make it smaller.
+     */
+    private ChannelBuffer compressed( ChannelBuffer chunk )
+    {
+        int headerLength = header( CONTINUATION_LAST ).length;
+        int contentStart = continuationPosition+headerLength;
+        int contentLength = chunk.writerIndex()-contentStart;
+        if ( contentLength < MIN_COMPRESSION_SIZE || !chunk.hasArray() || chunk.readerIndex() != continuationPosition )
+        {
+            return chunk;
         }
 
-        if ( waited && (!channel.isConnected() || !channel.isOpen()) )
+        if ( deflater == null )
         {
-            throw new ComException( "Channel has been closed" );
+            deflater = new Deflater( Deflater.BEST_SPEED );
+        }
+        deflater.reset();
+        deflater.setInput( chunk.array(), chunk.arrayOffset()+contentStart, contentLength );
+        deflater.finish();
+        // Room for no more than what makes the whole chunk smaller than it was
+        int maxCompressedLength = contentLength-4;
+        byte[] target = new byte[headerLength+4+maxCompressedLength];
+        int compressedLength = deflater.deflate( target, headerLength+4, maxCompressedLength );
+        if ( !deflater.finished() )
+        {   // Wouldn't get any smaller
+            return chunk;
         }
+
+        chunk.getBytes( continuationPosition, target, 0, headerLength );
+        target[0] |= COMPRESSED_FLAG;
+        ChannelBuffer result = ChannelBuffers.wrappedBuffer( target, 0, headerLength+4+compressedLength );
+        result.setInt( headerLength, contentLength );
+        return result;
     }
 
-    @Override
-    public void operationComplete( ChannelFuture future ) throws Exception
+    private void assertChannelIsOpen()
     {
-        if ( !future.isDone() )
+        if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
+            throw new ComException( "Channel has been closed, so no need to try to write to it anymore. Client closed it?" );
+    }
+
+    /**
+     * Whether or not {@link #writeFileRegion(FileChannel, long, long)} can be
+     * used. File regions bypass the frame encoder and so can't be interleaved
+     * with chunks of other requests over the same channel, i.e. not when there's
+     * a correlation id. And they would bypass compression.
+     */
+    public boolean canWriteFileRegions()
+    {
+        return correlationId == NO_CORRELATION_ID && !compress &&
+                channel.getPipeline().getContext( "frameEncoder" ) != null;
+    }
+
+    /**
+     * Sends {@code count} bytes from {@code file}, starting at {@code position},
+     * without copying them into this buffer. Whatever has been written so far
+     * is sent as a chunk of its own and then each region of the file goes out
+     * in a chunk where the frame length and continuation header are written
+     * manually, directly followed by the file region itself. This method returns
+     * when all of it has been written to the socket, so that the caller can close
+     * the file afterwards.
+     */
+    public void writeFileRegion( FileChannel file, long position, long count ) throws IOException
+    {
+        setContinuation( CONTINUATION_MORE );
+        writeCurrentChunk();
+
+        ChannelHandlerContext frameEncoder = channel.getPipeline().getContext( "frameEncoder" );
+        byte[] header = header( CONTINUATION_MORE );
+        int maxRegionSize = capacity-header.length-1;
+        ChannelFuture lastWrite = null;
+        long start = System.nanoTime();
+        while ( count > 0 )
         {
-            throw new ComException( "This should not be possible because we waited for the future to be done" );
+            int regionSize = (int) Math.min( count, maxRegionSize );
+            ChannelBuffer frameHeader = ChannelBuffers.buffer( 4+header.length );
+            frameHeader.writeInt( header.length+regionSize );
+            frameHeader.writeBytes( header );
+
+            assertChannelIsOpen();
+            int regionBytes = frameHeader.readableBytes()+regionSize;
+            ChannelFutureListener drained = writeAheadWindow.acquire( channel, regionBytes );
+            Channels.write( frameEncoder, Channels.future( channel ), frameHeader );
+            lastWrite = Channels.future( channel );
+            lastWrite.addListener( drained );
+            Channels.write( frameEncoder, lastWrite, new DefaultFileRegion( file, position, regionSize ) );
+            writtenBytes += header.length+regionSize;
+            position += regionSize;
+            count -= regionSize;
         }
 
-        if ( !future.isSuccess() || future.isCancelled() )
+        buffer = newBuffer();
+        addRoomForContinuationHeader();
+        if ( lastWrite != null )
         {
-            future.getChannel().close();
+            lastWrite.awaitUninterruptibly();
+            writeNanos += System.nanoTime()-start;
+            if ( !lastWrite.isSuccess() )
+            {
+                throw new ComException( "Couldn't transfer file region", lastWrite.getCause() );
+            }
         }
-        writeAheadCounter.decrementAndGet();
+    }
+
+    /**
+     * @return number of bytes of the chunks and file regions written so far,
+     * headers included.
+     */
+    public long getWrittenBytes()
+    {
+        return writtenBytes;
+    }
+
+    /**
+     * @return nanoseconds spent handing chunks and file regions over to the
+     * channel so far, waiting for the {@link WriteAheadWindow} included.
+     */
+    public long getWriteNanos()
+    {
+        return writeNanos;
     }
 
     public void done()
     {
         if ( readable() /* Meaning that something has been written to it and can be read/sent */ )
         {
+            boolean returnsBuffer = bufferIsLeased;
             writeCurrentChunk();
+            if ( returnsBuffer ) buffer = null;
+        }
+        if ( deflater != null )
+        {
+            deflater.end();
+            deflater = null;
         }
     }
 
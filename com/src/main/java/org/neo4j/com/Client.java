@@ -23,28 +23,42 @@ import static org.neo4j.com.Protocol.addLengthFieldPipes;
 import static org.neo4j.com.Protocol.readString;
 import static org.neo4j.com.Protocol.writeString;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
-import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.queue.BlockingReadHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.neo4j.com.RequestStatistics.Phase;
 import org.neo4j.com.SlaveContext.Tx;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.helpers.DaemonThreadFactory;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.Triplet;
 import org.neo4j.kernel.AbstractGraphDatabase;
@@ -55,6 +69,14 @@ import org.neo4j.kernel.impl.util.StringLogger;
  * A means for a client to communicate with a {@link Server}. It
  * serializes requests and sends them to the server and waits for
  * a response back.
+ * <p>
+ * By default each calling thread gets a channel of its own for the duration
+ * of a request. If the client is created with a number of multiplexed channels
+ * then requests for which {@link #shouldMultiplex(RequestType)} returns
+ * <code>true</code> are instead tagged with a correlation id and sent over one
+ * of a few shared channels, where responses are dispatched back to the
+ * waiting threads by that id. Multiplexed requests can also be sent without
+ * waiting for their responses, see {@link #sendRequestAsync(RequestType, SlaveContext, Serializer, Deserializer)}.
  */
 public abstract class Client<M> implements ChannelPipelineFactory
 {
@@ -64,18 +86,32 @@ public abstract class Client<M> implements ChannelPipelineFactory
     // with the master in some way.
     public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT = 20;
     public static final int DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS = 20;
+    // Number of response chunks which may be read off a channel before they're decoded
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 3;
+    // Number of channels kept connected ahead of time, see PrewarmedChannels
+    public static final int DEFAULT_PREWARMED_CHANNELS = 1;
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
 
     private final ClientBootstrap bootstrap;
     private final SocketAddress address;
     private final StringLogger msgLog;
     private final ExecutorService executor;
+    private final Timer reconnectTimer;
+    private final PrewarmedChannels prewarmedChannels;
     private final ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> channelPool;
+    // Byte buffers for multiplexed requests, which may be many per thread
+    private final BlockingQueue<ByteBuffer> spareByteBuffers;
+    private final Channel[] sharedChannels;
+    private final AtomicInteger nextSharedChannel = new AtomicInteger();
+    private final AtomicInteger nextCorrelationId = new AtomicInteger();
     private StoreId myStoreId;
     private final int frameLength;
     private final int readTimeout;
     private final byte applicationProtocolVersion;
     private final StoreIdGetter storeIdGetter;
-    private final ResourceReleaser resourcePoolReleaser;
+    // For request chunks beyond the first, which goes in the buffer of the channel
+    private final ChannelBufferPool bufferPool = new ChannelBufferPool( ChannelBufferPool.DEFAULT_MAX_POOLED_BYTES, false );
+    private final RequestStatistics requestStatistics = new RequestStatistics();
 
     public Client( String hostNameOrIp, int port, StringLogger logger,
             StoreIdGetter storeIdGetter, int frameLength,
@@ -92,6 +128,40 @@ public abstract class Client<M> implements ChannelPipelineFactory
             byte applicationProtocolVersion, int readTimeout,
             int maxConcurrentChannels, int maxUnusedPoolSize,
             final ConnectionLostHandler connectionLostHandler )
+    {
+        this( hostNameOrIp, port, logger, storeIdGetter, frameLength,
+                applicationProtocolVersion, readTimeout, maxConcurrentChannels,
+                maxUnusedPoolSize, connectionLostHandler, 0 );
+    }
+
+    /**
+     * @param multiplexedChannels the number of channels shared between all
+     * threads for requests which are multiplexed, see
+     * {@link #shouldMultiplex(RequestType)}. <code>0</code> disables
+     * multiplexing and gives each thread a channel of its own.
+     */
+    public Client( String hostNameOrIp, int port, StringLogger logger,
+            StoreIdGetter storeIdGetter, int frameLength,
+            byte applicationProtocolVersion, int readTimeout,
+            int maxConcurrentChannels, int maxUnusedPoolSize,
+            final ConnectionLostHandler connectionLostHandler, int multiplexedChannels )
+    {
+        this( hostNameOrIp, port, logger, storeIdGetter, frameLength,
+                applicationProtocolVersion, readTimeout, maxConcurrentChannels,
+                maxUnusedPoolSize, connectionLostHandler, multiplexedChannels, DEFAULT_PREWARMED_CHANNELS );
+    }
+
+    /**
+     * @param prewarmedChannels the number of channels to keep connected ahead
+     * of time, in the background, so that threads needing a new channel don't
+     * have to wait for it to connect.
+     */
+    public Client( String hostNameOrIp, int port, StringLogger logger,
+            StoreIdGetter storeIdGetter, int frameLength,
+            byte applicationProtocolVersion, int readTimeout,
+            int maxConcurrentChannels, int maxUnusedPoolSize,
+            final ConnectionLostHandler connectionLostHandler, int multiplexedChannels,
+            int prewarmedChannels )
     {
         this.msgLog = logger;
         this.storeIdGetter = storeIdGetter;
@@ -104,31 +174,8 @@ public abstract class Client<M> implements ChannelPipelineFactory
             @Override
             protected Triplet<Channel, ChannelBuffer, ByteBuffer> create()
             {
-                ChannelFuture channelFuture = bootstrap.connect( address );
-                channelFuture.awaitUninterruptibly( 5, TimeUnit.SECONDS );
-                Triplet<Channel, ChannelBuffer, ByteBuffer> channel = null;
-                if ( channelFuture.isSuccess() )
-                {
-                    channel = Triplet.of( channelFuture.getChannel(),
-                            ChannelBuffers.dynamicBuffer(),
-                            ByteBuffer.allocateDirect( 1024 * 1024 ) );
-                    msgLog.logMessage( "Opened a new channel to " + address, true );
-                    return channel;
-                }
-
-                String msg = "Client could not connect to " + address;
-                msgLog.logMessage( msg, true );
-                ComException exception = new ComException( msg );
-                try
-                {
-                    Thread.sleep( 1000 );
-                }
-                catch ( InterruptedException e )
-                {
-                    msgLog.logMessage( "Interrupted", e );
-                }
-                // connectionLostHandler.handle( exception );
-                throw exception;
+                return Triplet.of( connect(), ChannelBuffers.dynamicBuffer(),
+                        ByteBuffer.allocateDirect( 1024 * 1024 ) );
             }
 
             @Override
@@ -147,25 +194,90 @@ public abstract class Client<M> implements ChannelPipelineFactory
             }
         };
 
+        if ( multiplexedChannels > 0 )
+        {
+            sharedChannels = new Channel[multiplexedChannels];
+            /*
+             * The channels themselves are shared, so there's no point in limiting the number
+             * of concurrent requests here. Request buffers are leased from the buffer pool
+             * and the byte buffers are kept here, not bound to threads, since a thread may
+             * have many asynchronous requests going at the same time.
+             */
+            spareByteBuffers = new ArrayBlockingQueue<ByteBuffer>( Math.max( maxUnusedPoolSize, 1 ) );
+        }
+        else
+        {
+            sharedChannels = null;
+            spareByteBuffers = null;
+        }
+
         address = new InetSocketAddress( hostNameOrIp, port );
         executor = Executors.newCachedThreadPool();
         bootstrap = new ClientBootstrap( new NioClientSocketChannelFactory( executor, executor ) );
         bootstrap.setPipelineFactory( this );
-        /*
-         * This is here to couple the channel releasing to Response.close() itself and not
-         * to TransactionStream.close() as it is implemented here. The reason is that a Response
-         * that is returned without a TransactionStream will still hold the channel and should
-         * release it eventually. Also, logically, closing the channel is not dependent on the
-         * TransactionStream.
-         */
-        resourcePoolReleaser = new ResourceReleaser()
-        {
-            public void release()
+        reconnectTimer = new HashedWheelTimer( new DaemonThreadFactory( getClass().getSimpleName() + "-reconnect" ),
+                PrewarmedChannels.MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS );
+        this.prewarmedChannels = new PrewarmedChannels( bootstrap, address, prewarmedChannels, reconnectTimer, msgLog );
+        this.prewarmedChannels.start();
+        msgLog.logMessage( getClass().getSimpleName() + " communication started and bound to " + hostNameOrIp + ":" + port, true );
+    }
+
+    /**
+     * @return a channel connected in the background, see {@link PrewarmedChannels}.
+     */
+    private Channel connect()
+    {
+        return prewarmedChannels.take( CONNECT_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * Picks one of the shared channels in a round robin fashion, (re)connecting
+     * it if needed. Shared channels have their blocking read handler replaced by
+     * a {@link ResponseDispatcher}.
+     */
+    private Channel sharedChannel()
+    {
+        int index = (nextSharedChannel.getAndIncrement() & Integer.MAX_VALUE) % sharedChannels.length;
+        synchronized ( sharedChannels )
+        {
+            Channel channel = sharedChannels[index];
+            if ( channel == null || !channel.isConnected() )
             {
-                channelPool.release();
+                channel = connect();
+                channel.getPipeline().replace( "blockingHandler", "dispatcher", new ResponseDispatcher() );
+                sharedChannels[index] = channel;
             }
-        };
-        msgLog.logMessage( getClass().getSimpleName() + " communication started and bound to " + hostNameOrIp + ":" + port, true );
+            return channel;
+        }
+    }
+
+    /**
+     * Decides whether or not requests of the given type should be multiplexed over
+     * the shared channels, if this client has any. Requests which may produce
+     * responses too big to be buffered on the client side should return
+     * <code>false</code> so that they get a channel of their own, with the flow
+     * control that comes with it.
+     */
+    protected boolean shouldMultiplex( RequestType<M> type )
+    {
+        return true;
+    }
+
+    /**
+     * @return the pool which request buffers are leased from, exposed for monitoring.
+     */
+    public ChannelBufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * @return latencies and bytes of the requests sent, per request type,
+     * exposed for monitoring.
+     */
+    public RequestStatistics getRequestStatistics()
+    {
+        return requestStatistics;
     }
 
     /**
@@ -185,40 +297,56 @@ public abstract class Client<M> implements ChannelPipelineFactory
     protected <R> Response<R> sendRequest( RequestType<M> type, SlaveContext context,
             Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
     {
+        if ( isMultiplexed( type ) )
+        {
+            return sendMultiplexedRequest( type, context, serializer, deserializer, specificStoreId ).get();
+        }
+
         boolean success = true;
         Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext = null;
+        final RequestStatistics.Timer timer = requestStatistics.start( type );
         try
         {
             // Send 'em over the wire
-            channelContext = getChannel( type );
+            channelContext = getChannel( type, channelPool );
+            timer.lap( Phase.QUEUEING );
             Channel channel = channelContext.first();
             channelContext.second().clear();
-            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( channelContext.second(),
-                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
+            @SuppressWarnings( "unchecked" )
+            BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
+                    channel.getPipeline().get( "blockingHandler" );
+            final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( channelContext.second(), bufferPool,
+                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion,
+                    ChunkingChannelBuffer.NO_CORRELATION_ID, false );
             chunkingBuffer.writeByte( type.id() );
             writeContext( type, context, chunkingBuffer );
             serializer.write( chunkingBuffer, channelContext.third() );
             chunkingBuffer.done();
+            timer.lap( Phase.SERIALIZATION, chunkingBuffer );
 
             // Read the response
-            @SuppressWarnings( "unchecked" )
-            BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
-                    channel.getPipeline().get( "blockingHandler" );
-            DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader, getReadTimeout( type, readTimeout ),
-                    getInternalProtocolVersion(), applicationProtocolVersion );
-
-            R response = deserializer.read( dechunkingBuffer, channelContext.third() );
-            StoreId storeId = readStoreId( dechunkingBuffer, channelContext.third() );
-            if ( shouldCheckStoreId( type ) )
-            {
-                // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
-                if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
-                else assertCorrectStoreId( storeId, getMyStoreId() );
-            }
-            TransactionStream txStreams = readTransactionStreams(
-                    dechunkingBuffer, channelPool );
-            return new Response<R>( response, storeId, txStreams,
-                    resourcePoolReleaser );
+            final DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader,
+                    getReadTimeout( type, readTimeout ), getInternalProtocolVersion(), applicationProtocolVersion,
+                    StringDictionary.of( channel ) );
+            timer.lap( Phase.MASTER_CALL );
+            /*
+             * This is here to couple the channel releasing to Response.close() itself and not
+             * to TransactionStream.close() as it is implemented here. The reason is that a Response
+             * that is returned without a TransactionStream will still hold the channel and should
+             * release it eventually. Also, logically, closing the channel is not dependent on the
+             * TransactionStream.
+             */
+            Response<R> response = readResponse( type, dechunkingBuffer, channelContext.third(), deserializer,
+                    specificStoreId, new ResourceReleaser()
+                    {
+                        public void release()
+                        {
+                            timer.done( dechunkingBuffer.getReadBytes(), chunkingBuffer.getWrittenBytes() );
+                            channelPool.release();
+                        }
+                    } );
+            timer.lap( Phase.SERIALIZATION );
+            return response;
         }
         catch ( Throwable e )
         {
@@ -241,11 +369,113 @@ public abstract class Client<M> implements ChannelPipelineFactory
         }
     }
 
+    protected <R> ResponseFuture<R> sendRequestAsync( RequestType<M> type, SlaveContext context,
+            Serializer serializer, Deserializer<R> deserializer )
+    {
+        return sendRequestAsync( type, context, serializer, deserializer, null );
+    }
+
+    /**
+     * Sends a request without waiting for its response, so that the calling
+     * thread can go on with other requests, or other work, in the meantime.
+     * Only multiplexed requests, see {@link #shouldMultiplex(RequestType)}, are
+     * really asynchronous. Requests going over a channel of their own are bound
+     * to the calling thread and have their response read before this method
+     * returns.
+     *
+     * @throws ComException if the request couldn't be sent, failures reading
+     * the response are thrown from {@link ResponseFuture#get()}.
+     */
+    protected <R> ResponseFuture<R> sendRequestAsync( RequestType<M> type, SlaveContext context,
+            Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
+    {
+        if ( isMultiplexed( type ) )
+        {
+            return sendMultiplexedRequest( type, context, serializer, deserializer, specificStoreId );
+        }
+        return ResponseFuture.of( sendRequest( type, context, serializer, deserializer, specificStoreId ) );
+    }
+
+    private boolean isMultiplexed( RequestType<M> type )
+    {
+        return sharedChannels != null && shouldMultiplex( type );
+    }
+
+    private <R> ResponseFuture<R> sendMultiplexedRequest( RequestType<M> type, SlaveContext context,
+            Serializer serializer, Deserializer<R> deserializer, StoreId specificStoreId )
+    {
+        RequestStatistics.Timer timer = requestStatistics.start( type );
+        ByteBuffer byteBuffer = leaseByteBuffer();
+        ResponseDispatcher dispatcher = null;
+        int correlationId = nextCorrelationId.getAndIncrement() & Integer.MAX_VALUE;
+        try
+        {
+            Channel channel = sharedChannel();
+            timer.lap( Phase.QUEUEING );
+            dispatcher = (ResponseDispatcher) channel.getPipeline().get( "dispatcher" );
+            ResponseReader reader = dispatcher.register( correlationId );
+            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( null, bufferPool,
+                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion,
+                    correlationId, false );
+            chunkingBuffer.writeByte( type.id() );
+            writeContext( type, context, chunkingBuffer );
+            serializer.write( chunkingBuffer, byteBuffer );
+            chunkingBuffer.done();
+            timer.lap( Phase.SERIALIZATION, chunkingBuffer );
+            return new MultiplexedResponseFuture<R>( type, dispatcher, reader, correlationId, byteBuffer,
+                    deserializer, specificStoreId, timer, chunkingBuffer.getWrittenBytes() );
+        }
+        catch ( Throwable e )
+        {
+            // A shared channel is left open for the other requests going over it
+            if ( dispatcher != null ) dispatcher.unregister( correlationId );
+            releaseByteBuffer( byteBuffer );
+            throw Exceptions.launderedException( ComException.class, e );
+        }
+    }
+
+    private <R> Response<R> readResponse( RequestType<M> type, ChannelBuffer source, ByteBuffer byteBuffer,
+            Deserializer<R> deserializer, StoreId specificStoreId, ResourceReleaser releaser ) throws IOException
+    {
+        R response = deserializer.read( source, byteBuffer );
+        StoreId storeId = readStoreId( source, byteBuffer );
+        if ( shouldCheckStoreId( type ) )
+        {
+            // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
+            if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
+            else assertCorrectStoreId( storeId, getMyStoreId() );
+        }
+        TransactionStream txStreams = readTransactionStreams( source, channelPool );
+        return new Response<R>( response, storeId, txStreams, releaser );
+    }
+
+    private ByteBuffer leaseByteBuffer()
+    {
+        ByteBuffer result = spareByteBuffers.poll();
+        return result != null ? result : ByteBuffer.allocateDirect( 1024 * 1024 );
+    }
+
+    private void releaseByteBuffer( ByteBuffer byteBuffer )
+    {
+        byteBuffer.clear();
+        spareByteBuffers.offer( byteBuffer );
+    }
+
     protected int getReadTimeout( RequestType<M> type, int readTimeout )
     {
         return readTimeout;
     }
 
+    /**
+     * @return the number of response chunks which may be read off a channel
+     * and queued up while the response is being decoded, after which reading
+     * from the channel waits for the decoding to catch up.
+     */
+    protected int getReadAheadChunks()
+    {
+        return DEFAULT_READ_AHEAD_CHUNKS;
+    }
+
     protected boolean shouldCheckStoreId( RequestType<M> type )
     {
         return true;
@@ -288,14 +518,17 @@ public abstract class Client<M> implements ChannelPipelineFactory
         }
         targetBuffer.writeInt( context.getMasterId() );
         targetBuffer.writeLong( context.getChecksum() );
+        targetBuffer.writeByte( context.beginsTx() ? 1 : 0 );
     }
 
-    private Triplet<Channel, ChannelBuffer, ByteBuffer> getChannel( RequestType<M> type ) throws Exception
+    private Triplet<Channel, ChannelBuffer, ByteBuffer> getChannel( RequestType<M> type,
+            ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> pool ) throws Exception
     {
         // Calling acquire is dangerous since it may be a blocking call... and if this
         // thread holds a lock which others may want to be able to communicate with
-        // the master things go stiff.
-        Triplet<Channel, ChannelBuffer, ByteBuffer> result = channelPool.acquire();
+        // the master things go stiff. Multiplexed requests don't have that problem
+        // since that pool isn't bounded.
+        Triplet<Channel, ChannelBuffer, ByteBuffer> result = pool.acquire();
         if ( result == null )
         {
             msgLog.logMessage( "Unable to acquire new channel for " + type );
@@ -319,14 +552,26 @@ public abstract class Client<M> implements ChannelPipelineFactory
         ChannelPipeline pipeline = Channels.pipeline();
         addLengthFieldPipes( pipeline, frameLength );
         BlockingReadHandler<ChannelBuffer> reader = new BlockingReadHandler<ChannelBuffer>(
-                new ArrayBlockingQueue<ChannelEvent>( 3, false ) );
+                new ArrayBlockingQueue<ChannelEvent>( getReadAheadChunks(), false ) );
         pipeline.addLast( "blockingHandler", reader );
         return pipeline;
     }
 
     public void shutdown()
     {
+        prewarmedChannels.close();
+        reconnectTimer.stop();
         channelPool.close( true );
+        if ( sharedChannels != null )
+        {
+            synchronized ( sharedChannels )
+            {
+                for ( Channel channel : sharedChannels )
+                {
+                    if ( channel != null && channel.isConnected() ) channel.close();
+                }
+            }
+        }
         executor.shutdownNow();
         msgLog.logMessage( toString() + " shutdown", true );
     }
@@ -357,7 +602,7 @@ public abstract class Client<M> implements ChannelPipelineFactory
                 String datasource = datasources[buffer.readUnsignedByte()];
                 if ( datasource == null ) return null;
                 long txId = buffer.readLong();
-                TxExtractor extractor = TxExtractor.create( new BlockLogReader( buffer ) );
+                TxExtractor extractor = TxExtractor.create( new LargeBlockLogReader( buffer ) );
                 return Triplet.of( datasource, txId, extractor );
             }
 
@@ -389,12 +634,7 @@ public abstract class Client<M> implements ChannelPipelineFactory
             if ( buffer.readUnsignedByte() > 0 /* datasource id */ )
             {
                 buffer.skipBytes( 8 ); // tx id
-                int blockSize = 0;
-                while ( (blockSize = buffer.readUnsignedByte()) == 0 )
-                {
-                    buffer.skipBytes( BlockLogBuffer.DATA_SIZE );
-                }
-                buffer.skipBytes( blockSize );
+                LargeBlockLogReader.skipTransaction( buffer );
             }
         }
         finally
@@ -403,6 +643,176 @@ public abstract class Client<M> implements ChannelPipelineFactory
         }
     }
 
+    /**
+     * The response to a multiplexed request, read by whichever thread calls
+     * {@link #get()}, which doesn't have to be the one which sent the request.
+     */
+    private class MultiplexedResponseFuture<R> extends ResponseFuture<R>
+    {
+        private final RequestType<M> type;
+        private final ResponseDispatcher dispatcher;
+        private final ResponseReader reader;
+        private final int correlationId;
+        private final ByteBuffer byteBuffer;
+        private final Deserializer<R> deserializer;
+        private final StoreId specificStoreId;
+        private final RequestStatistics.Timer timer;
+        private final long requestBytes;
+        private Response<R> response; // Guarded by this
+        private RuntimeException failure; // Guarded by this
+
+        MultiplexedResponseFuture( RequestType<M> type, ResponseDispatcher dispatcher, ResponseReader reader,
+                int correlationId, ByteBuffer byteBuffer, Deserializer<R> deserializer, StoreId specificStoreId,
+                RequestStatistics.Timer timer, long requestBytes )
+        {
+            this.timer = timer;
+            this.requestBytes = requestBytes;
+            this.type = type;
+            this.dispatcher = dispatcher;
+            this.reader = reader;
+            this.correlationId = correlationId;
+            this.byteBuffer = byteBuffer;
+            this.deserializer = deserializer;
+            this.specificStoreId = specificStoreId;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return reader.isDone();
+        }
+
+        @Override
+        public synchronized Response<R> get()
+        {
+            if ( response != null ) return response;
+            if ( failure != null ) throw failure;
+            try
+            {
+                final DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader,
+                        getReadTimeout( type, readTimeout ), getInternalProtocolVersion(),
+                        applicationProtocolVersion, null );
+                timer.lap( Phase.MASTER_CALL );
+                response = readResponse( type, dechunkingBuffer, byteBuffer, deserializer, specificStoreId,
+                        new ResourceReleaser()
+                        {
+                            public void release()
+                            {
+                                timer.done( dechunkingBuffer.getReadBytes(), requestBytes );
+                                dispatcher.unregister( correlationId );
+                                releaseByteBuffer( byteBuffer );
+                            }
+                        } );
+                timer.lap( Phase.SERIALIZATION );
+                return response;
+            }
+            catch ( Throwable e )
+            {
+                // Chunks still coming back for this request will be dropped by the dispatcher
+                dispatcher.unregister( correlationId );
+                releaseByteBuffer( byteBuffer );
+                failure = Exceptions.launderedException( ComException.class, e );
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Queues up the chunks of one multiplexed response and keeps track of
+     * whether or not all of them have arrived.
+     */
+    private static class ResponseReader extends BlockingReadHandler<ChannelBuffer>
+    {
+        private volatile boolean done;
+
+        ResponseReader()
+        {
+            /*
+             * Unbounded since the I/O thread mustn't block on one slow reader,
+             * it would stall all other responses on the same channel.
+             */
+            super( new LinkedBlockingQueue<ChannelEvent>() );
+        }
+
+        boolean isDone()
+        {
+            return done;
+        }
+
+        @Override
+        public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+        {
+            // Set before the chunk is handed over so that it's seen by whoever reads it
+            if ( ChunkingChannelBuffer.peekLastChunk( (ChannelBuffer) e.getMessage() ) ) done = true;
+            super.messageReceived( ctx, e );
+        }
+
+        @Override
+        public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception
+        {
+            done = true;
+            super.channelClosed( ctx, e );
+        }
+
+        @Override
+        public void exceptionCaught( ChannelHandlerContext ctx, ExceptionEvent e ) throws Exception
+        {
+            done = true;
+            super.exceptionCaught( ctx, e );
+        }
+    }
+
+    /**
+     * Sits last in the pipeline of a shared channel and hands each incoming chunk
+     * to the {@link ResponseReader} registered for its correlation id.
+     * Chunks for ids which aren't registered (any more), f.ex. those of a request
+     * which timed out, are dropped. Channel closed and exception events are
+     * forwarded to every registered handler so that waiting readers wake up.
+     */
+    private static class ResponseDispatcher extends SimpleChannelUpstreamHandler
+    {
+        private final Map<Integer, ResponseReader> readers = new ConcurrentHashMap<Integer, ResponseReader>();
+
+        ResponseReader register( int correlationId )
+        {
+            ResponseReader reader = new ResponseReader();
+            readers.put( correlationId, reader );
+            return reader;
+        }
+
+        void unregister( int correlationId )
+        {
+            readers.remove( correlationId );
+        }
+
+        @Override
+        public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+        {
+            ChannelBuffer message = (ChannelBuffer) e.getMessage();
+            int correlationId = ChunkingChannelBuffer.peekCorrelationId( message );
+            ResponseReader reader = readers.get( correlationId );
+            if ( reader != null ) reader.handleUpstream( ctx, e );
+        }
+
+        @Override
+        public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception
+        {
+            for ( ResponseReader reader : readers.values() )
+            {
+                reader.handleUpstream( ctx, e );
+            }
+        }
+
+        @Override
+        public void exceptionCaught( ChannelHandlerContext ctx, ExceptionEvent e ) throws Exception
+        {
+            for ( ResponseReader reader : readers.values() )
+            {
+                reader.handleUpstream( ctx, e );
+            }
+        }
+    }
+
     public static StoreIdGetter storeIdGetterForDb( final GraphDatabaseService db )
     {
         return new StoreIdGetter()
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Keeps track of which slaves have requests in flight over which channels,
+ * and of when each channel was last heard of, without taking any locks.
+ * <p>
+ * Each channel with requests in flight has a watch on a timing wheel, which
+ * checks on it when it's half way to being silent, and again when it's silent.
+ * Channels which go silent with requests in flight, or which turn out to be
+ * closed without anyone telling, are handed to a {@link SilentChannelHandler}.
+ * A channel with nothing in flight when checked on is dropped, the next
+ * request over it adds it again.
+ */
+class ConnectedSlaveChannels
+{
+    interface SilentChannelHandler
+    {
+        /**
+         * Called from the timer thread, so anything slow should be done elsewhere.
+         */
+        void channelWentSilent( Channel channel, long silentMillis );
+    }
+
+    private final ConcurrentMap<Channel, SlaveChannel> channels = new ConcurrentHashMap<Channel, SlaveChannel>();
+    private final Timer timer;
+    private final long silentThresholdMillis;
+    private final SilentChannelHandler handler;
+
+    ConnectedSlaveChannels( Timer timer, long silentThresholdMillis, SilentChannelHandler handler )
+    {
+        this.timer = timer;
+        this.silentThresholdMillis = silentThresholdMillis;
+        this.handler = handler;
+    }
+
+    void map( Channel channel, SlaveContext slave )
+    {
+        for ( ;; )
+        {
+            SlaveChannel slaveChannel = channels.get( channel );
+            if ( slaveChannel == null )
+            {
+                SlaveChannel created = new SlaveChannel( channel );
+                slaveChannel = channels.putIfAbsent( channel, created );
+                if ( slaveChannel == null )
+                {
+                    slaveChannel = created;
+                    created.schedule( silentThresholdMillis/2 );
+                }
+            }
+            if ( slaveChannel.enter( slave ) ) return;
+            // It was just dropped, make way for a new one
+            channels.remove( channel, slaveChannel );
+        }
+    }
+
+    void unmap( Channel channel, SlaveContext slave )
+    {
+        SlaveChannel slaveChannel = channels.get( channel );
+        if ( slaveChannel != null ) slaveChannel.exit( slave );
+    }
+
+    /**
+     * Stops keeping track of {@code channel}.
+     *
+     * @return the slaves which had requests in flight over it, or {@code null}
+     * if it wasn't kept track of.
+     */
+    Collection<SlaveContext> remove( Channel channel )
+    {
+        SlaveChannel slaveChannel = channels.remove( channel );
+        return slaveChannel != null ? slaveChannel.close() : null;
+    }
+
+    /**
+     * @return a snapshot of the channels with requests in flight, each with one
+     * of the slave contexts of those requests.
+     */
+    Map<Channel, SlaveContext> snapshot()
+    {
+        Map<Channel, SlaveContext> result = new HashMap<Channel, SlaveContext>();
+        for ( SlaveChannel slaveChannel : channels.values() )
+        {
+            Iterator<SlaveContext> slaves = slaveChannel.slaves.iterator();
+            if ( slaves.hasNext() ) result.put( slaveChannel.channel, slaves.next() );
+        }
+        return result;
+    }
+
+    private class SlaveChannel implements TimerTask
+    {
+        private final Channel channel;
+        private final Set<SlaveContext> slaves =
+                Collections.newSetFromMap( new ConcurrentHashMap<SlaveContext, Boolean>() );
+        // Size of slaves, or negative when dropped so that nothing more can enter
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long lastHeardOf = System.currentTimeMillis();
+        private volatile Timeout timeout;
+
+        SlaveChannel( Channel channel )
+        {
+            this.channel = channel;
+        }
+
+        boolean enter( SlaveContext slave )
+        {
+            for ( ;; )
+            {
+                int count = inFlight.get();
+                if ( count < 0 ) return false;
+                if ( inFlight.compareAndSet( count, count+1 ) ) break;
+            }
+            if ( !slaves.add( slave ) ) inFlight.decrementAndGet();
+            lastHeardOf = System.currentTimeMillis();
+            return true;
+        }
+
+        void exit( SlaveContext slave )
+        {
+            if ( slaves.remove( slave ) ) inFlight.decrementAndGet();
+        }
+
+        Collection<SlaveContext> close()
+        {
+            inFlight.set( -1 );
+            Timeout current = timeout;
+            if ( current != null ) current.cancel();
+            return new ArrayList<SlaveContext>( slaves );
+        }
+
+        void schedule( long delayMillis )
+        {
+            timeout = timer.newTimeout( this, delayMillis, TimeUnit.MILLISECONDS );
+        }
+
+        @Override
+        public void run( Timeout timeout )
+        {
+            if ( inFlight.get() < 0 ) return;
+            long age = System.currentTimeMillis()-lastHeardOf;
+            long halfThreshold = silentThresholdMillis/2;
+            if ( age > halfThreshold )
+            {
+                if ( inFlight.compareAndSet( 0, -1 ) )
+                {   // Nothing in flight to keep an eye on
+                    channels.remove( channel, this );
+                    return;
+                }
+                if ( age > silentThresholdMillis || !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
+                {
+                    handler.channelWentSilent( channel, age );
+                    return;
+                }
+            }
+            schedule( (age > halfThreshold ? silentThresholdMillis : halfThreshold) - age + 1 );
+        }
+    }
+}
@@ -23,14 +23,18 @@ import static org.neo4j.kernel.impl.util.Bits.numbersToBitString;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferFactory;
@@ -38,27 +42,65 @@ import org.jboss.netty.buffer.ChannelBufferIndexFinder;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.queue.BlockingReadHandler;
 
-public class DechunkingChannelBuffer implements ChannelBuffer
+/**
+ * Reads a message straight out of the chunks it came in, one chunk at a time.
+ * Reads are served from the chunk at hand and only values which straddle two
+ * chunks are put together in a small buffer of their own, so chunks are never
+ * copied. Absolute indexes, like in {@link #getInt(int)}, are within the chunk
+ * at hand only.
+ * <p>
+ * Chunks that have been read through are let go of, except while the reader
+ * index is marked, then they are kept so that {@link #resetReaderIndex()} can
+ * go back to the mark.
+ */
+public class DechunkingChannelBuffer implements ChannelBuffer, StringDictionary.Holder
 {
     private final BlockingReadHandler<ChannelBuffer> reader;
     private ChannelBuffer buffer;
     private boolean more;
-    private boolean hasMarkedReaderIndex;
+    // For values straddling two chunks, never more than a long or double
+    private final ChannelBuffer edge = ChannelBuffers.buffer( 8 );
+    // Chunks read since the reader index was marked, the first one is the marked one
+    private List<ChannelBuffer> markedChunks;
+    // Chunks to read again after the reader index was reset to a previous chunk
+    private final Queue<ChannelBuffer> replayedChunks = new LinkedList<ChannelBuffer>();
     private final int timeoutSeconds;
     private boolean failure;
     private final byte applicationProtocolVersion;
     private final byte internalProtocolVersion;
+    private Inflater inflater;
+    private final StringDictionary dictionary;
+    private long bytesRead;
 
+    /**
+     * @param dictionary the dictionary strings are read through, or {@code null}
+     * if the other side doesn't use one.
+     */
     DechunkingChannelBuffer( BlockingReadHandler<ChannelBuffer> reader, int timeoutSeconds, byte internalProtocolVersion,
-            byte applicationProtocolVersion )
+            byte applicationProtocolVersion, StringDictionary dictionary )
     {
         this.reader = reader;
+        this.dictionary = dictionary;
         this.timeoutSeconds = timeoutSeconds;
         this.internalProtocolVersion = internalProtocolVersion;
         this.applicationProtocolVersion = applicationProtocolVersion;
         readNextChunk();
     }
     
+    @Override
+    public StringDictionary dictionary()
+    {
+        return dictionary;
+    }
+
+    /**
+     * @return number of bytes of the chunks read so far, headers included.
+     */
+    public long getReadBytes()
+    {
+        return bytesRead;
+    }
+
     protected ChannelBuffer readNext()
     {
         try
@@ -80,58 +122,142 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         }
     }
 
-    private void readNextChunkIfNeeded( int bytesPlus )
+    private boolean hasMoreChunks()
+    {
+        return more || !replayedChunks.isEmpty();
+    }
+
+    /**
+     * @return the chunk at hand, or the next one if the one at hand has been
+     * read through and there are more chunks in this message.
+     */
+    private ChannelBuffer window()
     {
-        if ( buffer.readableBytes() < bytesPlus && more )
+        while ( !buffer.readable() && hasMoreChunks() )
         {
             readNextChunk();
         }
+        return buffer;
     }
-    
+
+    /**
+     * @return the number of the {@code wanted} bytes which can be read from
+     * the chunk at hand, at least one.
+     */
+    private int bytesInWindow( int wanted )
+    {
+        int bytes = Math.min( wanted, window().readableBytes() );
+        if ( bytes == 0 && wanted > 0 )
+        {
+            throw new IndexOutOfBoundsException( "Wanted " + wanted + " more bytes, but this was the last chunk" );
+        }
+        return bytes;
+    }
+
+    /**
+     * Puts the bytes of a value which straddles the end of the chunk at hand
+     * and the start of the next one together, the bytes are then read from the
+     * returned buffer.
+     */
+    private ChannelBuffer stitch( int bytes )
+    {
+        edge.clear();
+        while ( edge.writerIndex() < bytes )
+        {
+            int bytesFromWindow = bytesInWindow( bytes-edge.writerIndex() );
+            buffer.readBytes( edge, bytesFromWindow );
+        }
+        return edge;
+    }
+
     private void readNextChunk()
     {
+        if ( !replayedChunks.isEmpty() )
+        {
+            useChunk( replayedChunks.poll() );
+            return;
+        }
+
         ChannelBuffer readBuffer = readNext();
-        
+        bytesRead += readBuffer.readableBytes();
+
         /* Header layout:
          * [    ,    ][    ,   x] 0: last chunk in message, 1: there a more chunks after this one
          * [    ,    ][    ,  x ] 0: success, 1: failure
-         * [    ,    ][xxxx,xx  ] internal protocol version
-         * [xxxx,xxxx][    ,    ] application protocol version */
+         * [    ,    ][  xx,xx  ] internal protocol version
+         * [xxxx,xxxx][    ,    ] application protocol version
+         * [    ,    ][ x  ,    ] compressed, the uncompressed length (int) follows the
+         *                        header (and correlation id)
+         * [    ,    ][x   ,    ] a correlation id (int) follows, which has already been
+         *                        used for dispatching the chunk to this buffer */
         byte[] header = new byte[2];
         readBuffer.readBytes( header );
+        if ( (header[0] & ChunkingChannelBuffer.CORRELATION_ID_FLAG) != 0 ) readBuffer.skipBytes( 4 );
         more = (header[0] & 0x1) != 0;
         failure = (header[0] & 0x2) != 0;
         assertSameProtocolVersion( header, internalProtocolVersion, applicationProtocolVersion );
-        
-        if ( !more && buffer == null )
+        if ( (header[0] & ChunkingChannelBuffer.COMPRESSED_FLAG) != 0 ) readBuffer = decompress( readBuffer );
+        useChunk( readBuffer );
+
+        if ( failure )
         {
-            // Optimization: this is the first chunk and it'll be the only chunk
-            // in this message.
-            buffer = readBuffer;
+            Throwable failure = readAndThrowFailureResponse();
+            throw new ComException( "Server side exception", failure );
         }
-        else
+    }
+
+    private void useChunk( ChannelBuffer chunk )
+    {
+        if ( markedChunks != null )
         {
-            buffer = buffer == null ? ChannelBuffers.dynamicBuffer() : buffer;
-            discardReadBytes();
-            buffer.writeBytes( readBuffer );
+            chunk.markReaderIndex();
+            markedChunks.add( chunk );
         }
-        
-        if ( failure )
+        buffer = chunk;
+    }
+
+    private ChannelBuffer decompress( ChannelBuffer compressed )
+    {
+        byte[] result = new byte[compressed.readInt()];
+        byte[] input = new byte[compressed.readableBytes()];
+        compressed.readBytes( input );
+        if ( inflater == null )
         {
-            Throwable failure = readAndThrowFailureResponse();
-            throw new ComException( "Server side exception", failure );
+            inflater = new Inflater();
         }
+        inflater.reset();
+        inflater.setInput( input );
+        try
+        {
+            if ( inflater.inflate( result ) != result.length || !inflater.finished() )
+            {
+                throw new ComException( "Compressed chunk didn't inflate to its expected length " + result.length );
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new ComException( e );
+        }
+        finally
+        {
+            if ( !more )
+            {
+                inflater.end();
+                inflater = null;
+            }
+        }
+        return ChannelBuffers.wrappedBuffer( result );
     }
 
     static void assertSameProtocolVersion( byte[] header, byte internalProtocolVersion, byte applicationProtocolVersion )
     {
-        /* [aaaa,aaaa][pppp,ppoc]
-         * Only 6 bits for internal protocol version, yielding 64 values. It's ok to wrap around because
+        /* [aaaa,aaaa][izpp,ppoc]
+         * Only 4 bits for internal protocol version, yielding 16 values. It's ok to wrap around because
          * It's highly unlikely that instances that are so far apart in versions will communicate
          * with each other.
          */ 
-        byte readInternalProtocolVersion = (byte) ((header[0] & 0x7C) >>> 2);
-        if ( readInternalProtocolVersion != internalProtocolVersion )
+        byte readInternalProtocolVersion = (byte) ((header[0] >>> 2) & ChunkingChannelBuffer.INTERNAL_PROTOCOL_VERSION_MASK);
+        if ( readInternalProtocolVersion != (internalProtocolVersion & ChunkingChannelBuffer.INTERNAL_PROTOCOL_VERSION_MASK) )
         {
             throw new IllegalProtocolVersionException( "Unexpected internal protocol version " + readInternalProtocolVersion +
                     ", expected " + internalProtocolVersion + ". Header:" + numbersToBitString( header ) );
@@ -148,8 +274,7 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         Throwable cause = null;
         try
         {
-            ObjectInputStream input = new ObjectInputStream( asInputStream() );
-            cause = (Throwable) input.readObject();
+            cause = FailureResponse.read( this );
         }
         catch ( Exception e )
         {
@@ -215,11 +340,12 @@ public class DechunkingChannelBuffer implements ChannelBuffer
     }
 
     /**
-     * Will return amount of readable bytes in this chunk only
+     * Will return amount of readable bytes in this chunk only, or in the next
+     * one if this one has been read through
      */
     public int readableBytes()
     {
-        return buffer.readableBytes();
+        return window().readableBytes();
     }
 
     public int writableBytes()
@@ -232,8 +358,7 @@ public class DechunkingChannelBuffer implements ChannelBuffer
      */
     public boolean readable()
     {
-        readNextChunkIfNeeded( 1 );
-        return buffer.readable();
+        return window().readable();
     }
 
     public boolean writable()
@@ -248,14 +373,27 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public void markReaderIndex()
     {
-        buffer.markReaderIndex();
-        hasMarkedReaderIndex = true;
+        markedChunks = new LinkedList<ChannelBuffer>();
+        useChunk( buffer );
     }
 
     public void resetReaderIndex()
     {
-        buffer.resetReaderIndex();
-        hasMarkedReaderIndex = false;
+        if ( markedChunks == null )
+        {
+            buffer.resetReaderIndex();
+            return;
+        }
+
+        // Go back to the marked chunk and read the ones after it again
+        List<ChannelBuffer> chunks = markedChunks;
+        markedChunks = null;
+        for ( ChannelBuffer chunk : chunks ) chunk.resetReaderIndex();
+        LinkedList<ChannelBuffer> notReadAgainYet = new LinkedList<ChannelBuffer>( replayedChunks );
+        replayedChunks.clear();
+        replayedChunks.addAll( chunks.subList( 1, chunks.size() ) );
+        replayedChunks.addAll( notReadAgainYet );
+        buffer = chunks.get( 0 );
     }
 
     public void markWriterIndex()
@@ -270,17 +408,7 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public void discardReadBytes()
     {
-        int oldReaderIndex = buffer.readerIndex();
-        if ( hasMarkedReaderIndex )
-        {
-            buffer.resetReaderIndex();
-        }
-        int bytesToDiscard = buffer.readerIndex();
-        buffer.discardReadBytes();
-        if ( hasMarkedReaderIndex )
-        {
-            buffer.readerIndex( oldReaderIndex-bytesToDiscard );
-        }
+        // Chunks are let go of as soon as they've been read through
     }
 
     public void ensureWritableBytes( int writableBytes )
@@ -290,129 +418,101 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public byte getByte( int index )
     {
-        readNextChunkIfNeeded( 1 );
         return buffer.getByte( index );
     }
 
     public short getUnsignedByte( int index )
     {
-        readNextChunkIfNeeded( 1 );
         return buffer.getUnsignedByte( index );
     }
 
     public short getShort( int index )
     {
-        readNextChunkIfNeeded( 2 );
         return buffer.getShort( index );
     }
 
     public int getUnsignedShort( int index )
     {
-        readNextChunkIfNeeded( 2 );
         return buffer.getUnsignedShort( index );
     }
 
     public int getMedium( int index )
     {
-        readNextChunkIfNeeded( 4 );
         return buffer.getMedium( index );
     }
 
     public int getUnsignedMedium( int index )
     {
-        readNextChunkIfNeeded( 4 );
         return buffer.getUnsignedMedium( index );
     }
 
     public int getInt( int index )
     {
-        readNextChunkIfNeeded( 4 );
         return buffer.getInt( index );
     }
 
     public long getUnsignedInt( int index )
     {
-        readNextChunkIfNeeded( 4 );
         return buffer.getUnsignedInt( index );
     }
 
     public long getLong( int index )
     {
-        readNextChunkIfNeeded( 8 );
         return buffer.getLong( index );
     }
 
     public char getChar( int index )
     {
-        readNextChunkIfNeeded( 2 );
         return buffer.getChar( index );
     }
 
     public float getFloat( int index )
     {
-        readNextChunkIfNeeded( 8 );
         return buffer.getFloat( index );
     }
 
     public double getDouble( int index )
     {
-        readNextChunkIfNeeded( 8 );
         return buffer.getDouble( index );
     }
 
     public void getBytes( int index, ChannelBuffer dst )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( dst.writableBytes() );
         buffer.getBytes( index, dst );
     }
 
     public void getBytes( int index, ChannelBuffer dst, int length )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( length );
         buffer.getBytes( index, dst, length );
     }
 
     public void getBytes( int index, ChannelBuffer dst, int dstIndex, int length )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( length );
         buffer.getBytes( index, dst, dstIndex, length );
     }
 
     public void getBytes( int index, byte[] dst )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( dst.length );
         buffer.getBytes( index, dst );
     }
 
     public void getBytes( int index, byte[] dst, int dstIndex, int length )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( length );
         buffer.getBytes( index, dst, dstIndex, length );
     }
 
     public void getBytes( int index, ByteBuffer dst )
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( dst.limit() );
         buffer.getBytes( index, dst );
     }
 
     public void getBytes( int index, OutputStream out, int length ) throws IOException
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( length );
         buffer.getBytes( index, out, length );
     }
 
     public int getBytes( int index, GatheringByteChannel out, int length ) throws IOException
     {
-        // TODO We need a loop for this (if dst is bigger than chunk size)
-        readNextChunkIfNeeded( length );
         return buffer.getBytes( index, out, length );
     }
 
@@ -508,80 +608,70 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public byte readByte()
     {
-        readNextChunkIfNeeded( 1 );
-        return buffer.readByte();
+        return buffer.readableBytes() >= 1 ? buffer.readByte() : stitch( 1 ).readByte();
     }
 
     public short readUnsignedByte()
     {
-        readNextChunkIfNeeded( 1 );
-        return buffer.readUnsignedByte();
+        return buffer.readableBytes() >= 1 ? buffer.readUnsignedByte() : stitch( 1 ).readUnsignedByte();
     }
 
     public short readShort()
     {
-        readNextChunkIfNeeded( 2 );
-        return buffer.readShort();
+        return buffer.readableBytes() >= 2 ? buffer.readShort() : stitch( 2 ).readShort();
     }
 
     public int readUnsignedShort()
     {
-        readNextChunkIfNeeded( 2 );
-        return buffer.readUnsignedShort();
+        return buffer.readableBytes() >= 2 ? buffer.readUnsignedShort() : stitch( 2 ).readUnsignedShort();
     }
 
     public int readMedium()
     {
-        readNextChunkIfNeeded( 4 );
-        return buffer.readMedium();
+        return buffer.readableBytes() >= 3 ? buffer.readMedium() : stitch( 3 ).readMedium();
     }
 
     public int readUnsignedMedium()
     {
-        readNextChunkIfNeeded( 4 );
-        return buffer.readUnsignedMedium();
+        return buffer.readableBytes() >= 3 ? buffer.readUnsignedMedium() : stitch( 3 ).readUnsignedMedium();
     }
 
     public int readInt()
     {
-        readNextChunkIfNeeded( 4 );
-        return buffer.readInt();
+        return buffer.readableBytes() >= 4 ? buffer.readInt() : stitch( 4 ).readInt();
     }
 
     public long readUnsignedInt()
     {
-        readNextChunkIfNeeded( 4 );
-        return buffer.readUnsignedInt();
+        return buffer.readableBytes() >= 4 ? buffer.readUnsignedInt() : stitch( 4 ).readUnsignedInt();
     }
 
     public long readLong()
     {
-        readNextChunkIfNeeded( 8 );
-        return buffer.readLong();
+        return buffer.readableBytes() >= 8 ? buffer.readLong() : stitch( 8 ).readLong();
     }
 
     public char readChar()
     {
-        readNextChunkIfNeeded( 2 );
-        return buffer.readChar();
+        return buffer.readableBytes() >= 2 ? buffer.readChar() : stitch( 2 ).readChar();
     }
 
     public float readFloat()
     {
-        readNextChunkIfNeeded( 8 );
-        return buffer.readFloat();
+        return buffer.readableBytes() >= 4 ? buffer.readFloat() : stitch( 4 ).readFloat();
     }
 
     public double readDouble()
     {
-        readNextChunkIfNeeded( 8 );
-        return buffer.readDouble();
+        return buffer.readableBytes() >= 8 ? buffer.readDouble() : stitch( 8 ).readDouble();
     }
 
     public ChannelBuffer readBytes( int length )
     {
-        readNextChunkIfNeeded( length );
-        return buffer.readBytes( length );
+        if ( buffer.readableBytes() >= length ) return buffer.readBytes( length );
+        ChannelBuffer result = ChannelBuffers.buffer( length );
+        readBytes( result, length );
+        return result;
     }
 
     public ChannelBuffer readBytes( ChannelBufferIndexFinder indexFinder )
@@ -591,8 +681,7 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public ChannelBuffer readSlice( int length )
     {
-        readNextChunkIfNeeded( length );
-        return buffer.readSlice( length );
+        return buffer.readableBytes() >= length ? buffer.readSlice( length ) : readBytes( length );
     }
 
     public ChannelBuffer readSlice( ChannelBufferIndexFinder indexFinder )
@@ -602,56 +691,89 @@ public class DechunkingChannelBuffer implements ChannelBuffer
 
     public void readBytes( ChannelBuffer dst )
     {
-        readNextChunkIfNeeded( dst.writableBytes() );
-        buffer.readBytes( dst );
+        readBytes( dst, dst.writableBytes() );
     }
 
     public void readBytes( ChannelBuffer dst, int length )
     {
-        readNextChunkIfNeeded( length );
-        buffer.readBytes( dst, length );
+        while ( length > 0 )
+        {
+            int bytes = bytesInWindow( length );
+            buffer.readBytes( dst, bytes );
+            length -= bytes;
+        }
     }
 
     public void readBytes( ChannelBuffer dst, int dstIndex, int length )
     {
-        readNextChunkIfNeeded( length );
-        buffer.readBytes( dst, dstIndex, length );
+        while ( length > 0 )
+        {
+            int bytes = bytesInWindow( length );
+            buffer.readBytes( dst, dstIndex, bytes );
+            dstIndex += bytes;
+            length -= bytes;
+        }
     }
 
     public void readBytes( byte[] dst )
     {
-        readNextChunkIfNeeded( dst.length );
-        buffer.readBytes( dst );
+        readBytes( dst, 0, dst.length );
     }
 
     public void readBytes( byte[] dst, int dstIndex, int length )
     {
-        readNextChunkIfNeeded( length );
-        buffer.readBytes( dst, dstIndex, length );
+        while ( length > 0 )
+        {
+            int bytes = bytesInWindow( length );
+            buffer.readBytes( dst, dstIndex, bytes );
+            dstIndex += bytes;
+            length -= bytes;
+        }
     }
 
     public void readBytes( ByteBuffer dst )
     {
-        readNextChunkIfNeeded( dst.limit() );
-        buffer.readBytes( dst );
+        int limit = dst.limit();
+        while ( dst.hasRemaining() )
+        {
+            int bytes = bytesInWindow( dst.remaining() );
+            dst.limit( dst.position()+bytes );
+            buffer.readBytes( dst );
+            dst.limit( limit );
+        }
     }
 
     public void readBytes( OutputStream out, int length ) throws IOException
     {
-        readNextChunkIfNeeded( length );
-        buffer.readBytes( out, length );
+        while ( length > 0 )
+        {
+            int bytes = bytesInWindow( length );
+            buffer.readBytes( out, bytes );
+            length -= bytes;
+        }
     }
 
     public int readBytes( GatheringByteChannel out, int length ) throws IOException
     {
-        readNextChunkIfNeeded( length );
-        return buffer.readBytes( out, length );
+        int written = 0;
+        while ( written < length )
+        {
+            int bytes = bytesInWindow( length-written );
+            int writtenFromWindow = buffer.readBytes( out, bytes );
+            written += writtenFromWindow;
+            if ( writtenFromWindow < bytes ) break;
+        }
+        return written;
     }
 
     public void skipBytes( int length )
     {
-        readNextChunkIfNeeded( length );
-        buffer.skipBytes( length );
+        while ( length > 0 )
+        {
+            int bytes = bytesInWindow( length );
+            buffer.skipBytes( bytes );
+            length -= bytes;
+        }
     }
 
     public int skipBytes( ChannelBufferIndexFinder indexFinder )
@@ -895,65 +1017,4 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         return buffer.toString();
     }
     
-    private InputStream asInputStream()
-    {
-        return new InputStream()
-        {
-            @Override
-            public int read( byte[] b ) throws IOException
-            {
-                readBytes( b );
-                return b.length;
-            }
-
-            @Override
-            public int read( byte[] b, int off, int len ) throws IOException
-            {
-                readBytes( b, off, len );
-                return len;
-            }
-
-            @Override
-            public long skip( long n ) throws IOException
-            {
-                skipBytes( (int)n );
-                return n;
-            }
-
-            @Override
-            public int available() throws IOException
-            {
-                return super.available();
-            }
-
-            @Override
-            public void close() throws IOException
-            {
-            }
-
-            @Override
-            public synchronized void mark( int readlimit )
-            {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public synchronized void reset() throws IOException
-            {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public boolean markSupported()
-            {
-                return false;
-            }
-
-            @Override
-            public int read() throws IOException
-            {
-                return readByte();
-            }
-        };
-    }
 }
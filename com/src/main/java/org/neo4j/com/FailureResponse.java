@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+/**
+ * The cause of a failed request, as written after a failure header.
+ * <p>
+ * It's normally written in a compact form, a type code (or the class name for
+ * types without one), the message and at most {@link #MAX_TRACE_ELEMENTS} stack
+ * trace elements, for the failure and a few of its causes. Serializing the
+ * whole failure with Java serialization is there for debugging, the reading
+ * side handles both.
+ * <p>
+ * Strings are written as they are, not through a {@link StringDictionary},
+ * since a failure may be written in place of a response which has already
+ * had strings go through it.
+ */
+class FailureResponse
+{
+    static final byte COMPACT = 0;
+    static final byte SERIALIZED = 1;
+
+    static final int MAX_TRACE_ELEMENTS = 32;
+    // The failure itself and at most this many causes of it minus one
+    static final int MAX_CAUSES = 4;
+
+    private static final byte TYPE_BY_NAME = 0;
+    // Common failures go by their code, index+1 in here. Only ever add to the end.
+    private static final List<Class<? extends Throwable>> TYPES = Arrays.<Class<? extends Throwable>>asList(
+            ComException.class,
+            IllegalProtocolVersionException.class,
+            RejectedExecutionException.class,
+            DeadlockDetectedException.class,
+            TransactionFailureException.class,
+            NotFoundException.class,
+            IllegalStateException.class,
+            IllegalArgumentException.class,
+            UnsupportedOperationException.class,
+            NullPointerException.class,
+            RuntimeException.class,
+            IOException.class );
+
+    private FailureResponse()
+    {
+    }
+
+    static void write( Throwable failure, ChannelBuffer buffer, boolean serialize ) throws IOException
+    {
+        if ( serialize )
+        {
+            buffer.writeByte( SERIALIZED );
+            ObjectOutputStream out = new ObjectOutputStream( new ChannelBufferOutputStream( buffer ) );
+            out.writeObject( failure );
+            out.close();
+            return;
+        }
+
+        List<Throwable> chain = new ArrayList<Throwable>();
+        for ( Throwable cause = failure; cause != null && chain.size() < MAX_CAUSES && !chain.contains( cause );
+                cause = cause.getCause() )
+        {
+            chain.add( cause );
+        }
+        buffer.writeByte( COMPACT );
+        buffer.writeByte( chain.size() );
+        for ( Throwable cause : chain )
+        {
+            int type = TYPES.indexOf( cause.getClass() )+1;
+            buffer.writeByte( type );
+            if ( type == TYPE_BY_NAME ) writeString( buffer, cause.getClass().getName() );
+            writeString( buffer, cause.getMessage() );
+            StackTraceElement[] trace = cause.getStackTrace();
+            int traceLength = Math.min( trace.length, MAX_TRACE_ELEMENTS );
+            buffer.writeShort( traceLength );
+            for ( int i = 0; i < traceLength; i++ )
+            {
+                writeString( buffer, trace[i].getClassName() );
+                writeString( buffer, trace[i].getMethodName() );
+                writeString( buffer, trace[i].getFileName() );
+                buffer.writeInt( trace[i].getLineNumber() );
+            }
+        }
+    }
+
+    static Throwable read( ChannelBuffer buffer ) throws IOException, ClassNotFoundException
+    {
+        if ( buffer.readByte() == SERIALIZED )
+        {
+            return (Throwable) new ObjectInputStream( asInputStream( buffer ) ).readObject();
+        }
+
+        int chainLength = buffer.readUnsignedByte();
+        String[] typeNames = new String[chainLength];
+        Class<?>[] types = new Class<?>[chainLength];
+        String[] messages = new String[chainLength];
+        StackTraceElement[][] traces = new StackTraceElement[chainLength][];
+        for ( int i = 0; i < chainLength; i++ )
+        {
+            int type = buffer.readUnsignedByte();
+            if ( type == TYPE_BY_NAME ) typeNames[i] = readString( buffer );
+            else types[i] = TYPES.get( type-1 );
+            messages[i] = readString( buffer );
+            traces[i] = new StackTraceElement[buffer.readUnsignedShort()];
+            for ( int j = 0; j < traces[i].length; j++ )
+            {
+                traces[i][j] = new StackTraceElement( readString( buffer ), readString( buffer ),
+                        readString( buffer ), buffer.readInt() );
+            }
+        }
+
+        // Put it together from the innermost cause and out
+        Throwable failure = null;
+        for ( int i = chainLength-1; i >= 0; i-- )
+        {
+            if ( types[i] == null ) types[i] = loadType( typeNames[i] );
+            failure = instantiate( types[i], typeNames[i], messages[i], failure );
+            failure.setStackTrace( traces[i] );
+        }
+        return failure;
+    }
+
+    private static Class<?> loadType( String name )
+    {
+        try
+        {
+            Class<?> type = Class.forName( name, false, FailureResponse.class.getClassLoader() );
+            return Throwable.class.isAssignableFrom( type ) ? type : null;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return null;
+        }
+    }
+
+    private static Throwable instantiate( Class<?> type, String typeName, String message, Throwable cause )
+    {
+        if ( type != null )
+        {
+            // The constructors a throwable usually has, the best match first
+            Throwable result = newInstance( type, new Class<?>[] { String.class, Throwable.class }, message, cause );
+            if ( result == null ) result = newInstance( type, new Class<?>[] { String.class }, message );
+            if ( result == null && cause != null ) result = newInstance( type, new Class<?>[] { Throwable.class }, cause );
+            if ( result == null ) result = newInstance( type, new Class<?>[0] );
+            // Its constructor may decorate the message again, but the type is what callers act on
+            if ( result != null )
+            {
+                if ( cause != null && result.getCause() == null ) result.initCause( cause );
+                return result;
+            }
+            typeName = type.getName();
+        }
+        // Not a ComException since there's nothing wrong with the communication as such
+        return new RuntimeException( typeName + ": " + message, cause );
+    }
+
+    private static Throwable newInstance( Class<?> type, Class<?>[] parameterTypes, Object... arguments )
+    {
+        try
+        {
+            Constructor<?> constructor = type.getConstructor( parameterTypes );
+            return (Throwable) constructor.newInstance( arguments );
+        }
+        catch ( Exception e )
+        {   // No such constructor, or it didn't work out
+            return null;
+        }
+    }
+
+    /**
+     * Unlike a {@link org.jboss.netty.buffer.ChannelBufferInputStream} it doesn't
+     * stop at the readable bytes of the buffer, which for a
+     * {@link DechunkingChannelBuffer} are those of the chunk at hand.
+     */
+    private static InputStream asInputStream( final ChannelBuffer buffer )
+    {
+        return new InputStream()
+        {
+            @Override
+            public int read( byte[] b, int off, int len ) throws IOException
+            {
+                buffer.readBytes( b, off, len );
+                return len;
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                return buffer.readUnsignedByte();
+            }
+        };
+    }
+
+    private static void writeString( ChannelBuffer buffer, String string )
+    {
+        if ( string == null )
+        {
+            buffer.writeInt( -1 );
+            return;
+        }
+        byte[] bytes = string.getBytes( Protocol.UTF8 );
+        buffer.writeInt( bytes.length );
+        buffer.writeBytes( bytes );
+    }
+
+    private static String readString( ChannelBuffer buffer )
+    {
+        int length = buffer.readInt();
+        return length == -1 ? null : Protocol.readString( buffer, length );
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.helpers.DaemonThreadFactory;
+
+/**
+ * Runs requests in lanes, each with a bounded number of threads and a bounded
+ * number of queued requests. Requests which don't fit in the queue of their
+ * lane are rejected instead of piling up. Within a lane the queued requests
+ * are taken from one slave at a time, in turn, so that a slave with lots of
+ * requests can't starve the others.
+ * <p>
+ * Which lane a request goes to is decided by {@link #laneFor(RequestType, SlaveContext)},
+ * which is meant to be overridden to keep f.ex. lock requests, which may block
+ * for a long time, from holding up commits.
+ */
+public class FairRequestScheduler<M> implements RequestScheduler<M>
+{
+    private final Lane[] lanes;
+
+    public FairRequestScheduler( Lane... lanes )
+    {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @return the lane requests of {@code type} run in, the first one unless overridden.
+     */
+    protected Lane laneFor( RequestType<M> type )
+    {
+        return lanes[0];
+    }
+
+    /**
+     * @return the lane requests of {@code type} for {@code context} run in,
+     * {@link #laneFor(RequestType)} unless overridden.
+     */
+    protected Lane laneFor( RequestType<M> type, SlaveContext context )
+    {
+        return laneFor( type );
+    }
+
+    @Override
+    public void schedule( RequestType<M> type, SlaveContext context, Runnable job )
+    {
+        laneFor( type, context ).schedule( context.machineId(), job );
+    }
+
+    @Override
+    public void shutdown()
+    {
+        for ( Lane lane : lanes )
+        {
+            lane.workers.shutdown();
+        }
+    }
+
+    public Lane[] getLanes()
+    {
+        return lanes.clone();
+    }
+
+    public static class Lane
+    {
+        private final String name;
+        private final int maxQueued;
+        private final ThreadPoolExecutor workers;
+        // Guarded by this
+        private final Map<Integer, LinkedList<QueuedJob>> queues = new HashMap<Integer, LinkedList<QueuedJob>>();
+        // Machine ids of the slaves with queued requests, in the order they get their turn. Guarded by this
+        private final LinkedList<Integer> turns = new LinkedList<Integer>();
+        private int queued; // Guarded by this
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+        private volatile long maxWaitMillis;
+        private final Runnable runNext = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                QueuedJob job = next();
+                long waited = System.currentTimeMillis()-job.queuedAt;
+                started.incrementAndGet();
+                totalWaitMillis.addAndGet( waited );
+                if ( waited > maxWaitMillis ) maxWaitMillis = waited;
+                job.job.run();
+            }
+        };
+
+        public Lane( String name, int threads, int maxQueued )
+        {
+            this.name = name;
+            this.maxQueued = maxQueued;
+            this.workers = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory( name + "-requests" ) );
+            this.workers.allowCoreThreadTimeOut( true );
+        }
+
+        void schedule( int machineId, Runnable job )
+        {
+            synchronized ( this )
+            {
+                if ( queued >= maxQueued )
+                {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException( "Already " + queued + " requests queued in " + name );
+                }
+                LinkedList<QueuedJob> queue = queues.get( machineId );
+                if ( queue == null )
+                {
+                    queue = new LinkedList<QueuedJob>();
+                    queues.put( machineId, queue );
+                    turns.addLast( machineId );
+                }
+                queue.addLast( new QueuedJob( job ) );
+                queued++;
+            }
+            // There's one of these for every queued job, so each will find one to run
+            workers.execute( runNext );
+        }
+
+        private synchronized QueuedJob next()
+        {
+            Integer machineId = turns.removeFirst();
+            LinkedList<QueuedJob> queue = queues.get( machineId );
+            QueuedJob job = queue.removeFirst();
+            if ( queue.isEmpty() )
+            {
+                queues.remove( machineId );
+            }
+            else
+            {
+                turns.addLast( machineId );
+            }
+            queued--;
+            return job;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public synchronized int getQueued()
+        {
+            return queued;
+        }
+
+        public int getActive()
+        {
+            return workers.getActiveCount();
+        }
+
+        public long getRejected()
+        {
+            return rejected.get();
+        }
+
+        public long getAverageWaitMillis()
+        {
+            long count = started.get();
+            return count == 0 ? 0 : totalWaitMillis.get()/count;
+        }
+
+        public long getMaxWaitMillis()
+        {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + getQueued() + " queued, " + getActive() + " active, " + getRejected() +
+                    " rejected, waited " + getAverageWaitMillis() + "ms on average, " + getMaxWaitMillis() + "ms at most";
+        }
+    }
+
+    private static class QueuedJob
+    {
+        private final Runnable job;
+        private final long queuedAt = System.currentTimeMillis();
+
+        QueuedJob( Runnable job )
+        {
+            this.job = job;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+
+/**
+ * Implementation of a LogBuffer over a ChannelBuffer, used for transaction
+ * streams. It is supposed to be used with {@link LargeBlockLogReader}.
+ * <p>
+ * Content is written in blocks of variable size, up to a block size which is
+ * big enough for most transactions to fit in a single block. Each block starts
+ * with an int where the highest bit is set if more blocks follow and the rest
+ * is the number of bytes in the block. That way the end of a transaction can be
+ * found by skipping over a handful of blocks, instead of one every 255 bytes as
+ * with {@link BlockLogBuffer}.
+ * <p>
+ * An instance can be reused for several transactions, each ended with a call
+ * to {@link #done()}.
+ */
+public class LargeBlockLogBuffer implements LogBuffer
+{
+    static final int MORE_BLOCKS = 0x80000000;
+    public static final int DEFAULT_BLOCK_SIZE = 64*1024;
+    // Writes to the target in pieces of at most this size, so that they are
+    // well below the chunk size of any ChunkingChannelBuffer
+    private static final int MAX_WRITE_SIZE = 4*1024;
+
+    private final ChannelBuffer target;
+    private final ByteBuffer byteBuffer;
+
+    public LargeBlockLogBuffer( ChannelBuffer target )
+    {
+        this( target, DEFAULT_BLOCK_SIZE );
+    }
+
+    public LargeBlockLogBuffer( ChannelBuffer target, int blockSize )
+    {
+        this.target = target;
+        this.byteBuffer = ByteBuffer.allocate( blockSize );
+    }
+
+    private void makeRoomFor( int bytes )
+    {
+        if ( byteBuffer.remaining() < bytes )
+        {
+            writeBlock( true );
+        }
+    }
+
+    private void writeBlock( boolean more )
+    {
+        byteBuffer.flip();
+        target.writeInt( (more ? MORE_BLOCKS : 0) | byteBuffer.remaining() );
+        byte[] array = byteBuffer.array();
+        while ( byteBuffer.hasRemaining() )
+        {
+            int bytesToWrite = Math.min( byteBuffer.remaining(), MAX_WRITE_SIZE );
+            target.writeBytes( array, byteBuffer.position(), bytesToWrite );
+            byteBuffer.position( byteBuffer.position()+bytesToWrite );
+        }
+        byteBuffer.clear();
+    }
+
+    public LogBuffer put( byte b ) throws IOException
+    {
+        makeRoomFor( 1 );
+        byteBuffer.put( b );
+        return this;
+    }
+
+    public LogBuffer putShort( short s ) throws IOException
+    {
+        makeRoomFor( 2 );
+        byteBuffer.putShort( s );
+        return this;
+    }
+
+    public LogBuffer putInt( int i ) throws IOException
+    {
+        makeRoomFor( 4 );
+        byteBuffer.putInt( i );
+        return this;
+    }
+
+    public LogBuffer putLong( long l ) throws IOException
+    {
+        makeRoomFor( 8 );
+        byteBuffer.putLong( l );
+        return this;
+    }
+
+    public LogBuffer putFloat( float f ) throws IOException
+    {
+        makeRoomFor( 4 );
+        byteBuffer.putFloat( f );
+        return this;
+    }
+
+    public LogBuffer putDouble( double d ) throws IOException
+    {
+        makeRoomFor( 8 );
+        byteBuffer.putDouble( d );
+        return this;
+    }
+
+    public LogBuffer put( byte[] bytes ) throws IOException
+    {
+        for ( int pos = 0; pos < bytes.length; )
+        {
+            makeRoomFor( 1 );
+            int toWrite = Math.min( byteBuffer.remaining(), bytes.length - pos );
+            byteBuffer.put( bytes, pos, toWrite );
+            pos += toWrite;
+        }
+        return this;
+    }
+
+    public LogBuffer put( char[] chars ) throws IOException
+    {
+        for ( int pos = 0; pos < chars.length; )
+        {
+            makeRoomFor( 2 );
+            int toWrite = Math.min( byteBuffer.remaining() / 2, chars.length - pos );
+            byteBuffer.asCharBuffer().put( chars, pos, toWrite );
+            byteBuffer.position( byteBuffer.position() + toWrite * 2 );
+            pos += toWrite;
+        }
+        return this;
+    }
+
+    @Override
+    public void writeOut() throws IOException
+    {
+        // Do nothing
+    }
+
+    public void force() throws IOException
+    {
+        // Do nothing
+    }
+
+    public long getFileChannelPosition() throws IOException
+    {
+        throw new UnsupportedOperationException( "LargeBlockLogBuffer does not have a FileChannel" );
+    }
+
+    public FileChannel getFileChannel()
+    {
+        throw new UnsupportedOperationException( "LargeBlockLogBuffer does not have a FileChannel" );
+    }
+
+    /**
+     * Writes what's left as the last block of the current transaction.
+     * After this the buffer can be used for the next one.
+     */
+    public void done()
+    {
+        writeBlock( false );
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * The counterpart of {@link LargeBlockLogBuffer}, sits on the receiving end and
+ * reads the blocks of a transaction straight from the {@link ChannelBuffer}.
+ * <p>
+ * It never asks the source for more bytes than it has readable, except when it
+ * has none at all, since that is what makes a {@link DechunkingChannelBuffer}
+ * fetch its next chunk.
+ */
+public class LargeBlockLogReader implements ReadableByteChannel
+{
+    private final ChannelBuffer source;
+    private int bytesLeftInBlock;
+    private boolean moreBlocks;
+
+    public LargeBlockLogReader( ChannelBuffer source )
+    {
+        this.source = source;
+        readNextBlockHeader();
+    }
+
+    private void readNextBlockHeader()
+    {
+        int header = source.readInt();
+        moreBlocks = (header & LargeBlockLogBuffer.MORE_BLOCKS) != 0;
+        bytesLeftInBlock = header & ~LargeBlockLogBuffer.MORE_BLOCKS;
+    }
+
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    public void close() throws IOException
+    {
+        // This is to make sure that reader index in the ChannelBuffer is left
+        // in the right place even if this reader wasn't completely read through.
+        while ( true )
+        {
+            skip( source, bytesLeftInBlock );
+            bytesLeftInBlock = 0;
+            if ( !moreBlocks ) break;
+            readNextBlockHeader();
+        }
+    }
+
+    public int read( ByteBuffer dst ) throws IOException
+    {
+        int bytesRead = 0;
+        while ( dst.hasRemaining() )
+        {
+            if ( bytesLeftInBlock == 0 )
+            {
+                if ( !moreBlocks ) break;
+                readNextBlockHeader();
+                continue;
+            }
+
+            int readable = source.readableBytes();
+            if ( readable == 0 )
+            {
+                dst.put( source.readByte() );
+                bytesLeftInBlock--;
+                bytesRead++;
+                continue;
+            }
+            int bytesToRead = Math.min( Math.min( dst.remaining(), bytesLeftInBlock ), readable );
+            int limit = dst.limit();
+            dst.limit( dst.position()+bytesToRead );
+            source.readBytes( dst );
+            dst.limit( limit );
+            bytesLeftInBlock -= bytesToRead;
+            bytesRead += bytesToRead;
+        }
+        return bytesRead == 0 && bytesLeftInBlock == 0 && !moreBlocks ? -1 : bytesRead;
+    }
+
+    /**
+     * Moves the reader index of {@code source} past the transaction starting at
+     * its reader index, one block at a time.
+     */
+    static void skipTransaction( ChannelBuffer source )
+    {
+        int header;
+        do
+        {
+            header = source.readInt();
+            skip( source, header & ~LargeBlockLogBuffer.MORE_BLOCKS );
+        }
+        while ( (header & LargeBlockLogBuffer.MORE_BLOCKS) != 0 );
+    }
+
+    private static void skip( ChannelBuffer source, int bytes )
+    {
+        while ( bytes > 0 )
+        {
+            int bytesToSkip = Math.min( bytes, Math.max( 1, source.readableBytes() ) );
+            source.skipBytes( bytesToSkip );
+            bytes -= bytesToSkip;
+        }
+    }
+}
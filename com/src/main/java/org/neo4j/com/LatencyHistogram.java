@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with buckets laid out like in an HDR
+ * histogram: each power of two is split into {@link #SUB_BUCKETS} linear
+ * buckets, so that any duration, from nanoseconds to hours, is kept with an
+ * error of less than 1/{@link #SUB_BUCKETS}. Recording is a couple of atomic
+ * increments and never allocates. Percentiles are given as the highest
+ * duration of the bucket they fall in.
+ */
+public class LatencyHistogram
+{
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record( long nanos )
+    {
+        if ( nanos < 0 ) nanos = 0;
+        counts.incrementAndGet( bucketOf( nanos ) );
+        count.incrementAndGet();
+        totalNanos.addAndGet( nanos );
+        long max;
+        while ( nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet( max, nanos ) );
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the duration which {@code percentile} percent of the recorded
+     * ones are shorter than or equal to, or 0 if nothing has been recorded.
+     */
+    public long getNanosAtPercentile( double percentile )
+    {
+        long count = getCount();
+        if ( count == 0 ) return 0;
+        long wanted = Math.max( 1, (long) Math.ceil( count * percentile / 100 ) );
+        long seen = 0;
+        for ( int bucket = 0; bucket < BUCKETS; bucket++ )
+        {
+            seen += counts.get( bucket );
+            if ( seen >= wanted )
+            {
+                return Math.min( highestInBucket( bucket ), getMaxNanos() );
+            }
+        }
+        return getMaxNanos();
+    }
+
+    static int bucketOf( long nanos )
+    {
+        if ( nanos < SUB_BUCKETS ) return (int) nanos;
+        int exponent = 63-Long.numberOfLeadingZeros( nanos );
+        int subBucket = (int) (nanos >>> (exponent-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (exponent-SUB_BUCKET_BITS+1)*SUB_BUCKETS + subBucket;
+    }
+
+    static long highestInBucket( int bucket )
+    {
+        if ( bucket < SUB_BUCKETS ) return bucket;
+        int shift = bucket/SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket%SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
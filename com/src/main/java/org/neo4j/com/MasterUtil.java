@@ -160,107 +160,168 @@ public class MasterUtil
     }
     
     /**
-     * For a given {@link XaDataSource} it extracts the transaction stream from
-     * startTxId up to endTxId (inclusive) in the provided {@link List} and
-     * returns the {@link LogExtractor} used to create the stream.
+     * For a given {@link XaDataSource} it opens a {@link LogExtractor} for the
+     * transactions from startTxId up to endTxId (inclusive). The transactions
+     * themselves are extracted later, one at a time, as the transaction stream
+     * is written, see {@link #createTransactionStream(Collection, List)}. If
+     * the cache is enabled the log extractor isn't opened until a transaction
+     * isn't found in it.
      *
      * @param dataSource The {@link XaDataSource} from which to extract the
      *            transactions
      * @param startTxId The first tx id in the stream
      * @param endTxId The last tx id in the stream
-     * @param stream A list to contain the transaction stream - can already
-     *            contain transactions from other data sources.
-     * @return The {@link LogExtractor} used to create the transaction stream.
+     * @param filter A {@link Predicate} to apply on each txid, selecting only
+     *            those that evaluate to true
+     * @param cache The recently committed transactions
+     * @return The range of transactions to stream.
      */
-    private static LogExtractor getTransactionStreamForDatasource(
+    private static TransactionRange getTransactionStreamForDatasource(
             final XaDataSource dataSource, final long startTxId,
-            final long endTxId,
-            final List<Triplet<String, Long, TxExtractor>> stream,
-            Predicate<Long> filter )
+            final long endTxId, Predicate<Long> filter, TransactionCache cache )
     {
-        LogExtractor logExtractor = null;
-        try
+        final long masterLastTx = dataSource.getLastCommittedTxId();
+        if ( masterLastTx < endTxId )
+        {
+            throw new RuntimeException(
+                    "Was requested to extract transaction ids " + startTxId
+                            + " to " + endTxId + " from data source "
+                            + dataSource.getName()
+                            + " but largest transaction id in master is "
+                            + masterLastTx );
+        }
+        TransactionRange range = new TransactionRange( dataSource, startTxId, endTxId, filter, cache );
+        // TODO check here for startTxId >= endTxId and exit early
+        if ( !cache.isEnabled() ) range.openLogExtractor( startTxId );
+        return range;
+    }
+
+    /**
+     * Transactions of one data source to stream to a slave, along with the
+     * {@link LogExtractor} they're extracted with, if any.
+     */
+    private static class TransactionRange
+    {
+        final XaDataSource dataSource;
+        final long startTxId;
+        final long endTxId;
+        final Predicate<Long> filter;
+        final TransactionCache cache;
+        LogExtractor logExtractor;
+        // The id of the transaction the log extractor is at
+        long logTxId;
+
+        TransactionRange( XaDataSource dataSource, long startTxId, long endTxId, Predicate<Long> filter,
+                TransactionCache cache )
+        {
+            this.dataSource = dataSource;
+            this.startTxId = startTxId;
+            this.endTxId = endTxId;
+            this.filter = filter;
+            this.cache = cache;
+        }
+
+        void openLogExtractor( long fromTxId )
         {
-            final long masterLastTx = dataSource.getLastCommittedTxId();
-            if ( masterLastTx < endTxId )
-            {
-                throw new RuntimeException(
-                        "Was requested to extract transaction ids " + startTxId
-                                + " to " + endTxId + " from data source "
-                                + dataSource.getName()
-                                + " but largest transaction id in master is "
-                                + masterLastTx );
-            }
             try
             {
-                // TODO check here for startTxId >= endTxId and exit early
-                logExtractor = dataSource.getLogExtractor( startTxId, endTxId );
+                logExtractor = dataSource.getLogExtractor( fromTxId, endTxId );
+                logTxId = fromTxId;
             }
             catch ( IOException ioe )
             {
                 throw new RuntimeException( ioe );
             }
-            final LogExtractor finalLogExtractor = logExtractor;
-            for ( long txId = startTxId; txId <= endTxId; txId++ )
+        }
+
+        void close()
+        {
+            if ( logExtractor != null ) logExtractor.close();
+        }
+
+        /**
+         * @return an extractor of transaction {@code txId}, which is expected to
+         * be extracted after the ones before it. It's taken from the cache
+         * until one is missing from it, from there on from the log extractor.
+         */
+        TxExtractor extractorOf( final long txId )
+        {
+            return new TxExtractor()
             {
-                if ( filter.accept( txId ) )
+                @Override
+                public ReadableByteChannel extract()
+                {
+                    InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+                    extract( buffer );
+                    return buffer;
+                }
+
+                @Override
+                public void extract( LogBuffer buffer )
                 {
-                    final long finalTxId = txId;
-                    TxExtractor extractor = new TxExtractor()
+                    try
                     {
-                        @Override
-                        public ReadableByteChannel extract()
+                        if ( logExtractor == null )
                         {
-                            InMemoryLogBuffer buffer = new InMemoryLogBuffer();
-                            extract( buffer );
-                            return buffer;
+                            if ( cache.get( dataSource.getName(), txId, buffer ) ) return;
+                            openLogExtractor( txId );
                         }
+                        if ( !cache.isEnabled() )
+                        {
+                            extractNext( buffer );
+                            return;
+                        }
+                        InMemoryLogBuffer extracted = new InMemoryLogBuffer();
+                        extractNext( extracted );
+                        byte[] data = TransactionCache.toBytes( extracted );
+                        cache.put( dataSource.getName(), txId, data );
+                        buffer.put( data );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new RuntimeException( e );
+                    }
+                }
 
-                        @Override
-                        public void extract( LogBuffer buffer )
+                private void extractNext( LogBuffer buffer ) throws IOException
+                {
+                    // Skip past those which were filtered out, they're still in the log
+                    if ( logTxId < txId )
+                    {
+                        InMemoryLogBuffer skipped = new InMemoryLogBuffer();
+                        while ( logTxId < txId )
                         {
-                            try
-                            {
-                                long extractedTxId = finalLogExtractor.extractNext( buffer );
-                                if ( extractedTxId == -1 )
-                                {
-                                    throw new RuntimeException(
-                                            "Transaction "
-                                                    + finalTxId
-                                                    + " is missing and can't be extracted from "
-                                                    + dataSource.getName()
-                                                    + ". Was about to extract "
-                                                    + startTxId + " to "
-                                                    + endTxId );
-                                }
-                                if ( extractedTxId != finalTxId )
-                                {
-                                    throw new RuntimeException(
-                                            "Expected txId " + finalTxId
-                                                    + ", but was "
-                                                    + extractedTxId );
-                                }
-                            }
-                            catch ( IOException e )
-                            {
-                                throw new RuntimeException( e );
-                            }
+                            skipped.reset();
+                            assertExtracted( logExtractor.extractNext( skipped ), logTxId );
+                            logTxId++;
                         }
-                    };
-                    stream.add( Triplet.of( dataSource.getName(), txId,
-                            extractor ) );
+                    }
+                    assertExtracted( logExtractor.extractNext( buffer ), txId );
+                    logTxId++;
                 }
-            }
-            return logExtractor;
-        }
-        catch ( Throwable t )
-        {
-            /*
-             * If there's an error in here then close the log extractors,
-             * otherwise if we're successful the TransactionStream will close it.
-             */
-            if ( logExtractor != null ) logExtractor.close();
-            throw Exceptions.launderedException( t );
+
+                private void assertExtracted( long extractedTxId, long expectedTxId )
+                {
+                    if ( extractedTxId == -1 )
+                    {
+                        throw new RuntimeException(
+                                "Transaction "
+                                        + expectedTxId
+                                        + " is missing and can't be extracted from "
+                                        + dataSource.getName()
+                                        + ". Was about to extract "
+                                        + startTxId + " to "
+                                        + endTxId );
+                    }
+                    if ( extractedTxId != expectedTxId )
+                    {
+                        throw new RuntimeException(
+                                "Expected txId " + expectedTxId
+                                        + ", but was "
+                                        + extractedTxId );
+                    }
+                }
+            };
         }
     }
 
@@ -281,10 +342,19 @@ public class MasterUtil
     public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
             SlaveContext context, T response, Predicate<Long> filter )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
+        return packResponse( graphDb, context, response, filter, TransactionCache.NONE );
+    }
+
+    /**
+     * As {@link #packResponse(GraphDatabaseAPI, SlaveContext, Object, Predicate)},
+     * but takes the transactions from {@code cache} when they're in it.
+     */
+    public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
+            SlaveContext context, T response, Predicate<Long> filter, TransactionCache cache )
+    {
         Set<String> resourceNames = new HashSet<String>();
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
-        final List<LogExtractor> logExtractors = new ArrayList<LogExtractor>();
+        final List<TransactionRange> ranges = new ArrayList<TransactionRange>();
         try
         {
             for ( Tx txEntry : context.lastAppliedTransactions() )
@@ -298,19 +368,17 @@ public class MasterUtil
                 resourceNames.add( resourceName );
                 final long masterLastTx = dataSource.getLastCommittedTxId();
                 if ( txEntry.getTxId() >= masterLastTx ) continue;
-                LogExtractor logExtractor = getTransactionStreamForDatasource(
-                        dataSource, txEntry.getTxId() + 1, masterLastTx, stream,
-                        filter );
-                logExtractors.add( logExtractor );
+                ranges.add( getTransactionStreamForDatasource(
+                        dataSource, txEntry.getTxId() + 1, masterLastTx, filter, cache ) );
             }
             StoreId storeId = dsManager.getNeoStoreDataSource().getStoreId();
-            return new Response<T>( response, storeId, createTransactionStream( resourceNames, stream, logExtractors ),
+            return new Response<T>( response, storeId, createTransactionStream( resourceNames, ranges ),
                     ResourceReleaser.NO_OP );
         }
         catch ( Throwable t )
         {   // If there's an error in here then close the log extractors, otherwise if we're
             // successful the TransactionStream will close it.
-            for ( LogExtractor extractor : logExtractors ) extractor.close();
+            for ( TransactionRange range : ranges ) range.close();
             throw Exceptions.launderedException( t );
         }
     }
@@ -331,7 +399,16 @@ public class MasterUtil
     public static Response<Void> getTransactions( GraphDatabaseAPI graphDb,
             String dataSourceName, long startTx, long endTx )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
+        return getTransactions( graphDb, dataSourceName, startTx, endTx, TransactionCache.NONE );
+    }
+
+    /**
+     * As {@link #getTransactions(GraphDatabaseAPI, String, long, long)}, but
+     * takes the transactions from {@code cache} when they're in it.
+     */
+    public static Response<Void> getTransactions( GraphDatabaseAPI graphDb,
+            String dataSourceName, long startTx, long endTx, TransactionCache cache )
+    {
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
         final XaDataSource dataSource = dsManager.getXaDataSource( dataSourceName );
         if ( dataSource == null )
@@ -340,33 +417,53 @@ public class MasterUtil
                                         + "' found" );
         }
 
-        List<LogExtractor> extractors = startTx < endTx ? Collections.singletonList(
-                getTransactionStreamForDatasource( dataSource, startTx, endTx, stream, MasterUtil.ALL ) ) :
-                Collections.<LogExtractor>emptyList();
+        List<TransactionRange> ranges = startTx < endTx ? Collections.singletonList(
+                getTransactionStreamForDatasource( dataSource, startTx, endTx, MasterUtil.ALL, cache ) ) :
+                Collections.<TransactionRange>emptyList();
         StoreId storeId = ( (NeoStoreXaDataSource) dsManager.getXaDataSource( Config.DEFAULT_DATA_SOURCE_NAME ) ).getStoreId();
         return new Response<Void>( null, storeId, createTransactionStream(
-                        Collections.singletonList( dataSourceName ), stream,
-                        extractors ), ResourceReleaser.NO_OP );
+                        Collections.singletonList( dataSourceName ), ranges ), ResourceReleaser.NO_OP );
 
     }
 
+    /**
+     * The transactions are produced one at a time, as the stream is read, so
+     * that streaming many transactions takes no more memory than streaming one
+     * and the first of them can be sent right away.
+     */
     private static TransactionStream createTransactionStream( Collection<String> resourceNames,
-            final List<Triplet<String, Long, TxExtractor>> stream, final List<LogExtractor> logExtractors )
+            final List<TransactionRange> ranges )
     {
         return new TransactionStream( resourceNames.toArray( new String[resourceNames.size()] ) )
         {
-            private final Iterator<Triplet<String, Long, TxExtractor>> iterator = stream.iterator();
+            private final Iterator<TransactionRange> rangeIterator = ranges.iterator();
+            private TransactionRange range;
+            private long nextTxId;
 
             @Override
             protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
             {
-                return iterator.hasNext() ? iterator.next() : null;
+                for ( ;; )
+                {
+                    if ( range == null || nextTxId > range.endTxId )
+                    {
+                        if ( !rangeIterator.hasNext() ) return null;
+                        range = rangeIterator.next();
+                        nextTxId = range.startTxId;
+                        continue;
+                    }
+                    long txId = nextTxId++;
+                    if ( range.filter.accept( txId ) )
+                    {
+                        return Triplet.of( range.dataSource.getName(), txId, range.extractorOf( txId ) );
+                    }
+                }
             }
 
             @Override
             public void close()
             {
-                for ( LogExtractor extractor : logExtractors ) extractor.close();
+                for ( TransactionRange range : ranges ) range.close();
             }
         };
     }
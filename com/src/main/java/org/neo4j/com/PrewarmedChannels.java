@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.net.SocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * Channels to a server, connected in the background so that they're ready
+ * when a {@link Client} needs a new one. A number of channels are kept
+ * connected ahead of time, and whoever asks for a channel when there's none
+ * ready waits for one to be connected. Connecting never happens on the
+ * thread which asks for a channel.
+ * <p>
+ * When connecting fails it's tried again after a while, which doubles with
+ * every failure in a row, from {@link #MIN_BACKOFF_MILLIS} up to
+ * {@link #MAX_BACKOFF_MILLIS}. Asking for a channel while waiting to try
+ * again fails right away instead of waiting, since the server has just been
+ * seen to be unreachable.
+ */
+class PrewarmedChannels
+{
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final ClientBootstrap bootstrap;
+    private final SocketAddress address;
+    private final int channels;
+    private final Timer timer;
+    private final StringLogger msgLog;
+
+    // All guarded by this
+    private final LinkedList<Channel> ready = new LinkedList<Channel>();
+    private int connecting;
+    private int waiting;
+    private int failures;
+    private Throwable lastFailure;
+    private boolean backingOff;
+    private boolean closed;
+
+    /**
+     * @param channels number of channels to keep connected ahead of time.
+     * @param timer timer which connecting is tried again on after a failure.
+     */
+    PrewarmedChannels( ClientBootstrap bootstrap, SocketAddress address, int channels, Timer timer,
+            StringLogger msgLog )
+    {
+        this.bootstrap = bootstrap;
+        this.address = address;
+        this.channels = channels;
+        this.timer = timer;
+        this.msgLog = msgLog;
+    }
+
+    /**
+     * Starts connecting the channels to keep ready.
+     */
+    synchronized void start()
+    {
+        connectMore();
+    }
+
+    /**
+     * @return a connected channel, waiting at most {@code timeoutMillis} for
+     * one to be connected if there's none ready.
+     * @throws ComException if no channel could be connected.
+     */
+    synchronized Channel take( long timeoutMillis )
+    {
+        long deadline = System.currentTimeMillis()+timeoutMillis;
+        int failuresBefore = failures;
+        waiting++;
+        try
+        {
+            for ( ;; )
+            {
+                if ( closed ) throw new ComException( "Client to " + address + " has been shut down" );
+                Channel channel = pollConnected();
+                if ( channel != null ) return channel;
+                if ( backingOff || failures > failuresBefore )
+                {
+                    throw new ComException( "Client could not connect to " + address, lastFailure );
+                }
+                connectMore();
+                long waitMillis = deadline-System.currentTimeMillis();
+                if ( waitMillis <= 0 )
+                {
+                    throw new ComException( "Client could not connect to " + address + " within " +
+                            timeoutMillis + "ms" );
+                }
+                wait( waitMillis );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            throw new ComException( "Interrupted while waiting for a channel to " + address, e );
+        }
+        finally
+        {
+            waiting--;
+            connectMore();
+        }
+    }
+
+    /**
+     * Closes the channels which are ready and those still connecting.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        for ( Channel channel : ready )
+        {
+            channel.close();
+        }
+        ready.clear();
+        notifyAll();
+    }
+
+    synchronized int getReadyChannels()
+    {
+        return ready.size();
+    }
+
+    private Channel pollConnected()
+    {
+        for ( Channel channel; (channel = ready.poll()) != null; )
+        {
+            if ( channel.isConnected() ) return channel;
+        }
+        return null;
+    }
+
+    /**
+     * Starts connecting channels until there are, or soon will be, enough of
+     * them for those waiting and to keep ready, unless waiting to try again
+     * after a failure.
+     */
+    private void connectMore()
+    {
+        while ( !closed && !backingOff && ready.size()+connecting < channels+waiting )
+        {
+            connecting++;
+            bootstrap.connect( address ).addListener( new ChannelFutureListener()
+            {
+                @Override
+                public void operationComplete( ChannelFuture future )
+                {
+                    connected( future );
+                }
+            } );
+        }
+    }
+
+    private synchronized void connected( ChannelFuture future )
+    {
+        connecting--;
+        if ( future.isSuccess() )
+        {
+            failures = 0;
+            lastFailure = null;
+            if ( closed )
+            {
+                future.getChannel().close();
+                return;
+            }
+            msgLog.logMessage( "Opened a new channel to " + address, true );
+            ready.add( future.getChannel() );
+        }
+        else
+        {
+            failures++;
+            lastFailure = future.getCause();
+            if ( !closed && !backingOff )
+            {
+                long backoffMillis = Math.min( MIN_BACKOFF_MILLIS << Math.min( failures-1, 16 ), MAX_BACKOFF_MILLIS );
+                msgLog.logMessage( "Client could not connect to " + address + ", trying again in " +
+                        backoffMillis + "ms", true );
+                backingOff = true;
+                timer.newTimeout( new TimerTask()
+                {
+                    @Override
+                    public void run( Timeout timeout )
+                    {
+                        tryAgain();
+                    }
+                }, backoffMillis, TimeUnit.MILLISECONDS );
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void tryAgain()
+    {
+        backingOff = false;
+        connectMore();
+    }
+}
@@ -21,6 +21,8 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -32,6 +34,7 @@ public abstract class Protocol
     public static final int PORT = 8901;
     public static final int MEGA = 1024 * 1024;
     public static final int DEFAULT_FRAME_LENGTH = 16*MEGA;
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
 
     public static final ObjectSerializer<Integer> INTEGER_SERIALIZER = new ObjectSerializer<Integer>()
     {
@@ -91,13 +94,76 @@ public abstract class Protocol
             while ( 0 != ( pathLength = buffer.readUnsignedShort() ) )
             {
                 String path = readString( buffer, pathLength );
-                boolean hasData = buffer.readByte() == 1;
-                writer.write( path, hasData ? new BlockLogReader( buffer ) : null, temporaryBuffer, hasData );
+                long length = buffer.readLong();
+                FileContentReader content = length > 0 ? new FileContentReader( buffer, length ) : null;
+                writer.write( path, content, temporaryBuffer, length > 0 );
+                if ( content != null ) content.close();
             }
             writer.done();
             return null;
         }
     };
+
+    /**
+     * Reads the {@code length} bytes of file content written by {@link ToNetworkStoreWriter}.
+     * Never asks the source for more than it has readable, except when it has nothing
+     * readable at all, since that is what makes a chunked source fetch its next chunk.
+     */
+    private static class FileContentReader implements ReadableByteChannel
+    {
+        private final ChannelBuffer source;
+        private long left;
+
+        FileContentReader( ChannelBuffer source, long length )
+        {
+            this.source = source;
+            this.left = length;
+        }
+
+        public int read( ByteBuffer dst ) throws IOException
+        {
+            if ( left == 0 )
+            {
+                return -1;
+            }
+            int bytesRead = 0;
+            while ( left > 0 && dst.hasRemaining() )
+            {
+                int readable = source.readableBytes();
+                if ( readable == 0 )
+                {
+                    dst.put( source.readByte() );
+                    bytesRead++;
+                    left--;
+                    continue;
+                }
+                int bytesToRead = (int) Math.min( Math.min( dst.remaining(), left ), readable );
+                int limit = dst.limit();
+                dst.limit( dst.position()+bytesToRead );
+                source.readBytes( dst );
+                dst.limit( limit );
+                bytesRead += bytesToRead;
+                left -= bytesToRead;
+            }
+            return bytesRead;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close() throws IOException
+        {
+            // Leave the source positioned after this file even if it wasn't read through
+            while ( left > 0 )
+            {
+                int bytesToSkip = (int) Math.min( left, Math.max( 1, source.readableBytes() ) );
+                source.skipBytes( bytesToSkip );
+                left -= bytesToSkip;
+            }
+        }
+    }
     
     public static void addLengthFieldPipes( ChannelPipeline pipeline, int frameLength )
     {
@@ -106,25 +172,40 @@ public abstract class Protocol
         pipeline.addLast( "frameEncoder", new LengthFieldPrepender( 4 ) );
     }
 
+    /**
+     * Writes {@code name} as its UTF-8 encoded length and bytes. If {@code buffer}
+     * has a {@link StringDictionary} and {@code name} has been written through it
+     * before then only a negative id is written instead.
+     */
     public static void writeString( ChannelBuffer buffer, String name )
     {
-        char[] chars = name.toCharArray();
-        buffer.writeInt( chars.length );
-        writeChars( buffer, chars );
-    }
-
-    public static void writeChars( ChannelBuffer buffer, char[] chars )
-    {
-        // TODO optimize?
-        for ( char ch : chars )
+        StringDictionary dictionary = StringDictionary.of( buffer );
+        if ( dictionary != null )
         {
-            buffer.writeChar( ch );
+            int id = dictionary.idOfWritten( name );
+            if ( id != StringDictionary.UNKNOWN )
+            {
+                buffer.writeInt( -1-id );
+                return;
+            }
         }
+        byte[] bytes = name.getBytes( UTF8 );
+        buffer.writeInt( bytes.length );
+        buffer.writeBytes( bytes );
     }
 
     public static String readString( ChannelBuffer buffer )
     {
-        return readString( buffer, buffer.readInt() );
+        int length = buffer.readInt();
+        StringDictionary dictionary = StringDictionary.of( buffer );
+        if ( length < 0 )
+        {
+            if ( dictionary == null ) throw new ComException( "Got a string id, but have no dictionary" );
+            return dictionary.readById( -1-length );
+        }
+        String result = readString( buffer, length );
+        if ( dictionary != null ) dictionary.read( result );
+        return result;
     }
 
     public static boolean readBoolean( ChannelBuffer buffer )
@@ -138,13 +219,13 @@ public abstract class Protocol
         }
     }
     
+    /**
+     * Reads a string of {@code length} UTF-8 encoded bytes, bypassing any dictionary.
+     */
     public static String readString( ChannelBuffer buffer, int length )
     {
-        char[] chars = new char[length];
-        for ( int i = 0; i < length; i++ )
-        {
-            chars[i] = buffer.readChar();
-        }
-        return new String( chars );
+        byte[] bytes = new byte[length];
+        buffer.readBytes( bytes );
+        return new String( bytes, UTF8 );
     }
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides which thread runs the master call of each request a {@link Server}
+ * gets, and when.
+ */
+public interface RequestScheduler<M>
+{
+    /**
+     * Schedules {@code job}, the master call for a request of {@code type} from
+     * the slave in {@code context}, to be run at some point.
+     *
+     * @throws RejectedExecutionException if the request can't be accepted,
+     * f.ex. because too many requests are queued already.
+     */
+    void schedule( RequestType<M> type, SlaveContext context, Runnable job );
+
+    void shutdown();
+}
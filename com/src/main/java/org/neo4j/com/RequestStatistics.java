@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latencies and bytes of the requests a {@link Server} serves, or a
+ * {@link Client} sends, per {@link RequestType}. The time of each request is
+ * split into the {@link Phase phases} it goes through, each with a
+ * {@link LatencyHistogram} of its own.
+ * <p>
+ * A request is timed with a {@link Timer} from {@link #start(RequestType)}.
+ * When disabled, see {@link #setEnabled(boolean)}, the timers do nothing at all,
+ * not even read the clock.
+ */
+public class RequestStatistics
+{
+    public enum Phase
+    {
+        /**
+         * On the server from the request having been read until a thread picks
+         * it up, on the client waiting for a channel to send it over.
+         */
+        QUEUEING,
+        /**
+         * On the server calling the master, on the client from the request
+         * having been sent until the response starts coming back.
+         */
+        MASTER_CALL,
+        /**
+         * Writing the response on the server, writing the request and reading
+         * the response on the client. Doesn't include {@link #NETWORK_WRITE}.
+         */
+        SERIALIZATION,
+        /**
+         * Handing chunks over to the channel, including waiting for earlier
+         * chunks to drain, see {@link WriteAheadWindow}.
+         */
+        NETWORK_WRITE;
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>( 256 );
+    private volatile boolean enabled = true;
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled( boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts timing a request of {@code type}, in its {@link Phase#QUEUEING} phase.
+     */
+    public Timer start( RequestType<?> type )
+    {
+        return enabled ? new Timer( entry( type ) ) : Timer.DISABLED;
+    }
+
+    private Entry entry( RequestType<?> type )
+    {
+        int index = type.id() & 0xFF;
+        Entry entry = entries.get( index );
+        if ( entry == null )
+        {
+            entries.compareAndSet( index, null, new Entry( type.toString() ) );
+            entry = entries.get( index );
+        }
+        return entry;
+    }
+
+    /**
+     * @return the request types which there have been requests of.
+     */
+    public Entry[] getEntries()
+    {
+        List<Entry> result = new ArrayList<Entry>();
+        for ( int i = 0; i < entries.length(); i++ )
+        {
+            Entry entry = entries.get( i );
+            if ( entry != null ) result.add( entry );
+        }
+        return result.toArray( new Entry[result.size()] );
+    }
+
+    public static class Entry
+    {
+        private final String name;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+
+        Entry( String name )
+        {
+            this.name = name;
+            for ( int i = 0; i < histograms.length; i++ )
+            {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getRequests()
+        {
+            return histograms[0].getCount();
+        }
+
+        public LatencyHistogram getHistogram( Phase phase )
+        {
+            return histograms[phase.ordinal()];
+        }
+
+        public long getBytesIn()
+        {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut()
+        {
+            return bytesOut.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder( name ).append( ": " ).append( getRequests() )
+                    .append( " requests, " ).append( getBytesIn() ).append( " bytes in, " )
+                    .append( getBytesOut() ).append( " bytes out" );
+            for ( Phase phase : PHASES )
+            {
+                LatencyHistogram histogram = getHistogram( phase );
+                result.append( ", " ).append( phase.name().toLowerCase() )
+                        .append( " mean/p50/p99/max " ).append( micros( histogram.getMeanNanos() ) )
+                        .append( "/" ).append( micros( histogram.getNanosAtPercentile( 50 ) ) )
+                        .append( "/" ).append( micros( histogram.getNanosAtPercentile( 99 ) ) )
+                        .append( "/" ).append( micros( histogram.getMaxNanos() ) ).append( " us" );
+            }
+            return result.toString();
+        }
+
+        private static long micros( long nanos )
+        {
+            return TimeUnit.NANOSECONDS.toMicros( nanos );
+        }
+    }
+
+    /**
+     * Times the phases of one request. Each {@link #lap(Phase)} ends the phase
+     * which started where the previous lap, or the timer, did and adds its time
+     * to the given phase. The request is recorded on the first
+     * {@link #done(long, long)}. Not thread safe, a timer is meant to follow
+     * its request around.
+     */
+    public static class Timer
+    {
+        static final Timer DISABLED = new Timer( null );
+
+        private final Entry entry;
+        private final long[] nanos = new long[PHASES.length];
+        private long lapStart;
+        private long accountedWriteNanos;
+        private boolean done;
+
+        private Timer( Entry entry )
+        {
+            this.entry = entry;
+            this.lapStart = entry != null ? System.nanoTime() : 0;
+        }
+
+        public void lap( Phase phase )
+        {
+            lap( phase, null );
+        }
+
+        /**
+         * Like {@link #lap(Phase)}, but whatever part of the lap {@code output}
+         * spent writing chunks goes to {@link Phase#NETWORK_WRITE} instead.
+         */
+        public void lap( Phase phase, ChunkingChannelBuffer output )
+        {
+            if ( entry == null ) return;
+            long now = System.nanoTime();
+            long lap = now-lapStart;
+            lapStart = now;
+            if ( output != null )
+            {
+                long writeNanos = output.getWriteNanos()-accountedWriteNanos;
+                accountedWriteNanos = output.getWriteNanos();
+                writeNanos = Math.min( writeNanos, lap );
+                nanos[Phase.NETWORK_WRITE.ordinal()] += writeNanos;
+                lap -= writeNanos;
+            }
+            nanos[phase.ordinal()] += lap;
+        }
+
+        public void done( long bytesIn, long bytesOut )
+        {
+            if ( entry == null || done ) return;
+            done = true;
+            for ( int i = 0; i < nanos.length; i++ )
+            {
+                entry.histograms[i].record( nanos[i] );
+            }
+            entry.bytesIn.addAndGet( bytesIn );
+            entry.bytesOut.addAndGet( bytesOut );
+        }
+    }
+}
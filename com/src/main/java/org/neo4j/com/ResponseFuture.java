@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+/**
+ * A {@link Response} which may not have arrived yet, as returned from the
+ * asynchronous requests of a {@link Client}. {@link #get()} must be called
+ * for every future, and {@link Response#close()} on what it returns, or the
+ * resources of the request won't be released.
+ */
+public abstract class ResponseFuture<T>
+{
+    /**
+     * @return whether or not all of the response has arrived, so that
+     * {@link #get()} won't have to wait for it.
+     */
+    public abstract boolean isDone();
+
+    /**
+     * Waits for the response if needed and deserializes it. Each chunk is
+     * waited for at most the read timeout of the request.
+     *
+     * @return the response, the same one if called more than once.
+     * @throws ComException if the response couldn't be read, or whatever
+     * exception the server responded with.
+     */
+    public abstract Response<T> get();
+
+    static <T> ResponseFuture<T> of( final Response<T> response )
+    {
+        return new ResponseFuture<T>()
+        {
+            @Override
+            public boolean isDone()
+            {
+                return true;
+            }
+
+            @Override
+            public Response<T> get()
+            {
+                return response;
+            }
+        };
+    }
+}
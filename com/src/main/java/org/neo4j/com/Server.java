@@ -19,17 +19,17 @@
  */
 package org.neo4j.com;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -39,6 +39,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -49,7 +50,11 @@ import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.neo4j.com.RequestStatistics.Phase;
 import org.neo4j.com.SlaveContext.Tx;
+import org.neo4j.helpers.DaemonThreadFactory;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.Pair;
 import org.neo4j.helpers.Triplet;
@@ -67,25 +72,44 @@ import static org.neo4j.com.DechunkingChannelBuffer.*;
  */
 public abstract class Server<M, R> extends Protocol implements ChannelPipelineFactory
 {
-    static final byte INTERNAL_PROTOCOL_VERSION = 2;
+    /* Version 2 store files streamed in blocks of BlockLogBuffer
+     * Version 3 since 2026-10-18: store files streamed length prefixed, possibly
+     * as file regions, and transactions in blocks of LargeBlockLogBuffer. Response
+     * chunks optionally compressed, flagged in the header. Strings UTF-8 encoded,
+     * repeated ones referred to by id. Failures written compactly, see
+     * FailureResponse. Slave contexts flag whether the master should begin their
+     * transaction. */
+    static final byte INTERNAL_PROTOCOL_VERSION = 3;
     public static final int DEFAULT_BACKUP_PORT = 6362;
     
     // It's ok if there are more transactions, since these worker threads doesn't
     // do any actual work themselves, but spawn off other worker threads doing the
     // actual work. So this is more like a core Netty I/O pool worker size.
     public final static int DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS = 200;
+    // For the default scheduler, which runs all requests in the same lane
+    public final static int DEFAULT_MAX_CONCURRENT_MASTER_CALLS = 200;
+    public final static int DEFAULT_MAX_QUEUED_MASTER_CALLS = 2000;
+    public final static long DEFAULT_MAX_PARTIAL_REQUEST_BYTES_PER_CHANNEL = 64*1024*1024;
 
     private final ChannelFactory channelFactory;
     private final ServerBootstrap bootstrap;
     private M realMaster;
     private final ChannelGroup channelGroup;
-    private final Map<Channel, Pair<SlaveContext, AtomicLong /*time last heard of*/>> connectedSlaveChannels =
-            new HashMap<Channel, Pair<SlaveContext,AtomicLong>>();
+    // A channel can have more than one request in flight if the client multiplexes its requests
+    private final ConnectedSlaveChannels connectedSlaveChannels;
     private final ExecutorService executor;
-    private final ExecutorService masterCallExecutor;
+    private final RequestScheduler<M> requestScheduler;
     private final StringLogger msgLog;
-    private final Map<Channel, PartialRequest> partialRequests =
-            Collections.synchronizedMap( new HashMap<Channel, PartialRequest>() );
+    private final Map<Pair<Channel, Integer/*correlation id*/>, PartialRequest> partialRequests =
+            new ConcurrentHashMap<Pair<Channel, Integer>, PartialRequest>();
+    private final ChannelLocal<AtomicLong> partialRequestBytes = new ChannelLocal<AtomicLong>()
+    {
+        @Override
+        protected AtomicLong initialValue( Channel channel )
+        {
+            return new AtomicLong();
+        }
+    };
     private final int frameLength;
     private volatile boolean shuttingDown;
     
@@ -95,15 +119,30 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
     
     // This is because there's a bug in Netty causing some channelClosed/channelDisconnected
     // events to not be sent. This is merely a safety net to catch the remained of the closed
-    // channels that netty doesn't tell us about.
-    private final ScheduledExecutorService silentChannelExecutor;
+    // channels that netty doesn't tell us about. Each channel with requests in flight has
+    // a watch on a timing wheel, see ConnectedSlaveChannels.
+    private final Timer silentChannelTimer;
 
     private final byte applicationProtocolVersion;
     private final int oldChannelThresholdMillis;
     private TxChecksumVerifier txVerifier;
+    private final ChannelBufferPool bufferPool = new ChannelBufferPool( ChannelBufferPool.DEFAULT_MAX_POOLED_BYTES, false );
+    private final RequestStatistics requestStatistics = new RequestStatistics();
     
     public Server( M realMaster, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
             int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier )
+    {
+        this( realMaster, port, logger, frameLength, applicationProtocolVersion, maxNumberOfConcurrentTransactions,
+                oldChannelThreshold, txVerifier, null );
+    }
+
+    /**
+     * @param requestScheduler runs the master calls, or {@code null} for the
+     * one from {@link #createRequestScheduler()}.
+     */
+    public Server( M realMaster, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
+            int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier,
+            RequestScheduler<M> requestScheduler )
     {
         this.realMaster = realMaster;
         this.frameLength = frameLength;
@@ -112,12 +151,14 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         this.txVerifier = txVerifier;
         this.oldChannelThresholdMillis = oldChannelThreshold*1000;
         executor = Executors.newCachedThreadPool();
-        masterCallExecutor = Executors.newCachedThreadPool();
+        this.requestScheduler = requestScheduler != null ? requestScheduler : createRequestScheduler();
         unfinishedTransactionExecutor = Executors.newScheduledThreadPool( 2 );
         channelFactory = new NioServerSocketChannelFactory(
                 executor, executor, maxNumberOfConcurrentTransactions );
-        silentChannelExecutor = Executors.newSingleThreadScheduledExecutor();
-        silentChannelExecutor.scheduleWithFixedDelay( silentChannelFinisher(), 5, 5, TimeUnit.SECONDS );
+        silentChannelTimer = new HashedWheelTimer( new DaemonThreadFactory( getClass().getSimpleName() + "-silent-channels" ),
+                1, TimeUnit.SECONDS );
+        connectedSlaveChannels = new ConnectedSlaveChannels( silentChannelTimer, oldChannelThresholdMillis,
+                silentChannelFinisher() );
         bootstrap = new ServerBootstrap( channelFactory );
         bootstrap.setPipelineFactory( this );
         
@@ -137,44 +178,101 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         msgLog.logMessage( getClass().getSimpleName() + " communication server started and bound to " + port, true );
     }
 
-    private Runnable silentChannelFinisher()
+    /**
+     * Called from the constructor to create the scheduler which runs the master
+     * calls, unless one is given to it. By default all requests go in one lane with a bounded number of
+     * threads and queued requests.
+     */
+    protected RequestScheduler<M> createRequestScheduler()
     {
-        // This poller is here because sometimes Netty doesn't tell us when channels are
-        // closed or disconnected. Most of the time it does, but this acts as a safety
-        // net for those we don't get notifications for. When the bug is fixed remove this.
-        return new Runnable()
+        return new FairRequestScheduler<M>( new FairRequestScheduler.Lane( getClass().getSimpleName(),
+                DEFAULT_MAX_CONCURRENT_MASTER_CALLS, DEFAULT_MAX_QUEUED_MASTER_CALLS ) );
+    }
+
+    public RequestScheduler<M> getRequestScheduler()
+    {
+        return requestScheduler;
+    }
+
+    private ConnectedSlaveChannels.SilentChannelHandler silentChannelFinisher()
+    {
+        return new ConnectedSlaveChannels.SilentChannelHandler()
         {
             @Override
-            public void run()
+            public void channelWentSilent( Channel channel, long silentMillis )
             {
-                Map<Channel, Boolean/*starting to get old?*/> channels = new HashMap<Channel, Boolean>();
-                synchronized ( connectedSlaveChannels )
-                {
-                    for ( Map.Entry<Channel, Pair<SlaveContext, AtomicLong>> channel : connectedSlaveChannels.entrySet() )
-                    {   // Has this channel been silent for a while?
-                        long age = System.currentTimeMillis()-channel.getValue().other().get();
-                        if ( age > oldChannelThresholdMillis )
-                        {
-                            msgLog.logMessage( "Found a silent channel " + channel + ", " + age );
-                            channels.put( channel.getKey(), Boolean.TRUE );
-                        }
-                        else if ( age > oldChannelThresholdMillis/2 )
-                        {   // Then add it to a list to check
-                            channels.put( channel.getKey(), Boolean.FALSE );
-                        }
-                    }
-                }
-                for ( Map.Entry<Channel, Boolean> channel : channels.entrySet() )
+                if ( silentMillis > oldChannelThresholdMillis )
                 {
-                    if ( channel.getValue() || !channel.getKey().isOpen() || !channel.getKey().isConnected() || !channel.getKey().isBound() )
-                    {
-                        tryToFinishOffChannel( channel.getKey() );
-                    }
+                    msgLog.logMessage( "Found a silent channel " + channel + ", " + silentMillis );
                 }
+                submitSilent( unfinishedTransactionExecutor, channelFinisher( channel ) );
             }
         };
     }
-    
+
+    private Runnable channelFinisher( final Channel channel )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                tryToFinishOffChannel( channel );
+            }
+        };
+    }
+
+    /**
+     * Whether or not the response to a request of {@code type} should have its
+     * chunks compressed. The client knows per chunk whether or not it was
+     * compressed so this can be decided on the server side alone. Worth it
+     * for bulk data, like transaction and store streams, over slow links.
+     * Small responses aren't compressed either way.
+     */
+    protected boolean shouldCompressResponse( RequestType<M> type )
+    {
+        return false;
+    }
+
+    /**
+     * The most bytes of multi-chunk requests that may be received over one
+     * channel, but not yet handled. Multiplexed channels may have many of
+     * them going. This caps how much memory one slave can tie up on the
+     * master by sending big transactions.
+     */
+    protected long getMaxPartialRequestBytesPerChannel()
+    {
+        return DEFAULT_MAX_PARTIAL_REQUEST_BYTES_PER_CHANNEL;
+    }
+
+    /**
+     * Whether or not failures should be sent back to clients with Java
+     * serialization, complete with all causes and stack traces, instead of
+     * compactly with capped traces. It's costly and meant for debugging.
+     */
+    protected boolean shouldSerializeFailures()
+    {
+        return false;
+    }
+
+    /**
+     * @return the pool which request and response buffers are leased from,
+     * exposed for monitoring.
+     */
+    public ChannelBufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * @return latencies and bytes of the requests served, per request type,
+     * exposed for monitoring.
+     */
+    public RequestStatistics getRequestStatistics()
+    {
+        return requestStatistics;
+    }
+
     /**
      * Only exposed so that tests can control it. It's not configurable really.
      */
@@ -217,7 +315,9 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         {
             if ( !ctx.getChannel().isOpen() )
             {
+                dropPartialRequests( ctx.getChannel() );
                 tryToFinishOffChannel( ctx.getChannel() );
+                logWriteStalls( ctx.getChannel() );
             }
         }
 
@@ -239,18 +339,37 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         }
     }
     
-    protected void tryToFinishOffChannel( Channel channel )
+    private void logWriteStalls( Channel channel )
+    {
+        WriteAheadWindow window = WriteAheadWindow.of( channel );
+        if ( window.stalls() > 0 )
+        {
+            msgLog.logMessage( "Writes to " + channel + " had to wait for it to catch up " + window.stalls() +
+                    " times, for " + window.stallMillis() + "ms in total" );
+        }
+    }
+
+    private void dropPartialRequests( Channel channel )
     {
-        Pair<SlaveContext, AtomicLong> slave = null;
-        synchronized ( connectedSlaveChannels )
+        for ( Pair<Channel, Integer> requestKey : partialRequests.keySet() )
         {
-            slave = connectedSlaveChannels.remove( channel );
+            if ( requestKey.first() != channel ) continue;
+            PartialRequest partialRequest = partialRequests.remove( requestKey );
+            if ( partialRequest != null ) partialRequest.release();
         }
-        if ( slave == null )
+    }
+
+    protected void tryToFinishOffChannel( Channel channel )
+    {
+        Collection<SlaveContext> slaves = connectedSlaveChannels.remove( channel );
+        if ( slaves == null )
         {
             return;
         }
-        tryToFinishOffChannel( channel, slave.first() );
+        for ( SlaveContext slave : slaves )
+        {
+            tryToFinishOffChannel( channel, slave );
+        }
     }
 
     protected void tryToFinishOffChannel( Channel channel, SlaveContext slave )
@@ -319,86 +438,118 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         };
     }
 
-    protected void handleRequest( ChannelBuffer buffer, final Channel channel ) throws IOException
+    protected void handleRequest( ChannelBuffer chunk, final Channel channel ) throws IOException
     {
-        Byte continuation = readContinuationHeader( buffer, channel );
+        int chunkBytes = chunk.readableBytes();
+        int correlationId = ChunkingChannelBuffer.peekCorrelationId( chunk );
+        Byte continuation = readContinuationHeader( chunk, channel, correlationId );
         if ( continuation == null ) return;
+        // Strings of requests over a multiplexed channel can't go through a dictionary,
+        // since there's no telling in which order they will be read
+        StringDictionary dictionary = correlationId == ChunkingChannelBuffer.NO_CORRELATION_ID ?
+                StringDictionary.of( channel ) : null;
+        ChannelBuffer buffer = withDictionary( chunk, dictionary );
+        Pair<Channel, Integer> requestKey = Pair.of( channel, correlationId );
         if ( continuation == ChunkingChannelBuffer.CONTINUATION_MORE )
         {
-            PartialRequest partialRequest = partialRequests.get( channel );
+            PartialRequest partialRequest = partialRequests.get( requestKey );
             if ( partialRequest == null )
             {
                 // This is the first chunk in a multi-chunk request
                 RequestType<M> type = getRequestContext( buffer.readByte() );
                 SlaveContext context = readContext( buffer );
-                ChannelBuffer targetBuffer = mapSlave( channel, context, type );
-                partialRequest = new PartialRequest( type, context, targetBuffer );
-                partialRequests.put( channel, partialRequest );
+                mapSlave( channel, context, type );
+                partialRequest = new PartialRequest( type, context, channel );
+                partialRequests.put( requestKey, partialRequest );
             }
-            partialRequest.add( buffer );
+            partialRequest.add( chunk.slice( buffer.readerIndex(), buffer.readableBytes() ), chunkBytes );
         }
         else
         {
-            PartialRequest partialRequest = partialRequests.remove( channel );
+            PartialRequest partialRequest = partialRequests.remove( requestKey );
             RequestType<M> type = null;
             SlaveContext context = null;
-            ChannelBuffer targetBuffer;
             ChannelBuffer bufferToReadFrom = null;
-            ChannelBuffer bufferToWriteTo = null;
+            long requestBytes = chunkBytes;
             if ( partialRequest == null )
             {
                 // This is the one and single chunk in the request
                 type = getRequestContext( buffer.readByte() );
                 context = readContext( buffer );
-                targetBuffer = mapSlave( channel, context, type );
+                mapSlave( channel, context, type );
                 bufferToReadFrom = buffer;
-                bufferToWriteTo = targetBuffer;
             }
             else
             {
                 // This is the last chunk in a multi-chunk request
                 type = partialRequest.type;
                 context = partialRequest.context;
-                targetBuffer = partialRequest.buffer;
-                partialRequest.add( buffer );
-                bufferToReadFrom = targetBuffer;
-                bufferToWriteTo = ChannelBuffers.dynamicBuffer();
+                partialRequest.add( chunk.slice( buffer.readerIndex(), buffer.readableBytes() ), chunkBytes );
+                requestBytes = partialRequest.receivedBytes;
+                bufferToReadFrom = withDictionary( partialRequest.buffer(), dictionary );
             }
+            RequestStatistics.Timer timer = requestStatistics.start( type );
 
-            bufferToWriteTo.clear();
-            final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( bufferToWriteTo, channel, frameLength,
-                    getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( masterCallExecutor, masterCaller( type, channel, context, chunkingBuffer, bufferToReadFrom ) );
+            final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( null, bufferPool, channel, frameLength,
+                    getInternalProtocolVersion(), applicationProtocolVersion, correlationId, shouldCompressResponse( type ) );
+            try
+            {
+                if ( partialRequest != null && partialRequest.isDiscarded() )
+                {
+                    throw new RejectedExecutionException( "More than " + getMaxPartialRequestBytesPerChannel() +
+                            " bytes of requests in flight over " + channel );
+                }
+                requestScheduler.schedule( type, context, masterCaller( type, channel, context, chunkingBuffer,
+                        bufferToReadFrom, partialRequest, timer, requestBytes ) );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                if ( partialRequest != null ) partialRequest.release();
+                unmapSlave( channel, context );
+                // Not expected to be answered if we're shutting down
+                if ( shuttingDown ) return;
+                // Overloaded, let the slave know right away instead of leaving it waiting.
+                // Deliberately not a ComException since the master is alive and well.
+                chunkingBuffer.clear( true );
+                writeFailureResponse( e, chunkingBuffer );
+            }
         }
     }
 
-    private Byte readContinuationHeader( ChannelBuffer buffer, final Channel channel )
+    private static ChannelBuffer withDictionary( ChannelBuffer buffer, StringDictionary dictionary )
+    {
+        return dictionary != null ? new StringDictionary.DictionaryChannelBuffer( buffer, dictionary ) : buffer;
+    }
+
+    private Byte readContinuationHeader( ChannelBuffer buffer, final Channel channel, int correlationId )
     {
         byte[] header = new byte[2];
         buffer.readBytes( header );
+        if ( correlationId != ChunkingChannelBuffer.NO_CORRELATION_ID ) buffer.skipBytes( 4 );
         try
         {   // Read request header and assert correct internal/application protocol version
             assertSameProtocolVersion( header, getInternalProtocolVersion(), applicationProtocolVersion );
         }
-        catch ( final IllegalProtocolVersionException e )
+        catch ( IllegalProtocolVersionException e )
         {   // Version mismatch, fail with a good exception back to the client
-            final ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer( ChannelBuffers.dynamicBuffer(), channel,
-                    frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( masterCallExecutor, new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    writeFailureResponse( e, failureResponse );
-                }
-            } );
+            // It's a single small chunk, so it can be written from the I/O thread
+            ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer( null, bufferPool, channel,
+                    frameLength, getInternalProtocolVersion(), applicationProtocolVersion, correlationId, false );
+            writeFailureResponse( e, failureResponse );
             return null;
         }
         return (byte) (header[0] & 0x1);
     }
 
+    /**
+     * @param partialRequest the chunks of the request, which are let go of when
+     * the master has been called, or {@code null} if it was a single chunk.
+     * @param timer timer of the request, started when it had been read.
+     * @param requestBytes number of bytes of the chunks of the request.
+     */
     private Runnable masterCaller( final RequestType<M> type, final Channel channel, final SlaveContext context,
-            final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom )
+            final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom,
+            final PartialRequest partialRequest, final RequestStatistics.Timer timer, final long requestBytes )
     {
         return new Runnable()
         {
@@ -408,11 +559,15 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
                 Response<R> response = null;
                 try
                 {
+                    timer.lap( Phase.QUEUEING );
                     response = type.getMasterCaller().callMaster( realMaster, context, bufferToReadFrom, targetBuffer );
+                    timer.lap( Phase.MASTER_CALL, targetBuffer );
                     type.getObjectSerializer().write( response.response(), targetBuffer );
                     writeStoreId( response.getStoreId(), targetBuffer );
                     writeTransactionStreams( response.transactions(), targetBuffer );
                     targetBuffer.done();
+                    timer.lap( Phase.SERIALIZATION, targetBuffer );
+                    timer.done( requestBytes, targetBuffer.getWrittenBytes() );
                     responseWritten( type, channel, context );
                 }
                 catch ( Throwable e )
@@ -425,6 +580,7 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
                 finally
                 {
                     if ( response != null ) response.close();
+                    if ( partialRequest != null ) partialRequest.release();
                     unmapSlave( channel, context );
                 }
             }
@@ -435,11 +591,7 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
     {
         try
         {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream( bytes );
-            out.writeObject( exception );
-            out.close();
-            buffer.writeBytes( bytes.toByteArray() );
+            FailureResponse.write( exception, buffer, shouldSerializeFailures() );
             buffer.done();
         }
         catch ( IOException e )
@@ -475,11 +627,11 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
             writeString( buffer, datasource );
             datasourceId.put( datasource, i + 1/*0 means "no more transactions"*/);
         }
+        LargeBlockLogBuffer blockBuffer = new LargeBlockLogBuffer( buffer );
         for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( txStream ) )
         {
             buffer.writeByte( datasourceId.get( tx.first() ) );
             buffer.writeLong( tx.second() );
-            BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer );
             tx.third().extract( blockBuffer );
             blockBuffer.done();
         }
@@ -505,45 +657,32 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
         }
         int masterId = buffer.readInt();
         long checksum = buffer.readLong();
+        boolean beginsTx = buffer.readByte() != 0;
         
         // Only perform checksum checks on the neo data source. If there's none in the request
         // then don't perform any such check.
         if ( neoTx != null ) txVerifier.assertMatch( neoTx.getTxId(), masterId, checksum );
-        return new SlaveContext( sessionId, machineId, eventIdentifier, lastAppliedTransactions, masterId, checksum );
+        return new SlaveContext( sessionId, machineId, eventIdentifier, lastAppliedTransactions, masterId, checksum,
+                beginsTx );
     }
 
     protected abstract RequestType<M> getRequestContext( byte id );
 
-    protected ChannelBuffer mapSlave( Channel channel, SlaveContext slave, RequestType<M> type )
+    protected void mapSlave( Channel channel, SlaveContext slave, RequestType<M> type )
     {
-        channelGroup.add( channel );
-        synchronized ( connectedSlaveChannels )
+        // Channels leave the group by themselves when closed
+        if ( !channelGroup.contains( channel ) ) channelGroup.add( channel );
+        // Checking for machineId -1 excludes the "empty" slave contexts
+        // which some communication points pass in as context.
+        if ( slave != null && slave.machineId() != SlaveContext.EMPTY.machineId() )
         {
-            // Checking for machineId -1 excludes the "empty" slave contexts
-            // which some communication points pass in as context.
-            if ( slave != null && slave.machineId() != SlaveContext.EMPTY.machineId() )
-            {
-                Pair<SlaveContext, AtomicLong> previous = connectedSlaveChannels.get( channel );
-                if ( previous != null )
-                {
-                    previous.other().set( System.currentTimeMillis() );
-                }
-                else
-                {
-                    connectedSlaveChannels.put( channel, Pair.of( slave, new AtomicLong( System.currentTimeMillis() ) ) );
-                }
-            }
+            connectedSlaveChannels.map( channel, slave );
         }
-        return ChannelBuffers.dynamicBuffer();
     }
 
     protected void unmapSlave( Channel channel, SlaveContext slave )
     {
-        synchronized ( connectedSlaveChannels )
-        {
-            connectedSlaveChannels.remove( channel );
-            channelGroup.remove( channel );
-        }
+        connectedSlaveChannels.unmap( channel, slave );
     }
     
     protected M getMaster()
@@ -555,9 +694,9 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
     {
         // Close all open connections
         shuttingDown = true;
-        silentChannelExecutor.shutdown();
+        silentChannelTimer.stop();
         unfinishedTransactionExecutor.shutdown();
-        masterCallExecutor.shutdown();
+        requestScheduler.shutdown();
         channelGroup.close().awaitUninterruptibly();
         executor.shutdown();
         msgLog.logMessage( getClass().getSimpleName() + " shutdown", true );
@@ -573,17 +712,67 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
 
     protected abstract void finishOffChannel( Channel channel, SlaveContext context );
 
-    public Map<Channel, SlaveContext> getConnectedSlaveChannels()
+    /**
+     * The chunks of a request received so far. They are kept as they are and
+     * put together as a composite buffer when the last one is in, so that a big
+     * request, like a transaction to commit, isn't copied before it's applied.
+     * If the partial requests over a channel grow bigger than
+     * {@link Server#getMaxPartialRequestBytesPerChannel()} the rest of this one
+     * is discarded, and it's answered with a failure when the last chunk is in.
+     */
+    private class PartialRequest
     {
-        Map<Channel, SlaveContext> result = new HashMap<Channel, SlaveContext>();
-        synchronized ( connectedSlaveChannels )
+        final SlaveContext context;
+        final RequestType<M> type;
+        private final AtomicLong channelBytes;
+        private final List<ChannelBuffer> chunks = new ArrayList<ChannelBuffer>();
+        private long bytes;
+        private long receivedBytes;
+        private boolean discarded;
+
+        public PartialRequest( RequestType<M> type, SlaveContext context, Channel channel )
+        {
+            this.type = type;
+            this.context = context;
+            this.channelBytes = partialRequestBytes.get( channel );
+        }
+
+        /**
+         * @param chunkBytes size of the whole chunk which {@code chunk} is the
+         * content of, headers included.
+         */
+        public void add( ChannelBuffer chunk, int chunkBytes )
         {
-            for ( Map.Entry<Channel, Pair<SlaveContext, AtomicLong>> entry : connectedSlaveChannels.entrySet() )
+            receivedBytes += chunkBytes;
+            if ( discarded ) return;
+            int size = chunk.readableBytes();
+            if ( channelBytes.addAndGet( size ) > getMaxPartialRequestBytesPerChannel() )
             {
-                result.put( entry.getKey(), entry.getValue().first() );
+                channelBytes.addAndGet( -size );
+                release();
+                discarded = true;
+                return;
             }
+            chunks.add( chunk );
+            bytes += size;
+        }
+
+        public boolean isDiscarded()
+        {
+            return discarded;
+        }
+
+        public ChannelBuffer buffer()
+        {
+            return ChannelBuffers.wrappedBuffer( chunks.toArray( new ChannelBuffer[chunks.size()] ) );
+        }
+
+        public void release()
+        {
+            channelBytes.addAndGet( -bytes );
+            bytes = 0;
+            chunks.clear();
         }
-        return result;
     }
 
     // =====================================================================
@@ -591,22 +780,13 @@ public abstract class Server<M, R> extends Protocol implements ChannelPipelineFa
     // but exposed so that other tools can reach that information.
     // =====================================================================
 
-    private class PartialRequest
+    /**
+     * @return the connected channels, each with one of the slave contexts of
+     * the requests currently in flight over it. All of those contexts come
+     * from the same slave.
+     */
+    public Map<Channel, SlaveContext> getConnectedSlaveChannels()
     {
-        final SlaveContext context;
-        final ChannelBuffer buffer;
-        final RequestType<M> type;
-
-        public PartialRequest( RequestType<M> type, SlaveContext context, ChannelBuffer buffer )
-        {
-            this.type = type;
-            this.context = context;
-            this.buffer = buffer;
-        }
-
-        public void add( ChannelBuffer buffer )
-        {
-            this.buffer.writeBytes( buffer );
-        }
+        return connectedSlaveChannels.snapshot();
     }
 }
@@ -69,9 +69,21 @@ public final class SlaveContext
     private final long sessionId;
     private final int masterId;
     private final long checksum;
+    private final boolean beginsTx;
 
     public SlaveContext( long sessionId, int machineId, int eventIdentifier,
             Tx[] lastAppliedTransactions, int masterId, long checksum )
+    {
+        this( sessionId, machineId, eventIdentifier, lastAppliedTransactions, masterId, checksum, false );
+    }
+
+    /**
+     * @param beginsTx whether or not the master should begin the transaction
+     * of this context, unless it already has, before serving the request.
+     * Saves the separate request to initialize it.
+     */
+    public SlaveContext( long sessionId, int machineId, int eventIdentifier,
+            Tx[] lastAppliedTransactions, int masterId, long checksum, boolean beginsTx )
     {
         this.sessionId = sessionId;
         this.machineId = machineId;
@@ -79,6 +91,7 @@ public final class SlaveContext
         this.lastAppliedTransactions = lastAppliedTransactions;
         this.masterId = masterId;
         this.checksum = checksum;
+        this.beginsTx = beginsTx;
 
         long hash = sessionId;
         hash = (31 * hash) ^ eventIdentifier;
@@ -116,6 +129,11 @@ public final class SlaveContext
         return checksum;
     }
 
+    public boolean beginsTx()
+    {
+        return beginsTx;
+    }
+
     @Override
     public String toString()
     {
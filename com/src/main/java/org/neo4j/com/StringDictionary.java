@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.DuplicatedChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * Strings written and read over one connection, so that a string which has
+ * been sent once can be referred to by a small id after that. Used by
+ * {@link Protocol#writeString(ChannelBuffer, String)} and
+ * {@link Protocol#readString(ChannelBuffer)}, which look for a dictionary in the
+ * buffer they get. Typical strings are data source names in the header of every
+ * request and index names in index lock requests.
+ * <p>
+ * There are no explicit definitions of ids on the wire. Each side gives each
+ * new string written, and read respectively, the next id, until
+ * {@link #MAX_STRINGS} have been seen. That only works if strings are read in
+ * the same order as they are written, which holds for a channel with one
+ * request at a time, but not for multiplexed channels. It also requires the
+ * channel to be closed if a response or request isn't read to the end,
+ * which is what happens on errors already.
+ */
+public class StringDictionary
+{
+    static final int UNKNOWN = -1;
+    static final int MAX_STRINGS = 1024;
+
+    private static final ChannelLocal<StringDictionary> DICTIONARIES = new ChannelLocal<StringDictionary>()
+    {
+        @Override
+        protected StringDictionary initialValue( Channel channel )
+        {
+            return new StringDictionary();
+        }
+    };
+
+    private final Map<String, Integer> written = new HashMap<String, Integer>();
+    private final List<String> read = new ArrayList<String>();
+
+    /**
+     * @return the dictionary of the connection which {@code channel} is the end of.
+     */
+    static StringDictionary of( Channel channel )
+    {
+        return DICTIONARIES.get( channel );
+    }
+
+    /**
+     * @return the dictionary which {@code buffer} has, if any.
+     */
+    static StringDictionary of( ChannelBuffer buffer )
+    {
+        return buffer instanceof Holder ? ((Holder) buffer).dictionary() : null;
+    }
+
+    /**
+     * @return the id of {@code string} if it has been written before, otherwise
+     * {@link #UNKNOWN}, in which case the string is expected to be written in full
+     * and is given the next id if there's room for it.
+     */
+    synchronized int idOfWritten( String string )
+    {
+        Integer id = written.get( string );
+        if ( id != null ) return id.intValue();
+        if ( written.size() < MAX_STRINGS ) written.put( string, written.size() );
+        return UNKNOWN;
+    }
+
+    synchronized String readById( int id )
+    {
+        if ( id >= read.size() ) throw new ComException( "Unknown string id " + id );
+        return read.get( id );
+    }
+
+    /**
+     * Gives {@code string}, read in full, the next id if there's room for it.
+     */
+    synchronized void read( String string )
+    {
+        if ( read.size() < MAX_STRINGS ) read.add( string );
+    }
+
+    /**
+     * A buffer with a dictionary which strings written to, or read from, it goes through.
+     */
+    interface Holder
+    {
+        StringDictionary dictionary();
+    }
+
+    /**
+     * Reads the content of another buffer through a dictionary.
+     */
+    static class DictionaryChannelBuffer extends DuplicatedChannelBuffer implements Holder
+    {
+        private final StringDictionary dictionary;
+
+        DictionaryChannelBuffer( ChannelBuffer buffer, StringDictionary dictionary )
+        {
+            super( buffer );
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public StringDictionary dictionary()
+        {
+            return dictionary;
+        }
+    }
+}
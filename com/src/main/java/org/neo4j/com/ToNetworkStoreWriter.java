@@ -21,12 +21,23 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
+/**
+ * Writes files as: path length (short), path (UTF-8), content length (long),
+ * content. A path length of 0 ends the stream. Files coming from a
+ * {@link FileChannel} are transferred to the socket as file regions if
+ * the target buffer supports it, otherwise they are copied.
+ */
 public class ToNetworkStoreWriter implements StoreWriter
 {
+    // Keeps each copy well below the frame length of any server
+    private static final int MAX_COPY_SIZE = 4*1024;
+
     private final ChannelBuffer targetBuffer;
 
     public ToNetworkStoreWriter( ChannelBuffer targetBuffer )
@@ -37,16 +48,58 @@ public class ToNetworkStoreWriter implements StoreWriter
     public void write( String path, ReadableByteChannel data, ByteBuffer temporaryBuffer,
             boolean hasData ) throws IOException
     {
-        char[] chars = path.toCharArray();
-        targetBuffer.writeShort( chars.length );
-        Protocol.writeChars( targetBuffer, chars );
-        targetBuffer.writeByte( hasData ? 1 : 0 );
-        // TODO Make use of temporaryBuffer?
-        BlockLogBuffer buffer = new BlockLogBuffer( targetBuffer );
-        if ( hasData )
+        byte[] pathBytes = path.getBytes( Protocol.UTF8 );
+        targetBuffer.writeShort( pathBytes.length );
+        targetBuffer.writeBytes( pathBytes );
+        if ( !hasData )
+        {
+            targetBuffer.writeLong( 0 );
+        }
+        else if ( data instanceof FileChannel )
+        {
+            FileChannel file = (FileChannel) data;
+            long position = file.position();
+            long length = file.size()-position;
+            targetBuffer.writeLong( length );
+            if ( targetBuffer instanceof ChunkingChannelBuffer &&
+                    ((ChunkingChannelBuffer) targetBuffer).canWriteFileRegions() )
+            {
+                ((ChunkingChannelBuffer) targetBuffer).writeFileRegion( file, position, length );
+            }
+            else
+            {
+                copy( file, length, temporaryBuffer, targetBuffer );
+            }
+        }
+        else
+        {   // The length isn't known up front so it will have to be read in its entirety first
+            ChannelBuffer content = ChannelBuffers.dynamicBuffer();
+            copy( data, Long.MAX_VALUE, temporaryBuffer, content );
+            targetBuffer.writeLong( content.readableBytes() );
+            while ( content.readable() )
+            {
+                targetBuffer.writeBytes( content, Math.min( content.readableBytes(), MAX_COPY_SIZE ) );
+            }
+        }
+    }
+
+    private static void copy( ReadableByteChannel data, long length, ByteBuffer temporaryBuffer,
+            ChannelBuffer target ) throws IOException
+    {
+        long left = length;
+        while ( left > 0 )
         {
-            buffer.write( data );
-            buffer.done();
+            temporaryBuffer.clear();
+            temporaryBuffer.limit( (int) Math.min( left, Math.min( temporaryBuffer.capacity(), MAX_COPY_SIZE ) ) );
+            int read = data.read( temporaryBuffer );
+            if ( read == -1 )
+            {
+                if ( length == Long.MAX_VALUE ) return;
+                throw new IOException( "Unexpected end of data, " + left + " bytes left" );
+            }
+            temporaryBuffer.flip();
+            target.writeBytes( temporaryBuffer );
+            left -= read;
         }
     }
 
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.impl.transaction.xaframework.InMemoryLogBuffer;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+
+/**
+ * Recently committed transactions, in the form they're extracted from the
+ * logical log, kept in a ring buffer outside of the heap. The master adds
+ * each transaction the first time it extracts it for a transaction stream and
+ * serves the streams of all other slaves from it, instead of extracting the
+ * same transactions from the logical log once per slave. Nothing is extracted
+ * on the commit path just to fill it. The oldest transactions are overwritten
+ * as new ones are added.
+ */
+public class TransactionCache
+{
+    public static final int DEFAULT_CAPACITY = 16*1024*1024;
+
+    /**
+     * A cache which keeps nothing, every lookup goes to the logical log.
+     */
+    public static final TransactionCache NONE = new TransactionCache( 0 );
+
+    private final ByteBuffer ring;
+    private final Map<Pair<String, Long>, Entry> entries = new HashMap<Pair<String, Long>, Entry>();
+    private final LinkedList<Pair<String, Long>> order = new LinkedList<Pair<String, Long>>();
+    private long written;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity the number of bytes to keep transactions in, 0 disables
+     * the cache.
+     */
+    public TransactionCache( int capacity )
+    {
+        this.ring = ByteBuffer.allocateDirect( capacity );
+    }
+
+    public boolean isEnabled()
+    {
+        return ring.capacity() > 0;
+    }
+
+    public int getCapacity()
+    {
+        return ring.capacity();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Writes transaction {@code txId} of {@code dataSource} to {@code target}
+     * if it's cached.
+     *
+     * @return whether or not the transaction was cached.
+     */
+    public boolean get( String dataSource, long txId, LogBuffer target ) throws IOException
+    {
+        if ( !isEnabled() ) return false;
+        byte[] data = get( Pair.of( dataSource, txId ) );
+        if ( data == null )
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        target.put( data );
+        return true;
+    }
+
+    private synchronized byte[] get( Pair<String, Long> key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry == null ) return null;
+        byte[] data = new byte[entry.length];
+        int offset = (int) (entry.position % ring.capacity());
+        int firstPart = Math.min( data.length, ring.capacity()-offset );
+        ByteBuffer source = ring.duplicate();
+        source.position( offset );
+        source.get( data, 0, firstPart );
+        if ( firstPart < data.length )
+        {
+            source.position( 0 );
+            source.get( data, firstPart, data.length-firstPart );
+        }
+        return data;
+    }
+
+    /**
+     * Adds transaction {@code txId} of {@code dataSource}, overwriting the
+     * oldest transactions if there isn't room for it. Transactions larger than
+     * the whole cache aren't kept.
+     */
+    public synchronized void put( String dataSource, long txId, byte[] data )
+    {
+        int capacity = ring.capacity();
+        if ( !isEnabled() || data.length > capacity ) return;
+        Pair<String, Long> key = Pair.of( dataSource, txId );
+        if ( entries.containsKey( key ) ) return;
+        while ( !order.isEmpty() && entries.get( order.getFirst() ).position < written+data.length-capacity )
+        {
+            entries.remove( order.removeFirst() );
+        }
+        int offset = (int) (written % capacity);
+        int firstPart = Math.min( data.length, capacity-offset );
+        ByteBuffer target = ring.duplicate();
+        target.position( offset );
+        target.put( data, 0, firstPart );
+        if ( firstPart < data.length )
+        {
+            target.position( 0 );
+            target.put( data, firstPart, data.length-firstPart );
+        }
+        entries.put( key, new Entry( written, data.length ) );
+        order.addLast( key );
+        written += data.length;
+    }
+
+    static byte[] toBytes( InMemoryLogBuffer buffer ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocate( 4096 );
+        int read;
+        while ( (read = buffer.read( chunk )) > 0 )
+        {
+            result.write( chunk.array(), 0, read );
+            chunk.clear();
+        }
+        return result.toByteArray();
+    }
+
+    private static class Entry
+    {
+        private final long position;
+        private final int length;
+
+        Entry( long position, int length )
+        {
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
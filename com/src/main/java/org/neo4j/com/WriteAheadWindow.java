@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * How many bytes may be written to one connection, but not yet have made it
+ * to the socket, before writers have to wait. All chunks written over a
+ * connection share the same window, regardless of which response they're
+ * part of.
+ * <p>
+ * The window is the number of bytes the connection has been seen to drain in
+ * {@link #DRAIN_TIME_MILLIS}, between {@link #MIN_WINDOW_BYTES} and
+ * {@link #MAX_WINDOW_BYTES}. So a fast connection gets enough written ahead
+ * to be kept busy and a slow one doesn't have lots of chunks piling up in
+ * memory. A write is always let through if nothing else is pending, so that
+ * a chunk bigger than the window can go out at all. Small writes, up to
+ * {@link #SMALL_WRITE_BYTES}, are always let through too. They can't pile up
+ * to much, and they're typically lock responses or failures which shouldn't
+ * have to wait behind a big response over a multiplexed channel, or are
+ * written from an I/O thread which mustn't wait for writes to complete.
+ * <p>
+ * The time writers spend waiting for the window to open up is counted, per
+ * connection.
+ */
+public class WriteAheadWindow
+{
+    static final long MIN_WINDOW_BYTES = 1024*1024;
+    static final long MAX_WINDOW_BYTES = 32*1024*1024;
+    static final long DRAIN_TIME_MILLIS = 200;
+    static final int SMALL_WRITE_BYTES = 64*1024;
+    private static final long WAIT_MILLIS = 200;
+
+    private static final ChannelLocal<WriteAheadWindow> WINDOWS = new ChannelLocal<WriteAheadWindow>()
+    {
+        @Override
+        protected WriteAheadWindow initialValue( Channel channel )
+        {
+            return new WriteAheadWindow();
+        }
+    };
+
+    // All guarded by this
+    private long pendingBytes;
+    private long windowBytes = MIN_WINDOW_BYTES;
+    private double bytesPerNano;
+    private long drainingSince;
+    private int stalls;
+    private long stallNanos;
+
+    /**
+     * @return the window of the connection which {@code channel} is the end of.
+     */
+    static WriteAheadWindow of( Channel channel )
+    {
+        return WINDOWS.get( channel );
+    }
+
+    /**
+     * Waits until {@code bytes} more fit in the window, or {@code channel} is
+     * disconnected, and then counts them as pending.
+     *
+     * @return a listener to add to the future of the write of those bytes,
+     * which lets go of them when the write completes and closes the channel if
+     * it failed.
+     */
+    synchronized ChannelFutureListener acquire( Channel channel, final int bytes )
+    {
+        if ( !fits( bytes ) )
+        {
+            long waitStart = System.nanoTime();
+            while ( channel.isConnected() && !fits( bytes ) )
+            {
+                try
+                {
+                    wait( WAIT_MILLIS );
+                }
+                catch ( InterruptedException e )
+                {   // OK
+                    Thread.interrupted();
+                }
+            }
+            stalls++;
+            stallNanos += System.nanoTime()-waitStart;
+            if ( !channel.isConnected() || !channel.isOpen() )
+            {
+                throw new ComException( "Channel has been closed" );
+            }
+        }
+
+        if ( pendingBytes == 0 ) drainingSince = System.nanoTime();
+        pendingBytes += bytes;
+        return new ChannelFutureListener()
+        {
+            @Override
+            public void operationComplete( ChannelFuture future )
+            {
+                if ( !future.isSuccess() || future.isCancelled() )
+                {
+                    future.getChannel().close();
+                }
+                drained( bytes );
+            }
+        };
+    }
+
+    private boolean fits( int bytes )
+    {
+        return pendingBytes == 0 || bytes <= SMALL_WRITE_BYTES || pendingBytes+bytes <= windowBytes;
+    }
+
+    private synchronized void drained( int bytes )
+    {
+        long now = System.nanoTime();
+        long elapsed = now-drainingSince;
+        if ( elapsed > 0 )
+        {
+            double sample = (double) bytes/elapsed;
+            bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano*0.75 + sample*0.25;
+            long drainedInTime = (long) (bytesPerNano*TimeUnit.MILLISECONDS.toNanos( DRAIN_TIME_MILLIS ));
+            windowBytes = Math.max( MIN_WINDOW_BYTES, Math.min( MAX_WINDOW_BYTES, drainedInTime ) );
+        }
+        drainingSince = now;
+        pendingBytes -= bytes;
+        notifyAll();
+    }
+
+    synchronized long windowBytes()
+    {
+        return windowBytes;
+    }
+
+    synchronized long pendingBytes()
+    {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the number of times writers have had to wait for the window to open up.
+     */
+    public synchronized int stalls()
+    {
+        return stalls;
+    }
+
+    /**
+     * @return the total time writers have spent waiting for the window to open up.
+     */
+    public synchronized long stallMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( stallNanos );
+    }
+}
@@ -35,12 +35,19 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
     private final byte internalProtocolVersion;
 
     public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion )
+    {
+        this( port, storeIdToExpect, internalProtocolVersion, applicationProtocolVersion, 0 );
+    }
+
+    public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion,
+            int multiplexedChannels )
     {
         super( "localhost", port, StringLogger.DEV_NULL, Client.NO_STORE_ID_GETTER,
                 MadeUpServer.FRAME_LENGTH, applicationProtocolVersion,
                 Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
                 Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
-                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
+                ConnectionLostHandler.NO_ACTION, multiplexedChannels );
         this.storeIdToExpect = storeIdToExpect;
         this.internalProtocolVersion = internalProtocolVersion;
     }
@@ -65,6 +72,19 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
         }, Protocol.INTEGER_DESERIALIZER );
     }
 
+    public ResponseFuture<Integer> multiplyAsync( final int value1, final int value2 )
+    {
+        return sendRequestAsync( MadeUpRequestType.MULTIPLY, SlaveContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( value1 );
+                buffer.writeInt( value2 );
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
     @Override
     public Response<Void> streamSomeData( final MadeUpWriter writer, final int dataSize )
     {
@@ -107,6 +127,62 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
         } );
     }
 
+    @Override
+    public Response<Void> streamSomeFile( StoreWriter writer, final int dataSize )
+    {
+        return sendRequest( MadeUpRequestType.STREAM_SOME_FILE, SlaveContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( dataSize );
+            }
+        }, new Protocol.FileStreamsDeserializer( writer ) );
+    }
+
+    @Override
+    public Response<Integer> sumOfData( final byte[] data )
+    {
+        return sendRequest( MadeUpRequestType.SUM_OF_DATA, SlaveContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( data.length );
+                // In pieces, since a single write is never split between chunks
+                for ( int offset = 0; offset < data.length; offset += 1000 )
+                {
+                    buffer.writeBytes( data, offset, Math.min( 1000, data.length-offset ) );
+                }
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
+    @Override
+    public Response<Void> sleep( SlaveContext context, final int millis )
+    {
+        return sendRequest( MadeUpRequestType.SLEEP, context, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( millis );
+            }
+        }, Protocol.VOID_DESERIALIZER );
+    }
+
+    public ResponseFuture<Void> sleepAsync( SlaveContext context, final int millis )
+    {
+        return sendRequestAsync( MadeUpRequestType.SLEEP, context, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( millis );
+            }
+        }, Protocol.VOID_DESERIALIZER );
+    }
+
     @Override
     protected StoreId getMyStoreId()
     {
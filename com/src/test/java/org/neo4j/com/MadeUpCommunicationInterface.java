@@ -26,4 +26,10 @@ public interface MadeUpCommunicationInterface
     Response<Void> streamSomeData( MadeUpWriter writer, int dataSize );
     
     Response<Integer> throwException( String messageInException );
+
+    Response<Void> streamSomeFile( StoreWriter writer, int dataSize );
+
+    Response<Integer> sumOfData( byte[] data );
+
+    Response<Void> sleep( SlaveContext context, int millis );
 }
@@ -19,6 +19,12 @@
  */
 package org.neo4j.com;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 
 public class MadeUpImplementation implements MadeUpCommunicationInterface
@@ -53,6 +59,71 @@ public class MadeUpImplementation implements MadeUpCommunicationInterface
         throw new MadeUpException( messageInException, new Exception( "The cause of it" ) );
     }
 
+    @Override
+    public Response<Void> streamSomeFile( StoreWriter writer, int dataSize )
+    {
+        try
+        {
+            File file = File.createTempFile( "madeup", ".data", new File( "target" ) );
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream( file );
+            try
+            {
+                ByteBuffer data = ByteBuffer.allocate( dataSize );
+                new KnownDataByteChannel( dataSize ).read( data );
+                data.flip();
+                out.getChannel().write( data );
+            }
+            finally
+            {
+                out.close();
+            }
+            FileInputStream in = new FileInputStream( file );
+            try
+            {
+                writer.write( "some/file", in.getChannel(), ByteBuffer.allocate( 1000 ), dataSize > 0 );
+            }
+            finally
+            {
+                in.close();
+            }
+            writer.done();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        return new Response<Void>( null, storeIdToRespondWith,
+                TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
+    @Override
+    public Response<Integer> sumOfData( byte[] data )
+    {
+        int sum = 0;
+        for ( byte value : data )
+        {
+            sum += value;
+        }
+        return new Response<Integer>( sum, storeIdToRespondWith,
+                TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
+    @Override
+    public Response<Void> sleep( SlaveContext context, int millis )
+    {
+        try
+        {
+            Thread.sleep( millis );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+        }
+        return new Response<Void>( null, storeIdToRespondWith,
+                TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
     public boolean gotCalled()
     {
         return this.gotCalled;
@@ -19,6 +19,9 @@
  */
 package org.neo4j.com;
 
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.neo4j.kernel.impl.util.StringLogger;
@@ -28,14 +31,41 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
     private volatile boolean responseWritten;
     private volatile boolean responseFailureEncountered;
     private final byte internalProtocolVersion;
+    private final boolean compress;
+    private final long maxPartialRequestBytesPerChannel;
+    private final Collection<SlaveContext> finishedOff = new CopyOnWriteArrayList<SlaveContext>();
     public static final int FRAME_LENGTH = 10000;
 
     public MadeUpServer( MadeUpCommunicationInterface realMaster, int port, byte internalProtocolVersion,
             byte applicationProtocolVersion, TxChecksumVerifier txVerifier )
+    {
+        this( realMaster, port, internalProtocolVersion, applicationProtocolVersion, txVerifier, false );
+    }
+
+    public MadeUpServer( MadeUpCommunicationInterface realMaster, int port, byte internalProtocolVersion,
+            byte applicationProtocolVersion, TxChecksumVerifier txVerifier, boolean compress )
+    {
+        this( realMaster, port, internalProtocolVersion, applicationProtocolVersion, txVerifier, compress,
+                DEFAULT_MAX_PARTIAL_REQUEST_BYTES_PER_CHANNEL );
+    }
+
+    public MadeUpServer( MadeUpCommunicationInterface realMaster, int port, byte internalProtocolVersion,
+            byte applicationProtocolVersion, TxChecksumVerifier txVerifier, boolean compress,
+            long maxPartialRequestBytesPerChannel )
+    {
+        this( realMaster, port, internalProtocolVersion, applicationProtocolVersion, txVerifier, compress,
+                maxPartialRequestBytesPerChannel, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS );
+    }
+
+    public MadeUpServer( MadeUpCommunicationInterface realMaster, int port, byte internalProtocolVersion,
+            byte applicationProtocolVersion, TxChecksumVerifier txVerifier, boolean compress,
+            long maxPartialRequestBytesPerChannel, int oldChannelThreshold/*seconds*/ )
     {
         super( realMaster, port, StringLogger.DEV_NULL, FRAME_LENGTH, applicationProtocolVersion,
-                DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS, txVerifier );
+                DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, oldChannelThreshold, txVerifier );
         this.internalProtocolVersion = internalProtocolVersion;
+        this.compress = compress;
+        this.maxPartialRequestBytesPerChannel = maxPartialRequestBytesPerChannel;
     }
 
     @Override
@@ -52,6 +82,18 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
         super.writeFailureResponse( exception, buffer );
     }
 
+    @Override
+    protected boolean shouldCompressResponse( RequestType<MadeUpCommunicationInterface> type )
+    {
+        return compress;
+    }
+
+    @Override
+    protected long getMaxPartialRequestBytesPerChannel()
+    {
+        return maxPartialRequestBytesPerChannel;
+    }
+
     @Override
     protected byte getInternalProtocolVersion()
     {
@@ -67,6 +109,12 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
     @Override
     protected void finishOffChannel( Channel channel, SlaveContext context )
     {
+        finishedOff.add( context );
+    }
+
+    public Collection<SlaveContext> getFinishedOffContexts()
+    {
+        return finishedOff;
     }
     
     public boolean responseHasBeenWritten()
@@ -112,6 +160,39 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
             {
                 return master.throwException( readString( input ) );
             }
+        }, Protocol.VOID_SERIALIZER ),
+
+        STREAM_SOME_FILE( new MasterCaller<MadeUpCommunicationInterface, Void>()
+        {
+            @Override
+            public Response<Void> callMaster( MadeUpCommunicationInterface master,
+                    SlaveContext context, ChannelBuffer input, ChannelBuffer target )
+            {
+                int dataSize = input.readInt();
+                return master.streamSomeFile( new ToNetworkStoreWriter( target ), dataSize );
+            }
+        }, Protocol.VOID_SERIALIZER ),
+
+        SUM_OF_DATA( new MasterCaller<MadeUpCommunicationInterface, Integer>()
+        {
+            @Override
+            public Response<Integer> callMaster( MadeUpCommunicationInterface master,
+                    SlaveContext context, ChannelBuffer input, ChannelBuffer target )
+            {
+                byte[] data = new byte[input.readInt()];
+                input.readBytes( data );
+                return master.sumOfData( data );
+            }
+        }, Protocol.INTEGER_SERIALIZER ),
+
+        SLEEP( new MasterCaller<MadeUpCommunicationInterface, Void>()
+        {
+            @Override
+            public Response<Void> callMaster( MadeUpCommunicationInterface master,
+                    SlaveContext context, ChannelBuffer input, ChannelBuffer target )
+            {
+                return master.sleep( context, input.readInt() );
+            }
         }, Protocol.VOID_SERIALIZER );
         
         private final MasterCaller masterCaller;
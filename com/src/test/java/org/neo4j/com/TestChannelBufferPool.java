@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+public class TestChannelBufferPool
+{
+    @Test
+    public void releasedBufferIsLeasedAgainCleared() throws Exception
+    {
+        ChannelBufferPool pool = new ChannelBufferPool( ChannelBufferPool.DEFAULT_MAX_POOLED_BYTES, false );
+        ChannelBuffer buffer = pool.lease();
+        buffer.writeLong( 10 );
+        pool.release( buffer );
+        assertEquals( 1, pool.getPooledBuffers() );
+        assertEquals( buffer.capacity(), pool.getPooledBytes() );
+
+        ChannelBuffer leased = pool.lease();
+        assertSame( buffer, leased );
+        assertFalse( leased.readable() );
+        assertNotSame( buffer, pool.lease() );
+        assertEquals( 1, pool.getHits() );
+        assertEquals( 2, pool.getMisses() );
+        assertEquals( 0, pool.getPooledBytes() );
+    }
+
+    @Test
+    public void buffersNotFittingInThePoolAreDiscarded() throws Exception
+    {
+        ChannelBufferPool pool = new ChannelBufferPool( 1000, true );
+        ChannelBuffer small = pool.lease();
+        ChannelBuffer big = pool.lease();
+        assertTrue( small.isDirect() );
+        big.writeBytes( new byte[2000] );
+        pool.release( big );
+        pool.release( small );
+        assertEquals( 1, pool.getDiscarded() );
+        assertEquals( 1, pool.getPooledBuffers() );
+        assertSame( small, pool.lease() );
+    }
+}
@@ -20,6 +20,7 @@
 package org.neo4j.com;
 
 import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -28,10 +29,21 @@ import static org.neo4j.kernel.impl.nioneo.store.CommonAbstractStore.ALL_STORES_
 import static org.neo4j.kernel.impl.nioneo.store.NeoStore.versionStringToLong;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.neo4j.com.MadeUpServer.MadeUpRequestType;
 import org.neo4j.kernel.impl.nioneo.store.CommonAbstractStore;
 import org.neo4j.kernel.impl.nioneo.store.NeoStore;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
@@ -152,6 +164,339 @@ public class TestCommunication
         server.shutdown();
     }
 
+    @Test
+    public void multiplexedRequestsFromManyThreadsGetTheirOwnResponses() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        ExecutorService threads = Executors.newFixedThreadPool( 10 );
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            final int value = i;
+            results.add( threads.submit( new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    Response<Integer> response = client.multiply( value, 3 );
+                    try
+                    {
+                        return response.response();
+                    }
+                    finally
+                    {
+                        response.close();
+                    }
+                }
+            } ) );
+        }
+        for ( int i = 0; i < results.size(); i++ )
+        {
+            assertEquals( (Integer) (i*3), results.get( i ).get() );
+        }
+        threads.shutdown();
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void oneThreadCanHaveManyAsynchronousRequestsGoing() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient multiplexedClient = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 2 );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+
+        List<ResponseFuture<Integer>> futures = new ArrayList<ResponseFuture<Integer>>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            futures.add( multiplexedClient.multiplyAsync( i, 3 ) );
+        }
+        for ( int i = futures.size()-1; i >= 0; i-- )
+        {
+            Response<Integer> response = futures.get( i ).get();
+            assertTrue( futures.get( i ).isDone() );
+            assertEquals( (Integer) (i*3), response.response() );
+            response.close();
+        }
+
+        // Requests over a channel of their own are done before returning
+        ResponseFuture<Integer> future = client.multiplyAsync( 10, 5 );
+        assertTrue( future.isDone() );
+        assertEquals( (Integer) 50, future.get().response() );
+        future.get().close();
+
+        client.shutdown();
+        multiplexedClient.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void asynchronousRequestsFromOneThreadOverlap() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        long start = currentTimeMillis();
+        List<ResponseFuture<Void>> futures = new ArrayList<ResponseFuture<Void>>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            futures.add( client.sleepAsync( SlaveContext.EMPTY, 1000 ) );
+        }
+        assertTrue( "Sending waited for responses", currentTimeMillis()-start < 1000 );
+        for ( ResponseFuture<Void> future : futures )
+        {
+            future.get().close();
+        }
+        long time = currentTimeMillis()-start;
+        assertTrue( "Took " + time + "ms, requests weren't handled at the same time", time < 3000 );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void multiplexedClientCanStreamBigData() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 2 );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 ).close();
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void clientCanStreamBigFile() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+
+        ToAssertionStoreWriter writer = new ToAssertionStoreWriter();
+        client.streamSomeFile( writer, MadeUpServer.FRAME_LENGTH*3+17 ).close();
+        assertEquals( MadeUpServer.FRAME_LENGTH*3+17, writer.bytesWritten );
+        assertTrue( writer.done );
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void multiplexedClientCanStreamBigFile() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        ToAssertionStoreWriter writer = new ToAssertionStoreWriter();
+        client.streamSomeFile( writer, MadeUpServer.FRAME_LENGTH*3+17 ).close();
+        assertEquals( MadeUpServer.FRAME_LENGTH*3+17, writer.bytesWritten );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void serverReassemblesRequestsSpanningManyChunks() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        MadeUpClient multiplexedClient = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        byte[] data = someData( MadeUpServer.FRAME_LENGTH*5+17 );
+        assertEquals( (Integer) sumOf( data ), client.sumOfData( data ).response() );
+        assertEquals( (Integer) sumOf( data ), multiplexedClient.sumOfData( data ).response() );
+
+        client.shutdown();
+        multiplexedClient.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void requestsBiggerThanThePartialRequestCapAreRejected() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH, false, MadeUpServer.FRAME_LENGTH*3 );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        try
+        {
+            client.sumOfData( someData( MadeUpServer.FRAME_LENGTH*5 ) );
+            fail( "Should have been rejected" );
+        }
+        catch ( RejectedExecutionException e )
+        {   // Good
+        }
+
+        // The bytes of the rejected request must have been given back to the channel
+        byte[] data = someData( MadeUpServer.FRAME_LENGTH*2 );
+        assertEquals( (Integer) sumOf( data ), client.sumOfData( data ).response() );
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void requestStatisticsAreKeptPerRequestType() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        MadeUpClient multiplexedClient = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        Response<Integer> response = client.multiply( 10, 5 );
+        response.close();
+        // Closing a response again doesn't count it again
+        response.close();
+        multiplexedClient.multiply( 10, 5 ).close();
+        byte[] data = someData( MadeUpServer.FRAME_LENGTH*3 );
+        client.sumOfData( data ).close();
+
+        RequestStatistics.Entry multiply = entry( client.getRequestStatistics(), MadeUpRequestType.MULTIPLY );
+        assertEquals( 1, multiply.getRequests() );
+        assertEquals( 1, entry( multiplexedClient.getRequestStatistics(), MadeUpRequestType.MULTIPLY ).getRequests() );
+        RequestStatistics.Entry sumOfData = entry( client.getRequestStatistics(), MadeUpRequestType.SUM_OF_DATA );
+        assertEquals( 1, sumOfData.getRequests() );
+        assertTrue( sumOfData.getBytesOut() > data.length );
+        assertTrue( sumOfData.getBytesOut() > multiply.getBytesOut() );
+        assertTrue( multiply.getBytesIn() > 0 );
+        assertEquals( 1, sumOfData.getHistogram( RequestStatistics.Phase.MASTER_CALL ).getCount() );
+
+        long waitUntil = currentTimeMillis()+5000;
+        while ( server.getRequestStatistics().getEntries().length < 2 ||
+                entry( server.getRequestStatistics(), MadeUpRequestType.MULTIPLY ).getRequests() < 2 )
+        {
+            assertTrue( "Server didn't record the requests", currentTimeMillis() < waitUntil );
+            Thread.sleep( 10 );
+        }
+        RequestStatistics.Entry served = entry( server.getRequestStatistics(), MadeUpRequestType.SUM_OF_DATA );
+        assertEquals( sumOfData.getBytesOut(), served.getBytesIn() );
+        assertEquals( sumOfData.getBytesIn(), served.getBytesOut() );
+
+        client.shutdown();
+        multiplexedClient.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void disabledRequestStatisticsRecordNothing() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        client.getRequestStatistics().setEnabled( false );
+
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+        assertEquals( 0, client.getRequestStatistics().getEntries().length );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private static RequestStatistics.Entry entry( RequestStatistics statistics, MadeUpRequestType type )
+    {
+        for ( RequestStatistics.Entry entry : statistics.getEntries() )
+        {
+            if ( entry.getName().equals( type.toString() ) ) return entry;
+        }
+        return null;
+    }
+
+    private static byte[] someData( int size )
+    {
+        byte[] data = new byte[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            data[i] = (byte) (i*31);
+        }
+        return data;
+    }
+
+    private static int sumOf( byte[] data )
+    {
+        int sum = 0;
+        for ( byte value : data )
+        {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Test
+    public void clientCanReadCompressedResponses() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH, true );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        MadeUpClient multiplexedClient = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+        ToAssertionStoreWriter writer = new ToAssertionStoreWriter();
+        client.streamSomeFile( writer, MadeUpServer.FRAME_LENGTH*3+17 ).close();
+        assertEquals( MadeUpServer.FRAME_LENGTH*3+17, writer.bytesWritten );
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+        multiplexedClient.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+        assertEquals( (Integer) 50, multiplexedClient.multiply( 10, 5 ).response() );
+
+        multiplexedClient.shutdown();
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private static class ToAssertionStoreWriter implements StoreWriter
+    {
+        private int bytesWritten;
+        private boolean done;
+
+        @Override
+        public void write( String path, ReadableByteChannel data, ByteBuffer temporaryBuffer, boolean hasData )
+                throws IOException
+        {
+            assertEquals( "some/file", path );
+            temporaryBuffer.clear();
+            int read;
+            while ( (read = data.read( temporaryBuffer )) != -1 )
+            {
+                temporaryBuffer.flip();
+                while ( temporaryBuffer.hasRemaining() )
+                {
+                    assertEquals( (bytesWritten++)%10, temporaryBuffer.get() );
+                }
+                temporaryBuffer.clear();
+            }
+        }
+
+        @Override
+        public void done()
+        {
+            done = true;
+        }
+    }
+
     @Test
     public void clientThrowsServerSideErrorMidwayThroughStreaming() throws Exception
     {
@@ -329,6 +674,75 @@ public class TestCommunication
         server.shutdown();
     }
 
+    @Test
+    public void silentChannelsHaveTheirTransactionsFinishedOff() throws Exception
+    {
+        MadeUpServer server = new MadeUpServer( new MadeUpImplementation( storeIdToUse ), PORT,
+                INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH, false,
+                Server.DEFAULT_MAX_PARTIAL_REQUEST_BYTES_PER_CHANNEL, 1 );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        SlaveContext context = slaveContext( 1 );
+
+        // Nothing more is heard over the channel while the request is in flight
+        Future<Response<Void>> request = sleepInTheBackground( client, context, 5000 );
+        long maxWaitUntil = currentTimeMillis()+4000;
+        while ( server.getFinishedOffContexts().isEmpty() && currentTimeMillis() < maxWaitUntil ) Thread.sleep( 10 );
+        assertEquals( asList( context ), new ArrayList<SlaveContext>( server.getFinishedOffContexts() ) );
+        request.get().close();
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void channelsHeardFromHaveTheirTransactionsKeptGoing() throws Exception
+    {
+        MadeUpServer server = new MadeUpServer( new MadeUpImplementation( storeIdToUse ), PORT,
+                INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH, false,
+                Server.DEFAULT_MAX_PARTIAL_REQUEST_BYTES_PER_CHANNEL, 1 );
+        // Multiplexed over a single channel, so that other requests are heard over the same channel
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, 1 );
+
+        Future<Response<Void>> request = sleepInTheBackground( client, slaveContext( 1 ), 3000 );
+        for ( int eventIdentifier = 2; !request.isDone(); eventIdentifier++ )
+        {
+            client.sleep( slaveContext( eventIdentifier ), 0 ).close();
+            Thread.sleep( 100 );
+        }
+        request.get().close();
+        assertTrue( server.getFinishedOffContexts().isEmpty() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    private static SlaveContext slaveContext( int eventIdentifier )
+    {
+        return new SlaveContext( 0, 1, eventIdentifier, new SlaveContext.Tx[0], 0, 0 );
+    }
+
+    private static Future<Response<Void>> sleepInTheBackground( final MadeUpClient client,
+            final SlaveContext context, final int millis )
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            return executor.submit( new Callable<Response<Void>>()
+            {
+                @Override
+                public Response<Void> call() throws Exception
+                {
+                    return client.sleep( context, millis );
+                }
+            } );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void serverContextVerificationCanThrowException() throws Exception
     {
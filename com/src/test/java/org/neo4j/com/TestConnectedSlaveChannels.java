@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestConnectedSlaveChannels
+{
+    private final HashedWheelTimer timer = new HashedWheelTimer( 10, TimeUnit.MILLISECONDS );
+    private final Channel channel = new DefaultLocalClientChannelFactory().newChannel(
+            Channels.pipeline( new SimpleChannelUpstreamHandler() ) );
+    private final SlaveContext slave = new SlaveContext( 0, 1, 0, new SlaveContext.Tx[0], 0, 0 );
+
+    @After
+    public void stopTimer()
+    {
+        timer.stop();
+        channel.close();
+    }
+
+    @Test
+    public void channelsAreKeptTrackOfWhileRequestsAreInFlight() throws Exception
+    {
+        ConnectedSlaveChannels channels = new ConnectedSlaveChannels( timer, 60000, ignoringSilence() );
+        channels.map( channel, slave );
+        assertSame( slave, channels.snapshot().get( channel ) );
+
+        channels.unmap( channel, slave );
+        assertTrue( channels.snapshot().isEmpty() );
+
+        channels.map( channel, slave );
+        Collection<SlaveContext> inFlight = channels.remove( channel );
+        assertEquals( 1, inFlight.size() );
+        assertTrue( inFlight.contains( slave ) );
+        assertNull( channels.remove( channel ) );
+
+        // A new request over the channel after it was removed puts it back
+        channels.map( channel, slave );
+        assertSame( slave, channels.snapshot().get( channel ) );
+    }
+
+    @Test
+    public void unconnectedChannelsWithRequestsInFlightAreReportedSilent() throws Exception
+    {
+        final CountDownLatch silent = new CountDownLatch( 1 );
+        ConnectedSlaveChannels channels = new ConnectedSlaveChannels( timer, 100,
+                new ConnectedSlaveChannels.SilentChannelHandler()
+                {
+                    @Override
+                    public void channelWentSilent( Channel silentChannel, long silentMillis )
+                    {
+                        assertSame( channel, silentChannel );
+                        silent.countDown();
+                    }
+                } );
+        channels.map( channel, slave );
+        assertTrue( silent.await( 10, TimeUnit.SECONDS ) );
+    }
+
+    private ConnectedSlaveChannels.SilentChannelHandler ignoringSilence()
+    {
+        return new ConnectedSlaveChannels.SilentChannelHandler()
+        {
+            @Override
+            public void channelWentSilent( Channel channel, long silentMillis )
+            {
+            }
+        };
+    }
+}
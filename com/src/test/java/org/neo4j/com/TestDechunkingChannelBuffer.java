@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class TestDechunkingChannelBuffer
+{
+    @Test
+    public void valuesStraddlingChunksAreReadWhole() throws Exception
+    {
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        for ( int i = 0; i < 100; i++ )
+        {
+            message.writeLong( i*1000000007L );
+            message.writeInt( i );
+            message.writeByte( i );
+            message.writeShort( i*3 );
+            message.writeDouble( i/3d );
+        }
+
+        DechunkingChannelBuffer buffer = dechunk( message, 7 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( i*1000000007L, buffer.readLong() );
+            assertEquals( i, buffer.readInt() );
+            assertEquals( (byte) i, buffer.readByte() );
+            assertEquals( i*3, buffer.readShort() );
+            assertEquals( i/3d, buffer.readDouble(), 0.0 );
+        }
+        assertFalse( buffer.readable() );
+    }
+
+    @Test
+    public void bulkReadsSpanManyChunks() throws Exception
+    {
+        byte[] data = new byte[1000];
+        for ( int i = 0; i < data.length; i++ )
+        {
+            data[i] = (byte) i;
+        }
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        message.writeBytes( data );
+        message.writeBytes( data );
+        message.writeBytes( data );
+
+        DechunkingChannelBuffer buffer = dechunk( message, 64 );
+        byte[] bytes = new byte[data.length];
+        buffer.readBytes( bytes );
+        assertArrayEquals( data, bytes );
+        ByteBuffer byteBuffer = ByteBuffer.allocate( data.length );
+        buffer.readBytes( byteBuffer );
+        assertArrayEquals( data, byteBuffer.array() );
+        buffer.skipBytes( data.length-1 );
+        assertEquals( data[data.length-1], buffer.readByte() );
+        assertFalse( buffer.readable() );
+    }
+
+    @Test
+    public void resetGoesBackToMarkInAnEarlierChunk() throws Exception
+    {
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        for ( int i = 0; i < 50; i++ )
+        {
+            message.writeInt( i );
+        }
+
+        DechunkingChannelBuffer buffer = dechunk( message, 10 );
+        assertEquals( 0, buffer.readInt() );
+        buffer.markReaderIndex();
+        for ( int i = 1; i < 20; i++ )
+        {
+            assertEquals( i, buffer.readInt() );
+        }
+        buffer.resetReaderIndex();
+        buffer.markReaderIndex();
+        for ( int i = 1; i < 10; i++ )
+        {
+            assertEquals( i, buffer.readInt() );
+        }
+        buffer.resetReaderIndex();
+        for ( int i = 1; i < 50; i++ )
+        {
+            assertEquals( i, buffer.readInt() );
+        }
+        assertFalse( buffer.readable() );
+    }
+
+    private DechunkingChannelBuffer dechunk( ChannelBuffer message, int chunkSize )
+    {
+        final Queue<ChannelBuffer> chunks = new LinkedList<ChannelBuffer>();
+        while ( message.readable() )
+        {
+            int size = Math.min( chunkSize, message.readableBytes() );
+            ChannelBuffer chunk = ChannelBuffers.buffer( size+2 );
+            chunk.writeByte( size < message.readableBytes() ? ChunkingChannelBuffer.CONTINUATION_MORE
+                    : ChunkingChannelBuffer.CONTINUATION_LAST );
+            chunk.writeByte( 0 );
+            message.readBytes( chunk, size );
+            chunks.add( chunk );
+        }
+        return new DechunkingChannelBuffer( null, 1, (byte) 0, (byte) 0, null )
+        {
+            @Override
+            protected ChannelBuffer readNext()
+            {
+                return chunks.poll();
+            }
+        };
+    }
+}
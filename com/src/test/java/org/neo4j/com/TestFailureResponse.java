@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+public class TestFailureResponse
+{
+    @Test
+    public void typeMessageAndCausesSurviveCompactForm() throws Exception
+    {
+        Throwable failure = new MadeUpException( "Outer", new DeadlockDetectedException( "Inner" ) );
+
+        Throwable read = writeAndRead( failure, false );
+        assertEquals( MadeUpException.class, read.getClass() );
+        assertEquals( "Outer", read.getMessage() );
+        assertEquals( DeadlockDetectedException.class, read.getCause().getClass() );
+        // Some constructors, like that of DeadlockDetectedException, decorate the message
+        assertTrue( read.getCause().getMessage().contains( failure.getCause().getMessage() ) );
+        assertArrayEquals( failure.getStackTrace(), read.getStackTrace() );
+    }
+
+    @Test
+    public void typesAreKeptEvenIfTheirConstructorsDecorateTheMessage() throws Exception
+    {
+        Throwable failure = new DecoratingException( "Outer", new DecoratingException( "Inner" ) );
+
+        Throwable read = writeAndRead( failure, false );
+        assertEquals( DecoratingException.class, read.getClass() );
+        assertEquals( "Decorated '" + failure.getMessage() + "'", read.getMessage() );
+        assertEquals( DecoratingException.class, read.getCause().getClass() );
+        assertEquals( "Decorated '" + failure.getCause().getMessage() + "'", read.getCause().getMessage() );
+    }
+
+    @Test
+    public void traceAndCausesAreCapped() throws Exception
+    {
+        Throwable outermost = deepTrace( FailureResponse.MAX_TRACE_ELEMENTS*2 );
+        for ( int i = 0; i < FailureResponse.MAX_CAUSES*2; i++ )
+        {
+            outermost = new IllegalStateException( "Level " + i, outermost );
+        }
+
+        Throwable read = writeAndRead( outermost, false );
+        int causes = 0;
+        for ( Throwable cause = read; cause != null; cause = cause.getCause() )
+        {
+            assertTrue( cause.getStackTrace().length <= FailureResponse.MAX_TRACE_ELEMENTS );
+            causes++;
+        }
+        assertEquals( FailureResponse.MAX_CAUSES, causes );
+    }
+
+    @Test
+    public void typesWhichCantBeRecreatedComeBackAsRuntimeExceptions() throws Exception
+    {
+        Throwable read = writeAndRead( new NoStringConstructorException(), false );
+        assertEquals( RuntimeException.class, read.getClass() );
+        assertTrue( read.getMessage().startsWith( NoStringConstructorException.class.getName() ) );
+    }
+
+    @Test
+    public void serializedFormKeepsEverything() throws Exception
+    {
+        Throwable failure = deepTrace( FailureResponse.MAX_TRACE_ELEMENTS*2 );
+
+        Throwable read = writeAndRead( failure, true );
+        assertEquals( failure.getClass(), read.getClass() );
+        assertNull( read.getMessage() );
+        assertArrayEquals( failure.getStackTrace(), read.getStackTrace() );
+    }
+
+    private Throwable writeAndRead( Throwable failure, boolean serialize ) throws Exception
+    {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        FailureResponse.write( failure, buffer, serialize );
+        Throwable read = FailureResponse.read( buffer );
+        assertFalse( buffer.readable() );
+        return read;
+    }
+
+    private Throwable deepTrace( int depth )
+    {
+        StackTraceElement[] trace = new StackTraceElement[depth];
+        for ( int i = 0; i < depth; i++ )
+        {
+            trace[i] = new StackTraceElement( "Class" + i, "method" + i, i % 2 == 0 ? null : "File.java", i );
+        }
+        Throwable failure = new RejectedExecutionException( (String) null );
+        failure.setStackTrace( trace );
+        return failure;
+    }
+
+    public static class DecoratingException extends RuntimeException
+    {
+        public DecoratingException( String message )
+        {
+            super( "Decorated '" + message + "'" );
+        }
+
+        public DecoratingException( String message, Throwable cause )
+        {
+            super( "Decorated '" + message + "'", cause );
+        }
+    }
+
+    private static class NoStringConstructorException extends RuntimeException
+    {
+        NoStringConstructorException()
+        {
+            super( "Can't have another" );
+        }
+    }
+}
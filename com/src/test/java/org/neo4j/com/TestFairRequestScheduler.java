@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.com.FairRequestScheduler.Lane;
+
+public class TestFairRequestScheduler
+{
+    private final CountDownLatch blocker = new CountDownLatch( 1 );
+    private final CountDownLatch started = new CountDownLatch( 1 );
+    private Lane lane;
+
+    @After
+    public void release()
+    {
+        blocker.countDown();
+    }
+
+    @Test
+    public void requestsAreRejectedWhenTooManyAreQueued() throws Exception
+    {
+        lane = new Lane( "test", 1, 2 );
+        lane.schedule( 1, blocking() );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+        lane.schedule( 1, noop() );
+        lane.schedule( 2, noop() );
+        try
+        {
+            lane.schedule( 3, noop() );
+            fail( "Should have been rejected" );
+        }
+        catch ( RejectedExecutionException e )
+        {   // Good
+        }
+        assertEquals( 2, lane.getQueued() );
+        assertEquals( 1, lane.getRejected() );
+    }
+
+    @Test
+    public void queuedRequestsAreTakenFromOneSlaveAtATime() throws Exception
+    {
+        lane = new Lane( "test", 1, 100 );
+        lane.schedule( 1, blocking() );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+        List<String> order = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch( 5 );
+        lane.schedule( 1, recording( order, "1a", done ) );
+        lane.schedule( 1, recording( order, "1b", done ) );
+        lane.schedule( 1, recording( order, "1c", done ) );
+        lane.schedule( 2, recording( order, "2a", done ) );
+        lane.schedule( 2, recording( order, "2b", done ) );
+        blocker.countDown();
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        assertEquals( asList( "1a", "2a", "1b", "2b", "1c" ), order );
+        assertEquals( 0, lane.getQueued() );
+    }
+
+    private Runnable blocking()
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    blocker.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                }
+            }
+        };
+    }
+
+    private Runnable noop()
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        };
+    }
+
+    private Runnable recording( final List<String> order, final String name, final CountDownLatch done )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized ( order )
+                {
+                    order.add( name );
+                }
+                done.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class TestLargeBlockLogBuffer
+{
+    @Test
+    public void smallTransactionIsOneBlock() throws IOException
+    {
+        ChannelBuffer target = ChannelBuffers.dynamicBuffer();
+        LargeBlockLogBuffer buffer = new LargeBlockLogBuffer( target );
+
+        byte byteValue = 5;
+        int intValue = 1234;
+        long longValue = 574853;
+        float floatValue = 304985.5f;
+        double doubleValue = 48493.22d;
+        final byte[] bytesValue = new byte[] { 1, 5, 2, 6, 3 };
+        final char[] charsValue = "This is chars".toCharArray();
+        buffer.put( byteValue );
+        buffer.putInt( intValue );
+        buffer.putLong( longValue );
+        buffer.putFloat( floatValue );
+        buffer.putDouble( doubleValue );
+        buffer.put( bytesValue );
+        buffer.put( charsValue );
+        buffer.done();
+
+        assertEquals( 56, target.readInt() );
+        assertEquals( byteValue, target.readByte() );
+        assertEquals( intValue, target.readInt() );
+        assertEquals( longValue, target.readLong() );
+        assertEquals( floatValue, target.readFloat(), 0.0 );
+        assertEquals( doubleValue, target.readDouble(), 0.0 );
+        byte[] actualBytes = new byte[bytesValue.length];
+        target.readBytes( actualBytes );
+        assertArrayEquals( bytesValue, actualBytes );
+        char[] actualChars = new char[charsValue.length];
+        for ( int i = 0; i < actualChars.length; i++ )
+        {
+            actualChars[i] = target.readChar();
+        }
+        assertArrayEquals( charsValue, actualChars );
+        assertFalse( target.readable() );
+    }
+
+    @Test
+    public void readSmallPortions() throws IOException
+    {
+        ChannelBuffer target = ChannelBuffers.dynamicBuffer();
+        LargeBlockLogBuffer buffer = new LargeBlockLogBuffer( target, 8 );
+
+        byte byteValue = 5;
+        int intValue = 1234;
+        long longValue = 574853;
+        buffer.put( byteValue );
+        buffer.putInt( intValue );
+        buffer.putLong( longValue );
+        buffer.done();
+
+        ReadableByteChannel reader = new LargeBlockLogReader( target );
+        ByteBuffer verificationBuffer = ByteBuffer.allocate( 1 );
+        reader.read( verificationBuffer );
+        verificationBuffer.flip();
+        assertEquals( byteValue, verificationBuffer.get() );
+        verificationBuffer = ByteBuffer.allocate( 4 );
+        reader.read( verificationBuffer );
+        verificationBuffer.flip();
+        assertEquals( intValue, verificationBuffer.getInt() );
+        verificationBuffer = ByteBuffer.allocate( 8 );
+        reader.read( verificationBuffer );
+        verificationBuffer.flip();
+        assertEquals( longValue, verificationBuffer.getLong() );
+        assertEquals( -1, reader.read( ByteBuffer.allocate( 1 ) ) );
+    }
+
+    @Test
+    public void canWriteAndReadReallyLargeByteArray() throws IOException
+    {
+        ChannelBuffer target = ChannelBuffers.dynamicBuffer();
+        LargeBlockLogBuffer buffer = new LargeBlockLogBuffer( target );
+        byte[] bytesValue = new byte[LargeBlockLogBuffer.DEFAULT_BLOCK_SIZE*3+100];
+        for ( int i = 0; i < bytesValue.length; i++ )
+        {
+            bytesValue[i] = (byte) i;
+        }
+        buffer.put( bytesValue );
+        buffer.done();
+
+        ReadableByteChannel reader = new LargeBlockLogReader( target );
+        ByteBuffer actual = ByteBuffer.allocate( bytesValue.length+10 );
+        assertEquals( bytesValue.length, reader.read( actual ) );
+        actual.flip();
+        byte[] actualBytes = new byte[actual.remaining()];
+        actual.get( actualBytes );
+        assertArrayEquals( bytesValue, actualBytes );
+        assertFalse( target.readable() );
+    }
+
+    @Test
+    public void bufferCanBeReusedAndTransactionsSkipped() throws IOException
+    {
+        ChannelBuffer target = ChannelBuffers.dynamicBuffer();
+        LargeBlockLogBuffer buffer = new LargeBlockLogBuffer( target, 16 );
+        buffer.put( new byte[100] );
+        buffer.done();
+        buffer.putLong( 10 );
+        buffer.done();
+        buffer.putInt( 20 );
+        buffer.done();
+
+        LargeBlockLogReader.skipTransaction( target );
+        ReadableByteChannel reader = new LargeBlockLogReader( target );
+        ByteBuffer value = ByteBuffer.allocate( 8 );
+        reader.read( value );
+        value.flip();
+        assertEquals( 10, value.getLong() );
+        reader.close();
+        reader = new LargeBlockLogReader( target );
+        reader.close();
+        assertFalse( target.readable() );
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void bucketsKeepValuesWithinTheirPrecision() throws Exception
+    {
+        long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, 1L << 40, Long.MAX_VALUE };
+        for ( long value : values )
+        {
+            long highest = LatencyHistogram.highestInBucket( LatencyHistogram.bucketOf( value ) );
+            assertTrue( value + " in bucket up to " + highest, highest >= value );
+            assertTrue( value + " in bucket up to " + highest,
+                    highest - value <= value / LatencyHistogram.SUB_BUCKETS );
+        }
+    }
+
+    @Test
+    public void percentilesComeFromTheRecordedValues() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals( 0, histogram.getNanosAtPercentile( 99 ) );
+        for ( int i = 1; i <= 100; i++ )
+        {
+            histogram.record( i*1000 );
+        }
+        assertEquals( 100, histogram.getCount() );
+        assertEquals( 50500, histogram.getMeanNanos() );
+        assertEquals( 100000, histogram.getMaxNanos() );
+        assertWithinPrecision( 50000, histogram.getNanosAtPercentile( 50 ) );
+        assertWithinPrecision( 99000, histogram.getNanosAtPercentile( 99 ) );
+        assertEquals( 100000, histogram.getNanosAtPercentile( 100 ) );
+        assertWithinPrecision( 1000, histogram.getNanosAtPercentile( 0 ) );
+    }
+
+    private static void assertWithinPrecision( long expected, long actual )
+    {
+        assertTrue( "Expected about " + expected + ", but was " + actual,
+                actual >= expected && actual - expected <= expected / LatencyHistogram.SUB_BUCKETS );
+    }
+}
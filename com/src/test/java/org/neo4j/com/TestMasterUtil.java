@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.SlaveContext.Tx;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.helpers.Predicate;
+import org.neo4j.helpers.Triplet;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.xaframework.InMemoryLogBuffer;
+import org.neo4j.kernel.impl.transaction.xaframework.LogExtractor;
+import org.neo4j.kernel.impl.transaction.xaframework.XaConnection;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+import org.neo4j.test.TargetDirectory;
+
+public class TestMasterUtil
+{
+    private static final String NEO_STORE = "nioneodb";
+
+    private GraphDatabaseAPI db;
+    private long firstTxId;
+
+    @Before
+    public void startDb()
+    {
+        db = new EmbeddedGraphDatabase( TargetDirectory.forTest( getClass() ).directory( "db", true ).getAbsolutePath(),
+                stringMap( GraphDatabaseSettings.keep_logical_logs.name(), "true" ) );
+        firstTxId = db.getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId() + 1;
+        for ( int i = 0; i < 5; i++ ) createNode();
+    }
+
+    @After
+    public void stopDb()
+    {
+        db.shutdown();
+    }
+
+    @Test
+    public void transactionsAreStreamedInOrderWithTheFilterApplied() throws Exception
+    {
+        Predicate<Long> allButThird = new Predicate<Long>()
+        {
+            @Override
+            public boolean accept( Long txId )
+            {
+                return txId != firstTxId + 2;
+            }
+        };
+        List<Long> expected = asList( firstTxId, firstTxId + 1, firstTxId + 3, firstTxId + 4 );
+
+        assertEquals( expected, streamedTxIds( NEO_STORE, allButThird, TransactionCache.NONE ) );
+        // Once from the log into the cache, then from the cache
+        TransactionCache cache = new TransactionCache( 1024*1024 );
+        assertEquals( expected, streamedTxIds( NEO_STORE, allButThird, cache ) );
+        assertEquals( expected, streamedTxIds( NEO_STORE, allButThird, cache ) );
+        assertEquals( expected.size(), cache.getHits() );
+    }
+
+    @Test
+    public void failingToExtractATransactionPartwayThroughARangeIsAnError() throws Exception
+    {
+        XaDataSource neoStore = db.getXaDataSourceManager().getNeoStoreDataSource();
+        db.getXaDataSourceManager().registerDataSource( new OneTxAheadDataSource( neoStore ) );
+        Response<Void> response = MasterUtil.packResponse( db,
+                SlaveContext.anonymous( new Tx[] { SlaveContext.lastAppliedTx( "ahead", firstTxId - 1 ) } ), null,
+                MasterUtil.ALL );
+        List<Long> extracted = new ArrayList<Long>();
+        try
+        {
+            for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( response.transactions() ) )
+            {
+                assertExtracts( tx.third() );
+                extracted.add( tx.second() );
+            }
+            fail( "Transaction " + (firstTxId + 5) + " isn't in the log" );
+        }
+        catch ( RuntimeException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "missing" ) );
+        }
+        finally
+        {
+            response.close();
+        }
+        assertEquals( asList( firstTxId, firstTxId + 1, firstTxId + 2, firstTxId + 3, firstTxId + 4 ), extracted );
+    }
+
+    private List<Long> streamedTxIds( String dataSource, Predicate<Long> filter, TransactionCache cache )
+            throws IOException
+    {
+        Response<Void> response = MasterUtil.packResponse( db,
+                SlaveContext.anonymous( new Tx[] { SlaveContext.lastAppliedTx( dataSource, firstTxId - 1 ) } ), null,
+                filter, cache );
+        List<Long> txIds = new ArrayList<Long>();
+        try
+        {
+            for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( response.transactions() ) )
+            {
+                assertEquals( dataSource, tx.first() );
+                assertExtracts( tx.third() );
+                txIds.add( tx.second() );
+            }
+        }
+        finally
+        {
+            response.close();
+        }
+        return txIds;
+    }
+
+    private static void assertExtracts( TxExtractor extractor ) throws IOException
+    {
+        InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+        extractor.extract( buffer );
+        assertTrue( TransactionCache.toBytes( buffer ).length > 0 );
+    }
+
+    private void createNode()
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            db.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Claims to have committed one more transaction than is in the log of the
+     * data source it extracts from.
+     */
+    private static class OneTxAheadDataSource extends XaDataSource
+    {
+        private final XaDataSource delegate;
+
+        OneTxAheadDataSource( XaDataSource delegate )
+        {
+            super( "ahead".getBytes(), "ahead" );
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long getLastCommittedTxId()
+        {
+            return delegate.getLastCommittedTxId() + 1;
+        }
+
+        @Override
+        public LogExtractor getLogExtractor( long startTxId, long endTxIdHint ) throws IOException
+        {
+            return delegate.getLogExtractor( startTxId, endTxIdHint );
+        }
+
+        @Override
+        public XaConnection getXaConnection()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestPrewarmedChannels
+{
+    private final LocalAddress address = new LocalAddress( LocalAddress.EPHEMERAL );
+    private HashedWheelTimer timer;
+    private ClientBootstrap client;
+    private Channel serverChannel;
+
+    @Before
+    public void createClient()
+    {
+        timer = new HashedWheelTimer( 10, TimeUnit.MILLISECONDS );
+        client = new ClientBootstrap( new DefaultLocalClientChannelFactory() );
+        client.getPipeline().addLast( "handler", new SimpleChannelUpstreamHandler() );
+    }
+
+    @After
+    public void stop()
+    {
+        timer.stop();
+        if ( serverChannel != null ) serverChannel.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void channelsAreConnectedAheadOfTime() throws Exception
+    {
+        startServer();
+        PrewarmedChannels channels = new PrewarmedChannels( client, address, 2, timer, StringLogger.DEV_NULL );
+        channels.start();
+        awaitReadyChannels( channels, 2 );
+
+        Channel channel = channels.take( 1000 );
+        assertTrue( channel.isConnected() );
+        // Another one is connected to take its place
+        awaitReadyChannels( channels, 2 );
+
+        channels.close();
+        assertEquals( 0, channels.getReadyChannels() );
+    }
+
+    @Test
+    public void failingToConnectFailsFastUntilTriedAgain() throws Exception
+    {
+        PrewarmedChannels channels = new PrewarmedChannels( client, address, 1, timer, StringLogger.DEV_NULL );
+        channels.start();
+        long start = System.currentTimeMillis();
+        try
+        {
+            channels.take( 10000 );
+            fail( "Nothing to connect to" );
+        }
+        catch ( ComException e )
+        {   // Good
+        }
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+
+        startServer();
+        long deadline = System.currentTimeMillis() + 10000;
+        for ( ;; )
+        {
+            try
+            {
+                assertTrue( channels.take( 1000 ).isConnected() );
+                break;
+            }
+            catch ( ComException e )
+            {   // Still backing off
+                assertTrue( System.currentTimeMillis() < deadline );
+                Thread.sleep( PrewarmedChannels.MIN_BACKOFF_MILLIS );
+            }
+        }
+        channels.close();
+    }
+
+    private void startServer()
+    {
+        ServerBootstrap server = new ServerBootstrap( new DefaultLocalServerChannelFactory() );
+        server.getPipeline().addLast( "handler", new SimpleChannelUpstreamHandler() );
+        serverChannel = server.bind( address );
+    }
+
+    private static void awaitReadyChannels( PrewarmedChannels channels, int ready ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( channels.getReadyChannels() < ready )
+        {
+            assertTrue( System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+}
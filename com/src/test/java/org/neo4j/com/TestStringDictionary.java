@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.neo4j.com.StringDictionary.DictionaryChannelBuffer;
+
+public class TestStringDictionary
+{
+    @Test
+    public void repeatedStringIsWrittenAsId() throws Exception
+    {
+        ChannelBuffer target = ChannelBuffers.buffer( 100 );
+        ChannelBuffer writer = new DictionaryChannelBuffer( target, new StringDictionary() );
+        Protocol.writeString( writer, "nioneodb" );
+        Protocol.writeString( writer, "lucene" );
+        Protocol.writeString( writer, "nioneodb" );
+        Protocol.writeString( writer, "\u00e5\u00e4\u00f6" );
+        assertEquals( 4+8 + 4+6 + 4 + 4+6, writer.writerIndex() );
+        assertEquals( -1, writer.getInt( 4+8 + 4+6 ) );
+
+        ChannelBuffer reader = new DictionaryChannelBuffer( writer, new StringDictionary() );
+        assertEquals( "nioneodb", Protocol.readString( reader ) );
+        assertEquals( "lucene", Protocol.readString( reader ) );
+        assertEquals( "nioneodb", Protocol.readString( reader ) );
+        assertEquals( "\u00e5\u00e4\u00f6", Protocol.readString( reader ) );
+        assertFalse( reader.readable() );
+    }
+
+    @Test
+    public void stringsAreWrittenInFullWithoutDictionary() throws Exception
+    {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        Protocol.writeString( buffer, "nioneodb" );
+        Protocol.writeString( buffer, "nioneodb" );
+        assertEquals( 2*(4+8), buffer.writerIndex() );
+        assertEquals( "nioneodb", Protocol.readString( buffer ) );
+        assertEquals( "nioneodb", Protocol.readString( buffer ) );
+    }
+
+    @Test
+    public void stringsBeyondMaxAreAlwaysWrittenInFull() throws Exception
+    {
+        ChannelBuffer writer = new DictionaryChannelBuffer( ChannelBuffers.buffer( 20000 ), new StringDictionary() );
+        for ( int i = 0; i < StringDictionary.MAX_STRINGS; i++ )
+        {
+            Protocol.writeString( writer, "" + i );
+        }
+        Protocol.writeString( writer, "last" );
+        Protocol.writeString( writer, "last" );
+        Protocol.writeString( writer, "0" );
+
+        ChannelBuffer reader = new DictionaryChannelBuffer( writer, new StringDictionary() );
+        for ( int i = 0; i < StringDictionary.MAX_STRINGS; i++ )
+        {
+            assertEquals( "" + i, Protocol.readString( reader ) );
+        }
+        assertEquals( 4, reader.getInt( reader.readerIndex() ) );
+        assertEquals( "last", Protocol.readString( reader ) );
+        assertEquals( "last", Protocol.readString( reader ) );
+        assertEquals( -1, reader.getInt( reader.readerIndex() ) );
+        assertEquals( "0", Protocol.readString( reader ) );
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.neo4j.kernel.impl.transaction.xaframework.InMemoryLogBuffer;
+
+public class TestTransactionCache
+{
+    @Test
+    public void cachedTransactionsAreServedAsTheyWereAdded() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 100 );
+        cache.put( "nioneo", 2, data( 30, 2 ) );
+        cache.put( "lucene", 2, data( 10, 3 ) );
+
+        assertCached( cache, "nioneo", 2, data( 30, 2 ) );
+        assertCached( cache, "lucene", 2, data( 10, 3 ) );
+        assertNotCached( cache, "nioneo", 3 );
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void oldestTransactionsAreOverwrittenWhenFull() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 100 );
+        for ( int txId = 2; txId <= 9; txId++ )
+        {
+            cache.put( "nioneo", txId, data( 30, txId ) );
+        }
+
+        for ( int txId = 2; txId <= 6; txId++ )
+        {
+            assertNotCached( cache, "nioneo", txId );
+        }
+        // The last ones wrap around the end of the ring
+        for ( int txId = 7; txId <= 9; txId++ )
+        {
+            assertCached( cache, "nioneo", txId, data( 30, txId ) );
+        }
+    }
+
+    @Test
+    public void transactionsLargerThanTheCacheAreNotKept() throws Exception
+    {
+        TransactionCache cache = new TransactionCache( 100 );
+        cache.put( "nioneo", 2, data( 50, 2 ) );
+        cache.put( "nioneo", 3, data( 101, 3 ) );
+
+        assertCached( cache, "nioneo", 2, data( 50, 2 ) );
+        assertNotCached( cache, "nioneo", 3 );
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() throws Exception
+    {
+        TransactionCache cache = TransactionCache.NONE;
+        assertFalse( cache.isEnabled() );
+        cache.put( "nioneo", 2, new byte[0] );
+        assertNotCached( cache, "nioneo", 2 );
+    }
+
+    private static byte[] data( int length, int seed )
+    {
+        byte[] data = new byte[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    private static void assertCached( TransactionCache cache, String dataSource, long txId, byte[] expected )
+            throws Exception
+    {
+        InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+        assertTrue( cache.get( dataSource, txId, buffer ) );
+        assertArrayEquals( expected, TransactionCache.toBytes( buffer ) );
+    }
+
+    private static void assertNotCached( TransactionCache cache, String dataSource, long txId ) throws Exception
+    {
+        InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+        assertFalse( cache.get( dataSource, txId, buffer ) );
+        assertEquals( 0, TransactionCache.toBytes( buffer ).length );
+    }
+}
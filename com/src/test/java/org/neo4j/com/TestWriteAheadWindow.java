@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteAheadWindow
+{
+    private static final int MEGA = 1024*1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Channel serverChannel;
+    private Channel channel;
+
+    @Before
+    public void connect()
+    {
+        LocalAddress address = new LocalAddress( LocalAddress.EPHEMERAL );
+        ServerBootstrap server = new ServerBootstrap( new DefaultLocalServerChannelFactory() );
+        server.getPipeline().addLast( "handler", new SimpleChannelUpstreamHandler() );
+        serverChannel = server.bind( address );
+        ClientBootstrap client = new ClientBootstrap( new DefaultLocalClientChannelFactory() );
+        client.getPipeline().addLast( "handler", new SimpleChannelUpstreamHandler() );
+        channel = client.connect( serverChannel.getLocalAddress() ).awaitUninterruptibly().getChannel();
+    }
+
+    @After
+    public void close()
+    {
+        executor.shutdownNow();
+        channel.close().awaitUninterruptibly();
+        serverChannel.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void writesBeyondTheWindowWaitForEarlierOnesToDrain() throws Exception
+    {
+        final WriteAheadWindow window = WriteAheadWindow.of( channel );
+        assertEquals( WriteAheadWindow.MIN_WINDOW_BYTES, window.windowBytes() );
+
+        // Bigger than the window, but nothing is pending
+        ChannelFutureListener firstDrained = window.acquire( channel, 2*MEGA );
+        // Small ones never wait
+        ChannelFutureListener smallDrained = window.acquire( channel, 1024 );
+        Future<ChannelFutureListener> second = executor.submit( new Callable<ChannelFutureListener>()
+        {
+            @Override
+            public ChannelFutureListener call()
+            {
+                return window.acquire( channel, 2*MEGA );
+            }
+        } );
+        assertWaiting( second );
+        smallDrained.operationComplete( Channels.succeededFuture( channel ) );
+        assertWaiting( second );
+
+        firstDrained.operationComplete( Channels.succeededFuture( channel ) );
+        ChannelFutureListener secondDrained = second.get( 5, TimeUnit.SECONDS );
+        assertEquals( 2*MEGA, window.pendingBytes() );
+        assertEquals( 1, window.stalls() );
+        assertTrue( window.stallMillis() >= 100 );
+
+        secondDrained.operationComplete( Channels.succeededFuture( channel ) );
+        assertEquals( 0, window.pendingBytes() );
+        assertTrue( window.windowBytes() >= WriteAheadWindow.MIN_WINDOW_BYTES );
+        assertTrue( window.windowBytes() <= WriteAheadWindow.MAX_WINDOW_BYTES );
+    }
+
+    @Test
+    public void failedWriteClosesTheChannel() throws Exception
+    {
+        WriteAheadWindow window = WriteAheadWindow.of( channel );
+        ChannelFutureListener drained = window.acquire( channel, 1024 );
+        drained.operationComplete( Channels.failedFuture( channel, new Exception( "Failed" ) ) );
+        channel.getCloseFuture().awaitUninterruptibly( 5, TimeUnit.SECONDS );
+        assertFalse( channel.isOpen() );
+        assertEquals( 0, window.pendingBytes() );
+    }
+
+    private void assertWaiting( Future<?> future ) throws Exception
+    {
+        try
+        {
+            future.get( 100, TimeUnit.MILLISECONDS );
+            throw new AssertionError( "Should still be waiting for the window to open up" );
+        }
+        catch ( TimeoutException e )
+        {   // Good
+        }
+    }
+}
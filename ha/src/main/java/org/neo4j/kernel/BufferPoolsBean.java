@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.com.ChannelBufferPool;
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.ha.BufferPools;
+import org.neo4j.kernel.ha.Master;
+import org.neo4j.kernel.ha.MasterClient;
+import org.neo4j.kernel.ha.MasterServer;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class BufferPoolsBean extends ManagementBeanProvider
+{
+    public BufferPoolsBean()
+    {
+        super( BufferPools.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new BufferPoolsImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new BufferPoolsImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class BufferPoolsImpl extends Neo4jMBean implements BufferPools
+    {
+        private final HighlyAvailableGraphDatabase db;
+
+        BufferPoolsImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        BufferPoolsImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        /**
+         * @return the pool of the master server if this is the master, otherwise
+         * the pool of the client talking to the master, or {@code null} if there's
+         * no master at the moment.
+         */
+        private ChannelBufferPool pool()
+        {
+            MasterServer server = db.getMasterServerIfMaster();
+            if ( server != null ) return server.getBufferPool();
+            Master master = db.getBroker().getMaster().first();
+            return master instanceof MasterClient ? ((MasterClient) master).getBufferPool() : null;
+        }
+
+        public boolean isMaster()
+        {
+            return db.isMaster();
+        }
+
+        public long getHits()
+        {
+            ChannelBufferPool pool = pool();
+            return pool != null ? pool.getHits() : 0;
+        }
+
+        public long getMisses()
+        {
+            ChannelBufferPool pool = pool();
+            return pool != null ? pool.getMisses() : 0;
+        }
+
+        public long getDiscarded()
+        {
+            ChannelBufferPool pool = pool();
+            return pool != null ? pool.getDiscarded() : 0;
+        }
+
+        public int getPooledBuffers()
+        {
+            ChannelBufferPool pool = pool();
+            return pool != null ? pool.getPooledBuffers() : 0;
+        }
+
+        public long getPooledBytes()
+        {
+            ChannelBufferPool pool = pool();
+            return pool != null ? pool.getPooledBytes() : 0;
+        }
+    }
+}
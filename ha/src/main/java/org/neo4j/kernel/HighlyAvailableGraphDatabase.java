@@ -31,8 +31,11 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ScheduledExecutorService;
@@ -51,6 +54,7 @@ import org.neo4j.com.StoreIdGetter;
 import org.neo4j.com.ToFileStoreWriter;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
@@ -80,6 +84,8 @@ import org.neo4j.kernel.ha.MasterGraphDatabase;
 import org.neo4j.kernel.ha.MasterServer;
 import org.neo4j.kernel.ha.SlaveDatabaseOperations;
 import org.neo4j.kernel.ha.SlaveGraphDatabase;
+import org.neo4j.kernel.ha.SlaveLockManager;
+import org.neo4j.kernel.ha.TxChecksumCache;
 import org.neo4j.kernel.ha.shell.ZooClientFactory;
 import org.neo4j.kernel.ha.zookeeper.Machine;
 import org.neo4j.kernel.ha.zookeeper.NoMasterException;
@@ -155,6 +161,7 @@ public class HighlyAvailableGraphDatabase
     private BranchedDataPolicy branchedDataPolicy;
     private final SlaveUpdateMode slaveUpdateMode;
     private final Caches caches;
+    private final TxChecksumCache txChecksums = new TxChecksumCache();
 
     // This lock is used to safeguard access to internal database
     // Users will acquire readlock, and upon master/slave switch
@@ -391,6 +398,24 @@ public class HighlyAvailableGraphDatabase
         return localGraph().getXaDataSourceManager();
     }
 
+    /**
+     * Takes the write locks of the given nodes and relationships on the master
+     * in as few requests as possible, for a transaction on a slave about to
+     * write to them, instead of one request per entity as each is written to.
+     * Does nothing on the master, where taking locks is local anyway.
+     *
+     * @param entities the nodes and relationships the current transaction is
+     * going to write to.
+     */
+    public void acquireWriteLocks( PropertyContainer... entities )
+    {
+        LockManager lockManager = localGraph().getLockManager();
+        if ( lockManager instanceof SlaveLockManager )
+        {
+            ((SlaveLockManager) lockManager).acquireWriteLocksOnMaster( entities );
+        }
+    }
+
     @Override
     public TransactionManager getTxManager()
     {
@@ -895,6 +920,11 @@ public class HighlyAvailableGraphDatabase
         return this.broker;
     }
 
+    public SlaveDatabaseOperations getSlaveDatabaseOperations()
+    {
+        return this.slaveOperations;
+    }
+
     public void pullUpdates()
     {
         try
@@ -1672,34 +1702,103 @@ public class HighlyAvailableGraphDatabase
         }
     }
 
-    class LocalDatabaseOperations implements SlaveDatabaseOperations, ClusterEventReceiver
+    /**
+     * The last committed transaction of each data source, as sent to the master
+     * in slave contexts, and the master id and checksum of the last one of the
+     * neo store data source.
+     */
+    private class LastAppliedTransactions
     {
-        @Override
-        public SlaveContext getSlaveContext( int eventIdentifier )
+        private final XaDataSource[] dataSources;
+        private final long[] txIds;
+        private final Tx[] txs;
+        private final Pair<Integer,Long> master;
+
+        LastAppliedTransactions( Collection<XaDataSource> dataSources )
         {
-            // Constructs a slave context from scratch.
+            this.dataSources = dataSources.toArray( new XaDataSource[dataSources.size()] );
+            this.txIds = new long[this.dataSources.length];
+            this.txs = new Tx[this.dataSources.length];
+            Pair<Integer,Long> master = null;
             try
             {
-                XaDataSourceManager localDataSourceManager = getXaDataSourceManager();
-                Collection<XaDataSource> dataSources = localDataSourceManager.getAllRegisteredDataSources();
-                Tx[] txs = new Tx[dataSources.size()];
-                int i = 0;
-                Pair<Integer,Long> master = null;
-                for ( XaDataSource dataSource : dataSources )
+                for ( int i = 0; i < this.dataSources.length; i++ )
                 {
+                    XaDataSource dataSource = this.dataSources[i];
                     long txId = dataSource.getLastCommittedTxId();
                     if( dataSource.getName().equals( Config.DEFAULT_DATA_SOURCE_NAME ) )
                     {
-                        master = dataSource.getMasterForCommittedTx( txId );
+                        master = txChecksums.getMasterForCommittedTx( dataSource, txId );
                     }
-                    txs[i++] = SlaveContext.lastAppliedTx( dataSource.getName(), txId );
+                    txIds[i] = txId;
+                    txs[i] = SlaveContext.lastAppliedTx( dataSource.getName(), txId );
                 }
-                return new SlaveContext( startupTime, machineId, eventIdentifier, txs, master.first(), master.other() );
             }
             catch ( IOException e )
             {
                 throw new RuntimeException( e );
             }
+            this.master = master;
+        }
+
+        boolean isCurrent( Collection<XaDataSource> currentDataSources )
+        {
+            if ( currentDataSources.size() != dataSources.length ) return false;
+            int i = 0;
+            for ( XaDataSource dataSource : currentDataSources )
+            {
+                if ( dataSource != dataSources[i] || dataSource.getLastCommittedTxId() != txIds[i] ) return false;
+                i++;
+            }
+            return true;
+        }
+    }
+
+    class LocalDatabaseOperations implements SlaveDatabaseOperations, ClusterEventReceiver
+    {
+        private volatile LastAppliedTransactions lastApplied;
+        private final Set<Integer> txsToBegin = Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
+        private final Set<Integer> txsFinished = Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
+
+        @Override
+        public SlaveContext getSlaveContext( int eventIdentifier )
+        {
+            // Reuses the last applied transactions of the previous slave context,
+            // unless a transaction has been committed or applied since.
+            Collection<XaDataSource> dataSources = getXaDataSourceManager().getAllRegisteredDataSources();
+            LastAppliedTransactions transactions = lastApplied;
+            if ( transactions == null || !transactions.isCurrent( dataSources ) )
+            {
+                transactions = new LastAppliedTransactions( dataSources );
+                lastApplied = transactions;
+            }
+            // A copy of its own, since the array of a slave context can be changed through it
+            return new SlaveContext( startupTime, machineId, eventIdentifier, transactions.txs.clone(),
+                    transactions.master.first(), transactions.master.other(), txsToBegin.contains( eventIdentifier ) );
+        }
+
+        @Override
+        public void beginTxWithNextRequest( int eventIdentifier )
+        {
+            txsToBegin.add( eventIdentifier );
+        }
+
+        @Override
+        public void txBegun( int eventIdentifier )
+        {
+            txsToBegin.remove( eventIdentifier );
+        }
+
+        @Override
+        public void txFinished( int eventIdentifier )
+        {
+            txsFinished.add( eventIdentifier );
+        }
+
+        @Override
+        public boolean wasTxFinished( int eventIdentifier )
+        {
+            return txsFinished.remove( eventIdentifier );
         }
 
         @Override
@@ -1766,7 +1865,8 @@ public class HighlyAvailableGraphDatabase
         {
             try
             {
-                return localGraph().getXaDataSourceManager().getNeoStoreDataSource().getMasterForCommittedTx( tx ).first();
+                return txChecksums.getMasterForCommittedTx(
+                        localGraph().getXaDataSourceManager().getNeoStoreDataSource(), tx ).first();
             }
             catch ( IOException e )
             {
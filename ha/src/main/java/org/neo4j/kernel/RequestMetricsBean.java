@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.com.RequestStatistics;
+import org.neo4j.com.RequestStatistics.Entry;
+import org.neo4j.com.TransactionCache;
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.ha.Master;
+import org.neo4j.kernel.ha.MasterClient;
+import org.neo4j.kernel.ha.MasterServer;
+import org.neo4j.kernel.ha.RequestMetrics;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class RequestMetricsBean extends ManagementBeanProvider
+{
+    public RequestMetricsBean()
+    {
+        super( RequestMetrics.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestMetricsImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestMetricsImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class RequestMetricsImpl extends Neo4jMBean implements RequestMetrics
+    {
+        private final HighlyAvailableGraphDatabase db;
+
+        RequestMetricsImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        RequestMetricsImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        /**
+         * @return the statistics of the master server if this is the master,
+         * otherwise those of the client talking to the master, or {@code null}
+         * if there's no master at the moment.
+         */
+        private RequestStatistics statistics()
+        {
+            MasterServer server = db.getMasterServerIfMaster();
+            if ( server != null ) return server.getRequestStatistics();
+            Master master = db.getBroker().getMaster().first();
+            return master instanceof MasterClient ? ((MasterClient) master).getRequestStatistics() : null;
+        }
+
+        /**
+         * @return the transaction cache of the master if this is the master,
+         * otherwise {@code null}.
+         */
+        private TransactionCache transactionCache()
+        {
+            MasterServer server = db.getMasterServerIfMaster();
+            return server != null ? server.getTransactionCache() : null;
+        }
+
+        private Entry[] entries()
+        {
+            RequestStatistics statistics = statistics();
+            return statistics != null ? statistics.getEntries() : new Entry[0];
+        }
+
+        public boolean isMaster()
+        {
+            return db.isMaster();
+        }
+
+        public boolean isEnabled()
+        {
+            RequestStatistics statistics = statistics();
+            return statistics != null && statistics.isEnabled();
+        }
+
+        public String[] getRequestTypes()
+        {
+            Entry[] entries = entries();
+            String[] result = new String[entries.length];
+            for ( int i = 0; i < entries.length; i++ )
+            {
+                result[i] = entries[i].toString();
+            }
+            return result;
+        }
+
+        public long getRequests()
+        {
+            long result = 0;
+            for ( Entry entry : entries() )
+            {
+                result += entry.getRequests();
+            }
+            return result;
+        }
+
+        public long getBytesIn()
+        {
+            long result = 0;
+            for ( Entry entry : entries() )
+            {
+                result += entry.getBytesIn();
+            }
+            return result;
+        }
+
+        public long getBytesOut()
+        {
+            long result = 0;
+            for ( Entry entry : entries() )
+            {
+                result += entry.getBytesOut();
+            }
+            return result;
+        }
+
+        public long getTransactionCacheHits()
+        {
+            TransactionCache cache = transactionCache();
+            return cache != null ? cache.getHits() : 0;
+        }
+
+        public long getTransactionCacheMisses()
+        {
+            TransactionCache cache = transactionCache();
+            return cache != null ? cache.getMisses() : 0;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import org.neo4j.jmx.Description;
+import org.neo4j.jmx.ManagementInterface;
+
+@ManagementInterface( name = BufferPools.NAME )
+@Description( "Usage of the pooled buffers for communication between master and slaves" )
+public interface BufferPools
+{
+    final String NAME = "Buffer Pools";
+
+    @Description( "Whether the numbers are for the master server or for the client of a slave talking to the master" )
+    boolean isMaster();
+
+    @Description( "Number of buffers leased from the pool" )
+    long getHits();
+
+    @Description( "Number of buffers which had to be allocated since the pool was empty" )
+    long getMisses();
+
+    @Description( "Number of buffers returned when the pool was full" )
+    long getDiscarded();
+
+    @Description( "Number of buffers in the pool" )
+    int getPooledBuffers();
+
+    @Description( "Total capacity of the buffers in the pool" )
+    long getPooledBytes();
+}
@@ -20,6 +20,7 @@
 package org.neo4j.kernel.ha;
 
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.ANY;
+import static org.neo4j.graphdb.factory.GraphDatabaseSetting.FALSE;
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.TRUE;
 
 import org.neo4j.graphdb.factory.Default;
@@ -43,7 +44,65 @@ public class HaSettings
 
     @Default("20")
     public static final GraphDatabaseSetting.IntegerSetting max_concurrent_channels_per_slave = new GraphDatabaseSetting.IntegerSetting( "ha.max_concurrent_channels_per_slave", "Must be valid timeout in seconds",1,null );
+
+    @Default("1")
+    public static final IntegerSetting prewarmed_channels_per_slave = new IntegerSetting( "ha.prewarmed_channels_per_slave", "Must be a valid number of channels", 0, null );
+
+    @Default("0")
+    public static final GraphDatabaseSetting.IntegerSetting multiplexed_channels_per_slave = new GraphDatabaseSetting.IntegerSetting( "ha.multiplexed_channels_per_slave", "Must be a valid number of channels, 0 disables multiplexing",0,null );
     
+    @Default( FALSE )
+    public static final BooleanSetting wire_compression = new BooleanSetting( "ha.wire_compression" );
+
+    @Default("64")
+    public static final IntegerSetting max_partial_request_size_per_channel = new IntegerSetting( "ha.max_partial_request_size_per_channel", "Must be a valid size in megabytes", 1, null );
+
+    @Default( FALSE )
+    public static final BooleanSetting serialize_failures = new BooleanSetting( "ha.serialize_failures" );
+
+    @Description( "Whether or not slaves take read locks locally only, without asking the master. Writes on other " +
+            "machines then don't wait for reads on a slave. A transaction waiting on the master for a write lock held " +
+            "by another transaction on the same slave, which in turn waits for a read lock of the first, isn't " +
+            "detected as a deadlock. It lasts until the lock request to the master times out, see ha.lock_read_timeout" )
+    @Default( FALSE )
+    public static final BooleanSetting local_read_locks = new BooleanSetting( "ha.local_read_locks" );
+
+    @Default("16")
+    public static final IntegerSetting transaction_cache_size = new IntegerSetting( "ha.transaction_cache_size", "Must be a valid size in megabytes, 0 disables the cache", 0, null );
+
+    @Default("200")
+    public static final IntegerSetting lock_lane_threads = new IntegerSetting( "ha.lock_lane_threads", "Must be a valid number of threads", 1, null );
+
+    @Default("2000")
+    public static final IntegerSetting lock_lane_queue_size = new IntegerSetting( "ha.lock_lane_queue_size", "Must be a valid number of requests", 0, null );
+
+    @Default("100")
+    public static final IntegerSetting ongoing_lock_lane_threads = new IntegerSetting( "ha.ongoing_lock_lane_threads", "Must be a valid number of threads", 1, null );
+
+    @Default("1000")
+    public static final IntegerSetting ongoing_lock_lane_queue_size = new IntegerSetting( "ha.ongoing_lock_lane_queue_size", "Must be a valid number of requests", 0, null );
+
+    @Default("100")
+    public static final IntegerSetting transaction_lane_threads = new IntegerSetting( "ha.transaction_lane_threads", "Must be a valid number of threads", 1, null );
+
+    @Default("1000")
+    public static final IntegerSetting transaction_lane_queue_size = new IntegerSetting( "ha.transaction_lane_queue_size", "Must be a valid number of requests", 0, null );
+
+    @Default("20")
+    public static final IntegerSetting pull_updates_lane_threads = new IntegerSetting( "ha.pull_updates_lane_threads", "Must be a valid number of threads", 1, null );
+
+    @Default("200")
+    public static final IntegerSetting pull_updates_lane_queue_size = new IntegerSetting( "ha.pull_updates_lane_queue_size", "Must be a valid number of requests", 0, null );
+
+    @Default("4")
+    public static final IntegerSetting copy_store_lane_threads = new IntegerSetting( "ha.copy_store_lane_threads", "Must be a valid number of threads", 1, null );
+
+    @Default("20")
+    public static final IntegerSetting copy_store_lane_queue_size = new IntegerSetting( "ha.copy_store_lane_queue_size", "Must be a valid number of requests", 0, null );
+
+    @Default( TRUE )
+    public static final BooleanSetting request_statistics = new BooleanSetting( "ha.request_statistics" );
+
     public static final IntegerSetting server_id = new GraphDatabaseSetting.IntegerSetting( "ha.server_id", "Must be a valid server id" );
 
     public static final StringSetting server = new StringSetting( "ha.server", ANY, "Must be a valid IP and port to bind to as master" );
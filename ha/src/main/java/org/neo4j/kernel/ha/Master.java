@@ -59,6 +59,14 @@ public interface Master
 
     Response<Void> finishTransaction( SlaveContext context, boolean success );
 
+    /**
+     * Commits the transaction like {@link #commitSingleResourceTransaction(SlaveContext, String, TxExtractor)}
+     * and then finishes it like {@link #finishTransaction(SlaveContext, boolean)},
+     * for a transaction on a slave which has nothing more to commit.
+     */
+    Response<Long> commitAndFinishTransaction( SlaveContext context,
+            String resource, TxExtractor txGetter );
+
     Response<Void> pullUpdates( SlaveContext context );
 
     /**
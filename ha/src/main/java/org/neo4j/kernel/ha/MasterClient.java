@@ -43,6 +43,7 @@ import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
+import org.neo4j.com.ResponseFuture;
 import org.neo4j.com.Serializer;
 import org.neo4j.com.SlaveContext;
 import org.neo4j.com.StoreIdGetter;
@@ -88,11 +89,37 @@ public class MasterClient extends Client<Master> implements Master
 
     public MasterClient( String hostNameOrIp, int port, StringLogger stringLogger, StoreIdGetter storeIdGetter,ConnectionLostHandler connectionLostHandler,
             int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels )
+    {
+        this( hostNameOrIp, port, stringLogger, storeIdGetter, connectionLostHandler, readTimeoutSeconds,
+                lockReadTimeout, maxConcurrentChannels, 0 );
+    }
+
+    public MasterClient( String hostNameOrIp, int port, StringLogger stringLogger, StoreIdGetter storeIdGetter,ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels )
+    {
+        this( hostNameOrIp, port, stringLogger, storeIdGetter, connectionLostHandler, readTimeoutSeconds,
+                lockReadTimeout, maxConcurrentChannels, multiplexedChannels, true );
+    }
+
+    public MasterClient( String hostNameOrIp, int port, StringLogger stringLogger, StoreIdGetter storeIdGetter,ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels,
+            boolean requestStatistics )
+    {
+        this( hostNameOrIp, port, stringLogger, storeIdGetter, connectionLostHandler, readTimeoutSeconds,
+                lockReadTimeout, maxConcurrentChannels, multiplexedChannels, requestStatistics,
+                DEFAULT_PREWARMED_CHANNELS );
+    }
+
+    public MasterClient( String hostNameOrIp, int port, StringLogger stringLogger, StoreIdGetter storeIdGetter,ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, int multiplexedChannels,
+            boolean requestStatistics, int prewarmedChannels )
     {
         super( hostNameOrIp, port, stringLogger, storeIdGetter,
                 MasterServer.FRAME_LENGTH, MasterServer.PROTOCOL_VERSION, readTimeoutSeconds,
-                maxConcurrentChannels, Math.min( maxConcurrentChannels, DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ),connectionLostHandler );
+                maxConcurrentChannels, Math.min( maxConcurrentChannels, DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ),connectionLostHandler,
+                multiplexedChannels, prewarmedChannels );
         this.lockReadTimeout = lockReadTimeout;
+        getRequestStatistics().setEnabled( requestStatistics );
     }
 
     @Override
@@ -101,6 +128,14 @@ public class MasterClient extends Client<Master> implements Master
         return ((HaRequestType)type).isLock() ? lockReadTimeout : readTimeout;
     }
 
+    @Override
+    protected boolean shouldMultiplex( RequestType<Master> type )
+    {
+        // These may stream lots of data back and need the flow control of a channel of their own
+        return type != HaRequestType.COPY_STORE && type != HaRequestType.COPY_TRANSACTIONS &&
+                type != HaRequestType.PULL_UPDATES;
+    }
+
     @Override
     protected boolean shouldCheckStoreId( RequestType<Master> type )
     {
@@ -174,6 +209,48 @@ public class MasterClient extends Client<Master> implements Master
                 new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
     }
 
+    /**
+     * As {@link #acquireNodeWriteLock(SlaveContext, long...)}, but without
+     * waiting for the response, see {@link Client#sendRequestAsync(RequestType, SlaveContext, Serializer, Deserializer)}.
+     * The master resumes the transaction of {@code context} for each request,
+     * so only requests of different transactions may be going at the same time.
+     */
+    public ResponseFuture<LockResult> acquireNodeWriteLockAsync( SlaveContext context, long... nodes )
+    {
+        return sendRequestAsync( HaRequestType.ACQUIRE_NODE_WRITE_LOCK, context,
+                new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    /**
+     * As {@link #acquireNodeWriteLockAsync(SlaveContext, long...)}, for read locks.
+     */
+    public ResponseFuture<LockResult> acquireNodeReadLockAsync( SlaveContext context, long... nodes )
+    {
+        return sendRequestAsync( HaRequestType.ACQUIRE_NODE_READ_LOCK, context,
+                new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    /**
+     * As {@link #acquireNodeWriteLockAsync(SlaveContext, long...)}, for relationships.
+     */
+    public ResponseFuture<LockResult> acquireRelationshipWriteLockAsync( SlaveContext context,
+            long... relationships )
+    {
+        return sendRequestAsync( HaRequestType.ACQUIRE_RELATIONSHIP_WRITE_LOCK, context,
+                new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    /**
+     * As {@link #acquireNodeWriteLockAsync(SlaveContext, long...)}, for read
+     * locks of relationships.
+     */
+    public ResponseFuture<LockResult> acquireRelationshipReadLockAsync( SlaveContext context,
+            long... relationships )
+    {
+        return sendRequestAsync( HaRequestType.ACQUIRE_RELATIONSHIP_READ_LOCK, context,
+                new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
+    }
+
     public Response<LockResult> acquireGraphWriteLock( SlaveContext context )
     {
         return sendRequest( HaRequestType.ACQUIRE_GRAPH_WRITE_LOCK, context,
@@ -203,7 +280,19 @@ public class MasterClient extends Client<Master> implements Master
     public Response<Long> commitSingleResourceTransaction( SlaveContext context,
             final String resource, final TxExtractor txGetter )
     {
-        return sendRequest( HaRequestType.COMMIT, context, new Serializer()
+        return commit( HaRequestType.COMMIT, context, resource, txGetter );
+    }
+
+    public Response<Long> commitAndFinishTransaction( SlaveContext context,
+            final String resource, final TxExtractor txGetter )
+    {
+        return commit( HaRequestType.COMMIT_AND_FINISH, context, resource, txGetter );
+    }
+
+    private Response<Long> commit( HaRequestType type, SlaveContext context,
+            final String resource, final TxExtractor txGetter )
+    {
+        return sendRequest( type, context, new Serializer()
         {
             public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
             {
@@ -291,7 +380,8 @@ public class MasterClient extends Client<Master> implements Master
     private SlaveContext stripFromTransactions( SlaveContext context )
     {
         return new SlaveContext( context.getSessionId(), context.machineId(),
-                context.getEventIdentifier(), new SlaveContext.Tx[0], context.getMasterId(), context.getChecksum() );
+                context.getEventIdentifier(), new SlaveContext.Tx[0], context.getMasterId(), context.getChecksum(),
+                context.beginsTx() );
     }
 
     @Override
@@ -576,7 +666,20 @@ public class MasterClient extends Client<Master> implements Master
             {
                 return true;
             }
-        };
+        },
+
+        //====
+        COMMIT_AND_FINISH( new MasterCaller<Master, Long>()
+        {
+            public Response<Long> callMaster( Master master, SlaveContext context,
+                    ChannelBuffer input, ChannelBuffer target )
+            {
+                String resource = readString( input );
+                final ReadableByteChannel reader = new BlockLogReader( input );
+                return master.commitAndFinishTransaction( context, resource,
+                        TxExtractor.create( reader ) );
+            }
+        }, LONG_SERIALIZER, true );
 
         @SuppressWarnings( "rawtypes" )
         final MasterCaller caller;
@@ -29,6 +29,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.transaction.NotSupportedException;
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
@@ -36,6 +37,7 @@ import org.neo4j.com.MasterUtil;
 import org.neo4j.com.Response;
 import org.neo4j.com.SlaveContext;
 import org.neo4j.com.StoreWriter;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.com.TxExtractor;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
@@ -74,10 +76,17 @@ public class MasterImpl implements Master
     private final Map<SlaveContext, MasterTransaction> transactions = synchronizedMap( new HashMap<SlaveContext, MasterTransaction>() );
     private final ScheduledExecutorService unfinishedTransactionsExecutor;
     private int unfinishedTransactionThreshold;
+    private final TransactionCache transactionCache;
 
     public MasterImpl( GraphDatabaseAPI db, int timeOut )
+    {
+        this( db, timeOut, new TransactionCache( TransactionCache.DEFAULT_CAPACITY ) );
+    }
+
+    public MasterImpl( GraphDatabaseAPI db, int timeOut, TransactionCache transactionCache )
     {
         this.graphDb = db;
+        this.transactionCache = transactionCache;
         this.msgLog = graphDb.getMessageLog();
         this.unfinishedTransactionThreshold = timeOut;
         this.unfinishedTransactionsExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -131,6 +140,11 @@ public class MasterImpl implements Master
     {
         return this.graphDb;
     }
+
+    public TransactionCache getTransactionCache()
+    {
+        return transactionCache;
+    }
     
     @Override
     public Response<Void> initializeTx( SlaveContext context )
@@ -181,7 +195,7 @@ public class MasterImpl implements Master
 
     private <T> Response<T> packResponse( SlaveContext context, T response, Predicate<Long> filter )
     {
-        return MasterUtil.packResponse( graphDb, context, response, filter );
+        return MasterUtil.packResponse( graphDb, context, response, filter, transactionCache );
     }
 
     private Transaction getTx( SlaveContext txId )
@@ -237,7 +251,7 @@ public class MasterImpl implements Master
                 }
                 if ( transaction == null )
                 {
-                    if ( allowBegin )
+                    if ( allowBegin || txId.beginsTx() )
                     {
                         beginTx( txId );
                     }
@@ -387,6 +401,71 @@ public class MasterImpl implements Master
             TxExtractor txGetter )
     {
         Transaction otherTx = suspendOtherAndResumeThis( context, false );
+        try
+        {
+            return applyPreparedTransaction( context, resource, txGetter );
+        }
+        finally
+        {
+            suspendThisAndResumeOther( otherTx, context );
+        }
+    }
+
+    public Response<Long> commitAndFinishTransaction( SlaveContext context, String resource,
+            TxExtractor txGetter )
+    {
+        Transaction otherTx = suspendOtherAndResumeThis( context, false );
+        Response<Long> response;
+        try
+        {
+            response = applyPreparedTransaction( context, resource, txGetter );
+        }
+        catch ( RuntimeException e )
+        {
+            suspendThisAndResumeOther( otherTx, context );
+            throw e;
+        }
+        try
+        {
+            finishThisAndResumeOther( otherTx, context, true );
+        }
+        catch ( RuntimeException e )
+        {
+            // The transaction is committed and the slave needs its tx id. What's
+            // left of it here goes like other unfinished transactions do.
+            msgLog.logMessage( "Unable to finish " + context + " after committing it", e );
+            leaveToCleanup( otherTx, context );
+        }
+        return response;
+    }
+
+    /**
+     * Lets the unfinished transaction cleanup, or the closing of the channel
+     * of the slave, take care of a transaction which couldn't be finished.
+     */
+    private void leaveToCleanup( Transaction otherTx, SlaveContext context )
+    {
+        try
+        {
+            MasterTransaction tx = transactions.get( context );
+            if ( tx != null )
+            {
+                int status = tx.transaction.getStatus();
+                if ( status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK ) tx.updateTime();
+                else transactions.remove( context );
+            }
+            TransactionManager txManager = graphDb.getTxManager();
+            if ( txManager.getTransaction() != null ) txManager.suspend();
+            if ( otherTx != null ) txManager.resume( otherTx );
+        }
+        catch ( Exception e )
+        {
+            msgLog.logMessage( "Unable to leave " + context + " to be cleaned up", e );
+        }
+    }
+
+    private Response<Long> applyPreparedTransaction( SlaveContext context, String resource, TxExtractor txGetter )
+    {
         try
         {
             XaDataSource dataSource = graphDb.getXaDataSourceManager()
@@ -405,10 +484,6 @@ public class MasterImpl implements Master
         {
             throw new RuntimeException( e );
         }
-        finally
-        {
-            suspendThisAndResumeOther( otherTx, context );
-        }
     }
 
     public Response<Void> finishTransaction( SlaveContext context, boolean success )
@@ -465,7 +540,7 @@ public class MasterImpl implements Master
     public Response<Void> copyTransactions( SlaveContext context,
             String dsName, long startTxId, long endTxId )
     {
-        return MasterUtil.getTransactions( graphDb, dsName, startTxId, endTxId );
+        return MasterUtil.getTransactions( graphDb, dsName, startTxId, endTxId, transactionCache );
     }
 
     @Override
@@ -515,6 +590,15 @@ public class MasterImpl implements Master
     // but exposed so that other tools can reach that information.
     // =====================================================================
 
+    /**
+     * @return whether or not the transaction of {@code context} has been begun
+     * here and not yet finished, i.e. may hold locks.
+     */
+    public boolean isOngoing( SlaveContext context )
+    {
+        return transactions.containsKey( context );
+    }
+
     public Map<Integer, Collection<SlaveContext>> getOngoingTransactions()
     {
         Map<Integer, Collection<SlaveContext>> result = new HashMap<Integer, Collection<SlaveContext>>();
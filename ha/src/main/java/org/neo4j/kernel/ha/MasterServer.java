@@ -27,11 +27,15 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import org.jboss.netty.channel.Channel;
+import org.neo4j.com.FairRequestScheduler;
 import org.neo4j.com.Protocol;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Server;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.com.SlaveContext;
 import org.neo4j.com.TxChecksumVerifier;
+import org.neo4j.graphdb.factory.GraphDatabaseSetting.IntegerSetting;
+import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.ha.MasterClient.HaRequestType;
 import org.neo4j.kernel.impl.util.StringLogger;
 
@@ -43,16 +47,33 @@ public class MasterServer extends Server<Master, Void>
 {
     /* Version 1 first version
      * Version 2 since 2012-01-24
-     * Version 3 since 2012-02-16 */
-    static final byte PROTOCOL_VERSION = 3;
+     * Version 3 since 2012-02-16
+     * Version 4 since 2026-10-18, commit and finish of a transaction in one request */
+    static final byte PROTOCOL_VERSION = 4;
 
     static final int FRAME_LENGTH = Protocol.DEFAULT_FRAME_LENGTH;
 
-    public MasterServer( Master realMaster, final int port, StringLogger logger, int maxConcurrentTransactions,
-            int oldChannelThreshold, TxChecksumVerifier txVerifier )
+    private final boolean compress;
+    private final long maxPartialRequestBytesPerChannel;
+    private final boolean serializeFailures;
+
+    /**
+     * The number of concurrent transactions per slave, compression, request
+     * statistics, how failures are sent and the sizes of the lanes requests
+     * are scheduled in, see {@link MasterRequestScheduler}, come from
+     * {@code config}, see {@link HaSettings}.
+     */
+    public MasterServer( Master realMaster, final int port, StringLogger logger, int oldChannelThreshold,
+            TxChecksumVerifier txVerifier, Config config )
     {
-        super( realMaster, port, logger, FRAME_LENGTH, PROTOCOL_VERSION, maxConcurrentTransactions,
-                oldChannelThreshold, txVerifier );
+        super( realMaster, port, logger, FRAME_LENGTH, PROTOCOL_VERSION,
+                config.getInteger( HaSettings.max_concurrent_channels_per_slave ), oldChannelThreshold, txVerifier,
+                new MasterRequestScheduler( realMaster, config ) );
+        this.compress = config.getBoolean( HaSettings.wire_compression );
+        this.maxPartialRequestBytesPerChannel =
+                config.getInteger( HaSettings.max_partial_request_size_per_channel ) * 1024L * 1024L;
+        this.serializeFailures = config.getBoolean( HaSettings.serialize_failures );
+        getRequestStatistics().setEnabled( config.getBoolean( HaSettings.request_statistics ) );
     }
 
     @Override
@@ -61,6 +82,25 @@ public class MasterServer extends Server<Master, Void>
         return HaRequestType.values()[id];
     }
 
+    @Override
+    protected boolean shouldCompressResponse( RequestType<Master> type )
+    {
+        // Lock responses are tiny and latency sensitive, leave them be
+        return compress && !((HaRequestType) type).isLock();
+    }
+
+    @Override
+    protected long getMaxPartialRequestBytesPerChannel()
+    {
+        return maxPartialRequestBytesPerChannel;
+    }
+
+    @Override
+    protected boolean shouldSerializeFailures()
+    {
+        return serializeFailures;
+    }
+
     @Override
     protected void finishOffChannel( Channel channel, SlaveContext context )
     {
@@ -80,17 +120,18 @@ public class MasterServer extends Server<Master, Void>
         return !( failure instanceof UnableToResumeTransactionException );
     }
 
+    public TransactionCache getTransactionCache()
+    {
+        return ((MasterImpl) getMaster()).getTransactionCache();
+    }
+
     public Map<Integer, Collection<SlaveContext>> getSlaveInformation()
     {
         // Which slaves are connected a.t.m?
         Set<Integer> machineIds = new HashSet<Integer>();
-        Map<Channel, SlaveContext> channels = getConnectedSlaveChannels();
-        synchronized ( channels )
+        for ( SlaveContext context : getConnectedSlaveChannels().values() )
         {
-            for ( SlaveContext context : channels.values() )
-            {
-                machineIds.add( context.machineId() );
-            }
+            machineIds.add( context.machineId() );
         }
 
         // Insert missing slaves into the map so that all connected slave
@@ -106,4 +147,86 @@ public class MasterServer extends Server<Master, Void>
         }
         return new TreeMap<Integer, Collection<SlaveContext>>( ongoingTransactions );
     }
+
+    /**
+     * Keeps lock requests, which may wait for other transactions for a long
+     * time, from holding up the commits and rollbacks those transactions need
+     * to finish. And keeps slaves pulling updates or copying stores from
+     * holding up either.
+     * <p>
+     * Lock requests of transactions which are already ongoing here, and so may
+     * hold locks others wait for, don't queue behind those others. They go in
+     * a lane of their own, bounded like the others. There's at most one of them
+     * per ongoing transaction since a transaction waits for its requests.
+     */
+    private static class MasterRequestScheduler extends FairRequestScheduler<Master>
+    {
+        private volatile Master master;
+        private final Lane locks;
+        private final Lane ongoingLocks;
+        private final Lane transactions;
+        private final Lane pullUpdates;
+        private final Lane copyStore;
+
+        MasterRequestScheduler( Master master, Config config )
+        {
+            this( master, lane( "locks", config, HaSettings.lock_lane_threads, HaSettings.lock_lane_queue_size ),
+                    lane( "ongoingLocks", config, HaSettings.ongoing_lock_lane_threads,
+                            HaSettings.ongoing_lock_lane_queue_size ),
+                    lane( "transactions", config, HaSettings.transaction_lane_threads,
+                            HaSettings.transaction_lane_queue_size ),
+                    lane( "pullUpdates", config, HaSettings.pull_updates_lane_threads,
+                            HaSettings.pull_updates_lane_queue_size ),
+                    lane( "copyStore", config, HaSettings.copy_store_lane_threads,
+                            HaSettings.copy_store_lane_queue_size ) );
+        }
+
+        private MasterRequestScheduler( Master master, Lane locks, Lane ongoingLocks, Lane transactions,
+                Lane pullUpdates, Lane copyStore )
+        {
+            super( locks, ongoingLocks, transactions, pullUpdates, copyStore );
+            this.master = master;
+            this.locks = locks;
+            this.ongoingLocks = ongoingLocks;
+            this.transactions = transactions;
+            this.pullUpdates = pullUpdates;
+            this.copyStore = copyStore;
+        }
+
+        private static Lane lane( String name, Config config, IntegerSetting threads, IntegerSetting queueSize )
+        {
+            return new Lane( name, config.getInteger( threads ), config.getInteger( queueSize ) );
+        }
+
+        @Override
+        protected Lane laneFor( RequestType<Master> type, SlaveContext context )
+        {
+            Master master = this.master;
+            if ( ((HaRequestType) type).isLock() && master instanceof MasterImpl &&
+                    ((MasterImpl) master).isOngoing( context ) ) return ongoingLocks;
+            return laneFor( type );
+        }
+
+        @Override
+        public void shutdown()
+        {
+            super.shutdown();
+            // Like the master of the Server, since the channelFactory holds
+            // a reference to the Server, and so to this scheduler.
+            master = null;
+        }
+
+        @Override
+        protected Lane laneFor( RequestType<Master> type )
+        {
+            HaRequestType haType = (HaRequestType) type;
+            if ( haType.isLock() ) return locks;
+            switch ( haType )
+            {
+            case PULL_UPDATES: return pullUpdates;
+            case COPY_STORE: case COPY_TRANSACTIONS: return copyStore;
+            default: return transactions;
+            }
+        }
+    }
 }
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import org.neo4j.jmx.Description;
+import org.neo4j.jmx.ManagementInterface;
+
+@ManagementInterface( name = RequestMetrics.NAME )
+@Description( "Latencies and bytes of the requests between master and slaves, per request type" )
+public interface RequestMetrics
+{
+    final String NAME = "Request Metrics";
+
+    @Description( "Whether the numbers are for the master server or for the client of a slave talking to the master" )
+    boolean isMaster();
+
+    @Description( "Whether requests are being measured, see the ha.request_statistics setting" )
+    boolean isEnabled();
+
+    @Description( "Number of requests, bytes in and out and the mean, 50th and 99th percentile and max time " +
+            "in microseconds of queueing, master call, serialization and network write of each request type" )
+    String[] getRequestTypes();
+
+    @Description( "Number of requests, of all types" )
+    long getRequests();
+
+    @Description( "Number of bytes of the chunks received, of all request types" )
+    long getBytesIn();
+
+    @Description( "Number of bytes of the chunks sent, of all request types" )
+    long getBytesOut();
+
+    @Description( "Number of transactions streamed to slaves from the master's cache of recent transactions, " +
+            "see the ha.transaction_cache_size setting" )
+    long getTransactionCacheHits();
+
+    @Description( "Number of transactions streamed to slaves which weren't in the master's cache of recent " +
+            "transactions and had to be extracted from the logical log" )
+    long getTransactionCacheMisses();
+}
@@ -34,6 +34,38 @@ public interface SlaveDatabaseOperations extends ConnectionLostHandler
      */
     SlaveContext getSlaveContext( int eventIdentifier );
 
+    /**
+     * Makes the slave contexts of transaction {@code eventIdentifier} ask the
+     * master to begin it, so that it's begun by the first request which needs
+     * it instead of by a request of its own. Until {@link #txBegun(int)}.
+     *
+     * @param eventIdentifier The event identifier of the transaction
+     */
+    void beginTxWithNextRequest( int eventIdentifier );
+
+    /**
+     * Called when a request for transaction {@code eventIdentifier} has been
+     * served by the master, which has then begun it if it was asked to.
+     *
+     * @param eventIdentifier The event identifier of the transaction
+     */
+    void txBegun( int eventIdentifier );
+
+    /**
+     * Called when transaction {@code eventIdentifier} has been committed and
+     * finished on the master in one request, so that it isn't finished again.
+     *
+     * @param eventIdentifier The event identifier of the transaction
+     */
+    void txFinished( int eventIdentifier );
+
+    /**
+     * @param eventIdentifier The event identifier of the transaction
+     * @return whether or not transaction {@code eventIdentifier} has been
+     * finished on the master already, see {@link #txFinished(int)}. Forgets it.
+     */
+    boolean wasTxFinished( int eventIdentifier );
+
     <T> T receive( Response<T> response );
 
     void exceptionHappened( RuntimeException e );
@@ -76,7 +76,7 @@ public class SlaveGraphDatabase
     @Override
     protected TxHook createTxHook()
     {
-        return new SlaveTxHook( broker, databaseOperations, this );
+        return new SlaveTxHook( broker, databaseOperations, this, config.getBoolean( HaSettings.local_read_locks ) );
     }
 
     @Override
@@ -108,7 +108,8 @@ public class SlaveGraphDatabase
     protected LockManager createLockManager()
     {
         assert txManager != null && txHook != null;
-        return new SlaveLockManager( ragManager, (TxManager) txManager, txHook, broker, databaseOperations );
+        return new SlaveLockManager( ragManager, (TxManager) txManager, txHook, broker, databaseOperations,
+                config.getBoolean( HaSettings.local_read_locks ) );
     }
 
     public void forgetIdAllocationsFromMaster()
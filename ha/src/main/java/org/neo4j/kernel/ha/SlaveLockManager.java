@@ -19,11 +19,22 @@
  */
 package org.neo4j.kernel.ha;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
 import javax.transaction.Transaction;
 
 import org.neo4j.com.Response;
 import org.neo4j.com.SlaveContext;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotInTransactionException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.kernel.DeadlockDetectedException;
 import org.neo4j.kernel.impl.core.GraphProperties;
@@ -34,21 +45,56 @@ import org.neo4j.kernel.impl.transaction.RagManager;
 import org.neo4j.kernel.impl.transaction.TxHook;
 import org.neo4j.kernel.impl.transaction.TxManager;
 
+/**
+ * Takes the locks of a slave transaction on the master too, before taking
+ * them locally, so that transactions on different machines wait for each
+ * other.
+ * <p>
+ * With {@link HaSettings#local_read_locks} read locks are only taken locally.
+ * The deadlock detection of the master and that of this slave then each see
+ * only part of the waits. A transaction waiting on the master for a write lock
+ * held by another transaction on this slave, which waits here for a read lock
+ * of the first, is a deadlock neither of them detects. It lasts until the
+ * lock request to the master times out, after {@link HaSettings#lock_read_timeout}.
+ */
 public class SlaveLockManager extends LockManager
 {
+    /**
+     * The most entities to send write locks for in one request, see
+     * {@link #acquireWriteLocksOnMaster(PropertyContainer...)}.
+     */
+    public static final int WRITE_LOCK_BATCH_SIZE = 1000;
+
     private final Broker broker;
     private final TxManager tm;
     private final SlaveDatabaseOperations databaseOperations;
     private final TxHook txHook;
+    private final boolean localReadLocks;
+    private final Map<Transaction, WriteLockedOnMaster> writeLockedOnMaster =
+            Collections.synchronizedMap( new WeakHashMap<Transaction, WriteLockedOnMaster>() );
 
     public SlaveLockManager( RagManager ragManager, TxManager tm, TxHook txHook, Broker broker,
             SlaveDatabaseOperations databaseOperations )
+    {
+        this( ragManager, tm, txHook, broker, databaseOperations, false );
+    }
+
+    /**
+     * @param localReadLocks whether or not to take read locks on this slave
+     * only. The master is then only involved in a transaction once it takes
+     * its first write lock, at the expense of writes on other machines not
+     * waiting for reads on this one and of some deadlocks going undetected,
+     * see above.
+     */
+    public SlaveLockManager( RagManager ragManager, TxManager tm, TxHook txHook, Broker broker,
+            SlaveDatabaseOperations databaseOperations, boolean localReadLocks )
     {
         super( ragManager );
         this.tm = tm;
         this.txHook = txHook;
         this.broker = broker;
         this.databaseOperations = databaseOperations;
+        this.localReadLocks = localReadLocks;
     }
 
     private int getLocalTxId()
@@ -68,7 +114,7 @@ public class SlaveLockManager extends LockManager
 
         try
         {
-            if ( grabber == null )
+            if ( grabber == null || localReadLocks )
             {
                 super.getReadLock( resource );
                 return;
@@ -81,6 +127,7 @@ public class SlaveLockManager extends LockManager
                 int eventIdentifier = getLocalTxId();
                 result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
                         databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
+                databaseOperations.txBegun( eventIdentifier );
                 switch ( result.getStatus() )
                 {
                 case OK_LOCKED:
@@ -120,7 +167,7 @@ public class SlaveLockManager extends LockManager
 
         try
         {
-            if ( grabber == null )
+            if ( grabber == null || isWriteLockedOnMaster( resource ) )
             {
                 super.getWriteLock( resource );
                 return;
@@ -133,6 +180,7 @@ public class SlaveLockManager extends LockManager
                 int eventIdentifier = getLocalTxId();
                 result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
                         databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
+                databaseOperations.txBegun( eventIdentifier );
                 switch ( result.getStatus() )
                 {
                 case OK_LOCKED:
@@ -151,6 +199,97 @@ public class SlaveLockManager extends LockManager
         }
     }
 
+    /**
+     * Takes the write locks of the given nodes and relationships on the
+     * master, a batch of them per request instead of one request per entity
+     * as they're written to. The local write locks are still taken as each
+     * entity is written to, only without asking the master again. The locks
+     * on the master are held until the transaction finishes.
+     */
+    public void acquireWriteLocksOnMaster( PropertyContainer... entities )
+    {
+        Transaction tx = tm.getTransaction();
+        if ( tx == null ) throw new NotInTransactionException();
+        List<Long> nodes = new ArrayList<Long>();
+        List<Long> relationships = new ArrayList<Long>();
+        for ( PropertyContainer entity : entities )
+        {
+            if ( entity instanceof Node ) nodes.add( ((Node) entity).getId() );
+            else if ( entity instanceof Relationship ) relationships.add( ((Relationship) entity).getId() );
+            else throw new IllegalArgumentException( "Can't lock " + entity );
+        }
+
+        try
+        {
+            initializeTxIfFirst();
+            WriteLockedOnMaster locked = writeLockedOnMaster.get( tx );
+            if ( locked == null )
+            {
+                locked = new WriteLockedOnMaster();
+                writeLockedOnMaster.put( tx, locked );
+            }
+            acquireWriteLocksOnMaster( LockGrabber.NODE_WRITE, nodes, locked.nodes );
+            acquireWriteLocksOnMaster( LockGrabber.RELATIONSHIP_WRITE, relationships, locked.relationships );
+        }
+        catch ( RuntimeException e )
+        {
+            databaseOperations.exceptionHappened( e );
+            throw e;
+        }
+    }
+
+    private void acquireWriteLocksOnMaster( LockGrabber grabber, List<Long> entities, Set<Long> locked )
+    {
+        long[] ids = new long[entities.size()];
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            ids[i] = entities.get( i );
+        }
+        // Always in the same order, to not deadlock with other batches
+        Arrays.sort( ids );
+        for ( int start = 0; start < ids.length; start += WRITE_LOCK_BATCH_SIZE )
+        {
+            long[] batch = Arrays.copyOfRange( ids, start, Math.min( ids.length, start+WRITE_LOCK_BATCH_SIZE ) );
+            LockResult result = null;
+            do
+            {
+                int eventIdentifier = getLocalTxId();
+                result = databaseOperations.receive( grabber.acquireLocks( broker.getMaster().first(),
+                        databaseOperations.getSlaveContext( eventIdentifier ), batch ) );
+                databaseOperations.txBegun( eventIdentifier );
+                switch ( result.getStatus() )
+                {
+                case OK_LOCKED:
+                    for ( long id : batch ) locked.add( id );
+                    break;
+                case DEAD_LOCKED:
+                    throw new DeadlockDetectedException( result.getDeadlockMessage() );
+                }
+            }
+            while ( result.getStatus() == LockStatus.NOT_LOCKED );
+        }
+    }
+
+    private boolean isWriteLockedOnMaster( Object resource )
+    {
+        if ( writeLockedOnMaster.isEmpty() ) return false;
+        WriteLockedOnMaster locked = writeLockedOnMaster.get( tm.getTransaction() );
+        if ( locked == null ) return false;
+        if ( resource instanceof Node ) return locked.nodes.contains( ((Node) resource).getId() );
+        if ( resource instanceof Relationship ) return locked.relationships.contains( ((Relationship) resource).getId() );
+        return false;
+    }
+
+    /**
+     * The entities a transaction has taken write locks for on the master with
+     * {@link SlaveLockManager#acquireWriteLocksOnMaster(PropertyContainer...)}.
+     */
+    private static class WriteLockedOnMaster
+    {
+        private final Set<Long> nodes = new HashSet<Long>();
+        private final Set<Long> relationships = new HashSet<Long>();
+    }
+
     // Release lock is as usual, since when the master committs it will release
     // the locks there and then when this slave committs it will release its
     // locks as usual here.
@@ -172,6 +311,12 @@ public class SlaveLockManager extends LockManager
             {
                 return master.acquireNodeWriteLock( context, ((Node)resource).getId() );
             }
+
+            @Override
+            Response<LockResult> acquireLocks( Master master, SlaveContext context, long[] ids )
+            {
+                return master.acquireNodeWriteLock( context, ids );
+            }
         },
         RELATIONSHIP_READ
         {
@@ -188,6 +333,12 @@ public class SlaveLockManager extends LockManager
             {
                 return master.acquireRelationshipWriteLock( context, ((Relationship)resource).getId() );
             }
+
+            @Override
+            Response<LockResult> acquireLocks( Master master, SlaveContext context, long[] ids )
+            {
+                return master.acquireRelationshipWriteLock( context, ids );
+            }
         },
         GRAPH_READ
         {
@@ -225,5 +376,10 @@ public class SlaveLockManager extends LockManager
         };
 
         abstract Response<LockResult> acquireLock( Master master, SlaveContext context, Object resource );
+
+        Response<LockResult> acquireLocks( Master master, SlaveContext context, long[] ids )
+        {
+            throw new UnsupportedOperationException( this + " can't be batched" );
+        }
     }
 }
@@ -19,6 +19,13 @@
  */
 package org.neo4j.kernel.ha;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.impl.transaction.TxHook;
@@ -28,30 +35,72 @@ public class SlaveTxHook implements TxHook
     private final Broker broker;
     private final SlaveDatabaseOperations databaseOperations;
     private GraphDatabaseAPI spi;
+    private final boolean localReadLocks;
+    private final Set<Transaction> transactionsOnMaster =
+            Collections.synchronizedSet( Collections.newSetFromMap( new WeakHashMap<Transaction, Boolean>() ) );
 
     public SlaveTxHook( Broker broker, SlaveDatabaseOperations databaseOperations, GraphDatabaseAPI spi )
+    {
+        this( broker, databaseOperations, spi, false );
+    }
+
+    /**
+     * @param localReadLocks whether or not read locks are taken on this slave
+     * only, see {@link SlaveLockManager}. Holding locks then doesn't mean the
+     * transaction has been initialized on the master, so that's kept track of
+     * here instead.
+     */
+    public SlaveTxHook( Broker broker, SlaveDatabaseOperations databaseOperations, GraphDatabaseAPI spi,
+            boolean localReadLocks )
     {
         this.broker = broker;
         this.databaseOperations = databaseOperations;
         this.spi = spi;
+        this.localReadLocks = localReadLocks;
     }
 
+    /**
+     * Doesn't ask the master to begin the transaction right away, but has the
+     * first request of it, typically for a lock or the commit, do so. Should
+     * that request fail the transaction may end without holding any locks, and
+     * so without being finished here, which is why it's forgotten when it
+     * completes too.
+     */
     @Override
-    public void initializeTransaction( int eventIdentifier )
+    public void initializeTransaction( final int eventIdentifier )
     {
+        databaseOperations.beginTxWithNextRequest( eventIdentifier );
         try
         {
-            databaseOperations.receive( broker.getMaster().first().initializeTx( databaseOperations.getSlaveContext( eventIdentifier ) ) );
+            Transaction tx = spi.getTxManager().getTransaction();
+            if ( tx == null ) return; // Not in a transaction, nothing will complete
+            if ( localReadLocks ) transactionsOnMaster.add( tx );
+            tx.registerSynchronization( new Synchronization()
+            {
+                @Override
+                public void beforeCompletion()
+                {
+                }
+
+                @Override
+                public void afterCompletion( int status )
+                {
+                    databaseOperations.txBegun( eventIdentifier );
+                }
+            } );
         }
-        catch ( RuntimeException e )
+        catch ( SystemException e )
         {
-            databaseOperations.exceptionHappened( e );
-            throw e;
+            throw new RuntimeException( e );
+        }
+        catch ( RollbackException e )
+        {   // Marked for rollback already, it will be finished if it gets any locks
         }
     }
 
     public boolean hasAnyLocks( Transaction tx )
     {
+        if ( localReadLocks ) return transactionsOnMaster.contains( tx );
         return spi.getLockReleaser().hasLocks( tx );
     }
 
@@ -59,6 +108,8 @@ public class SlaveTxHook implements TxHook
     {
         try
         {
+            // Already finished together with its commit, see SlaveTxIdGenerator
+            if ( databaseOperations.wasTxFinished( eventIdentifier ) ) return;
             databaseOperations.receive( broker.getMaster().first().finishTransaction(
                     databaseOperations.getSlaveContext( eventIdentifier ), success ) );
         }
@@ -67,6 +118,10 @@ public class SlaveTxHook implements TxHook
             databaseOperations.exceptionHappened( e );
             throw e;
         }
+        finally
+        {
+            databaseOperations.txBegun( eventIdentifier );
+        }
     }
 
     @Override
@@ -69,9 +69,14 @@ public class SlaveTxIdGenerator implements TxIdGenerator
         try
         {
             final int eventIdentifier = txManager.getEventIdentifier();
-            Response<Long> response = broker.getMaster().first().commitSingleResourceTransaction(
-                    onlyForThisDataSource( databaseOperations.getSlaveContext( eventIdentifier ), dataSource ),
-                    dataSource.getName(), new TxExtractor()
+            SlaveContext fullContext = databaseOperations.getSlaveContext( eventIdentifier );
+            // The slave context has the data sources registered here. With only this one
+            // a transaction has nothing left to do on the master after this commit, so it's
+            // finished there in the same request. Otherwise another data source may have
+            // a commit coming, which must go while the transaction still holds its locks.
+            boolean finish = fullContext.lastAppliedTransactions().length == 1;
+            SlaveContext context = onlyForThisDataSource( fullContext, dataSource );
+            TxExtractor txGetter = new TxExtractor()
                     {
                         @Override
                         public void extract( LogBuffer buffer )
@@ -98,8 +103,15 @@ public class SlaveTxIdGenerator implements TxIdGenerator
                                 throw new RuntimeException( e );
                             }
                         }
-                    });
-            return databaseOperations.receive( response );
+                    };
+            Master master = broker.getMaster().first();
+            Response<Long> response = finish ?
+                    master.commitAndFinishTransaction( context, dataSource.getName(), txGetter ) :
+                    master.commitSingleResourceTransaction( context, dataSource.getName(), txGetter );
+            long result = databaseOperations.receive( response );
+            databaseOperations.txBegun( eventIdentifier );
+            if ( finish ) databaseOperations.txFinished( eventIdentifier );
+            return result;
         }
         catch ( RuntimeException e )
         {
@@ -127,7 +139,7 @@ public class SlaveTxIdGenerator implements TxIdGenerator
         }
         return new SlaveContext( slaveContext.getSessionId(), slaveContext.machineId(),
                 slaveContext.getEventIdentifier(), new Tx[] {txForDs}, slaveContext.getMasterId(),
-                slaveContext.getChecksum() );
+                slaveContext.getChecksum(), slaveContext.beginsTx() );
     }
 
     public int getCurrentMasterId()
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+/**
+ * Remembers which master committed a transaction and the checksum of it, as
+ * looked up in the logical log by {@link XaDataSource#getMasterForCommittedTx(long)}.
+ * Those never change for a committed transaction, so the lookups every request
+ * makes, for the last committed transaction of a slave, hit the logical log
+ * once per transaction. Only the most recent transactions are kept and
+ * everything is forgotten when the data source changes, i.e. when the
+ * database is restarted or its store copied from the master.
+ */
+public class TxChecksumCache
+{
+    public static final int DEFAULT_SIZE = 1000;
+
+    private final int size;
+    private volatile Checksums checksums = new Checksums( null );
+
+    public TxChecksumCache()
+    {
+        this( DEFAULT_SIZE );
+    }
+
+    public TxChecksumCache( int size )
+    {
+        this.size = size;
+    }
+
+    public Pair<Integer, Long> getMasterForCommittedTx( XaDataSource dataSource, long txId ) throws IOException
+    {
+        Checksums current = checksums;
+        if ( current.dataSource != dataSource )
+        {
+            current = new Checksums( dataSource );
+            checksums = current;
+        }
+        Pair<Integer, Long> result = current.get( txId );
+        if ( result == null )
+        {
+            result = dataSource.getMasterForCommittedTx( txId );
+            current.put( txId, result );
+        }
+        return result;
+    }
+
+    private class Checksums
+    {
+        private final XaDataSource dataSource;
+        private final Map<Long, Pair<Integer, Long>> byTxId = new LinkedHashMap<Long, Pair<Integer, Long>>()
+        {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Long, Pair<Integer, Long>> eldest )
+            {
+                return size() > TxChecksumCache.this.size;
+            }
+        };
+
+        Checksums( XaDataSource dataSource )
+        {
+            this.dataSource = dataSource;
+        }
+
+        synchronized Pair<Integer, Long> get( long txId )
+        {
+            return byTxId.get( txId );
+        }
+
+        synchronized void put( long txId, Pair<Integer, Long> checksum )
+        {
+            byTxId.put( txId, checksum );
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.Map;
 
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
+import org.neo4j.com.Client;
 import org.neo4j.com.Client.ConnectionLostHandler;
 import org.neo4j.com.ComException;
 import org.neo4j.com.Response;
@@ -59,6 +60,9 @@ public abstract class AbstractZooKeeperManager
 
     protected final StringLogger msgLog;
     protected final int maxConcurrentChannelsPerSlave;
+    protected final int multiplexedChannelsPerSlave;
+    protected final boolean requestStatistics;
+    protected final int prewarmedChannelsPerSlave;
     protected final int clientReadTimeout;
     protected final int clientLockReadTimeout;
     private final long sessionTimeout;
@@ -67,6 +71,31 @@ public abstract class AbstractZooKeeperManager
 
     public AbstractZooKeeperManager( String servers, StoreIdGetter storeIdGetter, StringLogger msgLog,
             int clientReadTimeout, int clientLockReadTimeout, int maxConcurrentChannelsPerSlave, int sessionTimeout )
+    {
+        this( servers, storeIdGetter, msgLog, clientReadTimeout, clientLockReadTimeout,
+                maxConcurrentChannelsPerSlave, 0, sessionTimeout );
+    }
+
+    public AbstractZooKeeperManager( String servers, StoreIdGetter storeIdGetter, StringLogger msgLog,
+            int clientReadTimeout, int clientLockReadTimeout, int maxConcurrentChannelsPerSlave,
+            int multiplexedChannelsPerSlave, int sessionTimeout )
+    {
+        this( servers, storeIdGetter, msgLog, clientReadTimeout, clientLockReadTimeout,
+                maxConcurrentChannelsPerSlave, multiplexedChannelsPerSlave, true, sessionTimeout );
+    }
+
+    public AbstractZooKeeperManager( String servers, StoreIdGetter storeIdGetter, StringLogger msgLog,
+            int clientReadTimeout, int clientLockReadTimeout, int maxConcurrentChannelsPerSlave,
+            int multiplexedChannelsPerSlave, boolean requestStatistics, int sessionTimeout )
+    {
+        this( servers, storeIdGetter, msgLog, clientReadTimeout, clientLockReadTimeout, maxConcurrentChannelsPerSlave,
+                multiplexedChannelsPerSlave, requestStatistics, Client.DEFAULT_PREWARMED_CHANNELS, sessionTimeout );
+    }
+
+    public AbstractZooKeeperManager( String servers, StoreIdGetter storeIdGetter, StringLogger msgLog,
+            int clientReadTimeout, int clientLockReadTimeout, int maxConcurrentChannelsPerSlave,
+            int multiplexedChannelsPerSlave, boolean requestStatistics, int prewarmedChannelsPerSlave,
+            int sessionTimeout )
     {
         assert msgLog != null;
 
@@ -75,6 +104,9 @@ public abstract class AbstractZooKeeperManager
         this.msgLog = msgLog;
         this.clientLockReadTimeout = clientLockReadTimeout;
         this.maxConcurrentChannelsPerSlave = maxConcurrentChannelsPerSlave;
+        this.multiplexedChannelsPerSlave = multiplexedChannelsPerSlave;
+        this.requestStatistics = requestStatistics;
+        this.prewarmedChannelsPerSlave = prewarmedChannelsPerSlave;
         this.clientReadTimeout = clientReadTimeout;
         this.sessionTimeout = sessionTimeout;
     }
@@ -196,7 +228,8 @@ public abstract class AbstractZooKeeperManager
         return new MasterClient( master.getServer().first(),
                 master.getServer().other(), this.msgLog, storeIdGetter,
                 ConnectionLostHandler.NO_ACTION, clientReadTimeout,
-                clientLockReadTimeout, maxConcurrentChannelsPerSlave );
+                clientLockReadTimeout, maxConcurrentChannelsPerSlave, multiplexedChannelsPerSlave,
+                requestStatistics, prewarmedChannelsPerSlave );
     }
 
     protected abstract int getMyMachineId();
@@ -492,6 +525,13 @@ public abstract class AbstractZooKeeperManager
             throw noMasterException();
         }
 
+        @Override
+        public Response<Long> commitAndFinishTransaction( SlaveContext context, String resource,
+                TxExtractor txGetter )
+        {
+            throw noMasterException();
+        }
+
         @Override
         public Response<Integer> createRelationshipType( SlaveContext context, String name )
         {
@@ -24,10 +24,14 @@ import static org.neo4j.kernel.ha.HaSettings.allow_init_cluster;
 import static org.neo4j.kernel.ha.HaSettings.cluster_name;
 import static org.neo4j.kernel.ha.HaSettings.lock_read_timeout;
 import static org.neo4j.kernel.ha.HaSettings.max_concurrent_channels_per_slave;
+import static org.neo4j.kernel.ha.HaSettings.multiplexed_channels_per_slave;
+import static org.neo4j.kernel.ha.HaSettings.prewarmed_channels_per_slave;
 import static org.neo4j.kernel.ha.HaSettings.read_timeout;
+import static org.neo4j.kernel.ha.HaSettings.request_statistics;
 import static org.neo4j.kernel.ha.HaSettings.server;
 import static org.neo4j.kernel.ha.HaSettings.server_id;
 import static org.neo4j.kernel.ha.HaSettings.slave_coordinator_update_mode;
+import static org.neo4j.kernel.ha.HaSettings.transaction_cache_size;
 import static org.neo4j.kernel.ha.HaSettings.zk_session_timeout;
 
 import java.io.IOException;
@@ -51,6 +55,7 @@ import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.neo4j.backup.OnlineBackupSettings;
 import org.neo4j.com.StoreIdGetter;
+import org.neo4j.com.TransactionCache;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.GraphDatabaseAPI;
@@ -110,6 +115,9 @@ public class ZooClient extends AbstractZooKeeperManager
             conf.getInteger( read_timeout ),
             conf.isSet( lock_read_timeout ) ? conf.getInteger( lock_read_timeout) : conf.getInteger( read_timeout ),
             conf.getInteger( max_concurrent_channels_per_slave ),
+            conf.getInteger( multiplexed_channels_per_slave ),
+            conf.getBoolean( request_statistics ),
+            conf.getInteger( prewarmed_channels_per_slave ),
             conf.getInteger( zk_session_timeout ));
         this.storeDir = storeDir;
         this.conf = conf;
@@ -165,10 +173,10 @@ public class ZooClient extends AbstractZooKeeperManager
     public Object instantiateMasterServer( GraphDatabaseAPI graphDb )
     {
         int timeOut = conf.isSet( lock_read_timeout ) ? conf.getInteger( lock_read_timeout ) : conf.getInteger( read_timeout );
-        return new MasterServer( new MasterImpl( graphDb, timeOut ),
+        return new MasterServer( new MasterImpl( graphDb, timeOut,
+                new TransactionCache( conf.getInteger( transaction_cache_size ) * 1024 * 1024 ) ),
                 Machine.splitIpAndPort( haServer ).other(), graphDb.getMessageLog(),
-                conf.getInteger( max_concurrent_channels_per_slave ),
-                clientLockReadTimeout, new BranchDetectingTxVerifier( graphDb ) );
+                clientLockReadTimeout, new BranchDetectingTxVerifier( graphDb ), conf );
     }
 
     @Override
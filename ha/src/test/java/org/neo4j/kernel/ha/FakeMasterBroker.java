@@ -61,7 +61,6 @@ public class FakeMasterBroker extends AbstractBroker
         int timeOut = config.isSet( HaSettings.lock_read_timeout ) ? config.getInteger( HaSettings.lock_read_timeout ) : config
             .getInteger( HaSettings.read_timeout );
         return new MasterServer( new MasterImpl( graphDb, timeOut ),
-                Protocol.PORT, graphDb.getMessageLog(), config.getInteger( HaSettings.max_concurrent_channels_per_slave ),
-                timeOut, TxChecksumVerifier.ALWAYS_MATCH );
+                Protocol.PORT, graphDb.getMessageLog(), timeOut, TxChecksumVerifier.ALWAYS_MATCH, config );
     }
 }
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.neo4j.com.ResourceReleaser;
+import org.neo4j.com.Response;
+import org.neo4j.com.SlaveContext;
+import org.neo4j.com.SlaveContext.Tx;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.ha.zookeeper.Machine;
+import org.neo4j.kernel.impl.transaction.TxManager;
+import org.neo4j.kernel.impl.transaction.xaframework.XaConnection;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestSlaveTxIdGenerator
+{
+    private final List<String> masterCalls = new ArrayList<String>();
+    private final Set<Integer> finished = new HashSet<Integer>();
+
+    @Test
+    public void transactionsAreCommittedAndFinishedInOneRequestWithASingleDataSource() throws Exception
+    {
+        SlaveTxIdGenerator generator = generator( "nioneodb" );
+
+        assertEquals( 10L, generator.generate( new NamedDataSource( "nioneodb" ), 1 ) );
+        assertEquals( asList( "commitAndFinishTransaction" ), masterCalls );
+        assertEquals( 1, finished.size() );
+    }
+
+    @Test
+    public void transactionsAreOnlyCommittedWhenAnotherDataSourceMayHaveACommitComing() throws Exception
+    {
+        SlaveTxIdGenerator generator = generator( "nioneodb", "lucene-index" );
+
+        assertEquals( 10L, generator.generate( new NamedDataSource( "nioneodb" ), 1 ) );
+        assertEquals( asList( "commitSingleResourceTransaction" ), masterCalls );
+        assertEquals( 0, finished.size() );
+    }
+
+    private SlaveTxIdGenerator generator( final String... dataSources )
+    {
+        final Master master = (Master) Proxy.newProxyInstance( Master.class.getClassLoader(),
+                new Class<?>[] { Master.class }, new InvocationHandler()
+                {
+                    public Object invoke( Object proxy, Method method, Object[] args )
+                    {
+                        masterCalls.add( method.getName() );
+                        return new Response<Long>( 10L, null, TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+                    }
+                } );
+        Broker broker = (Broker) Proxy.newProxyInstance( Broker.class.getClassLoader(),
+                new Class<?>[] { Broker.class }, new InvocationHandler()
+                {
+                    public Object invoke( Object proxy, Method method, Object[] args )
+                    {
+                        if ( method.getName().equals( "getMaster" ) ) return Pair.<Master, Machine>of( master, null );
+                        throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+        SlaveDatabaseOperations databaseOperations = new SlaveDatabaseOperations()
+        {
+            public SlaveContext getSlaveContext( int eventIdentifier )
+            {
+                Tx[] txs = new Tx[dataSources.length];
+                for ( int i = 0; i < txs.length; i++ )
+                {
+                    txs[i] = SlaveContext.lastAppliedTx( dataSources[i], 1 );
+                }
+                return new SlaveContext( 0, 1, eventIdentifier, txs, 0, 0 );
+            }
+
+            public void beginTxWithNextRequest( int eventIdentifier )
+            {
+            }
+
+            public void txBegun( int eventIdentifier )
+            {
+            }
+
+            public void txFinished( int eventIdentifier )
+            {
+                finished.add( eventIdentifier );
+            }
+
+            public boolean wasTxFinished( int eventIdentifier )
+            {
+                return finished.remove( eventIdentifier );
+            }
+
+            public <T> T receive( Response<T> response )
+            {
+                return response.response();
+            }
+
+            public void exceptionHappened( RuntimeException e )
+            {
+            }
+
+            public int getMasterForTx( long tx )
+            {
+                return 0;
+            }
+
+            public void handle( Exception e )
+            {
+            }
+        };
+        return new SlaveTxIdGenerator( broker, databaseOperations,
+                new TxManager( null, null, null, null, StringLogger.DEV_NULL, null ) );
+    }
+
+    private static class NamedDataSource extends XaDataSource
+    {
+        NamedDataSource( String name )
+        {
+            super( name.getBytes(), name );
+        }
+
+        @Override
+        public XaConnection getXaConnection()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.impl.transaction.xaframework.XaConnection;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+public class TestTxChecksumCache
+{
+    @Test
+    public void checksumsAreLookedUpOncePerTransaction() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache( 10 );
+        CountingDataSource dataSource = new CountingDataSource( 1 );
+
+        assertEquals( Pair.of( 1, 5L ), cache.getMasterForCommittedTx( dataSource, 5 ) );
+        assertEquals( Pair.of( 1, 5L ), cache.getMasterForCommittedTx( dataSource, 5 ) );
+        assertEquals( Pair.of( 1, 6L ), cache.getMasterForCommittedTx( dataSource, 6 ) );
+        assertEquals( 2, dataSource.lookups );
+    }
+
+    @Test
+    public void onlyTheMostRecentTransactionsAreKept() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache( 10 );
+        CountingDataSource dataSource = new CountingDataSource( 1 );
+        for ( long txId = 1; txId <= 20; txId++ )
+        {
+            cache.getMasterForCommittedTx( dataSource, txId );
+        }
+
+        cache.getMasterForCommittedTx( dataSource, 20 );
+        cache.getMasterForCommittedTx( dataSource, 11 );
+        assertEquals( 20, dataSource.lookups );
+        cache.getMasterForCommittedTx( dataSource, 5 );
+        assertEquals( 21, dataSource.lookups );
+    }
+
+    @Test
+    public void everythingIsForgottenWhenTheDataSourceChanges() throws Exception
+    {
+        TxChecksumCache cache = new TxChecksumCache( 10 );
+        cache.getMasterForCommittedTx( new CountingDataSource( 1 ), 5 );
+
+        CountingDataSource copiedDataSource = new CountingDataSource( 2 );
+        assertEquals( Pair.of( 2, 5L ), cache.getMasterForCommittedTx( copiedDataSource, 5 ) );
+        assertEquals( 1, copiedDataSource.lookups );
+    }
+
+    private static class CountingDataSource extends XaDataSource
+    {
+        private final int masterId;
+        private int lookups;
+
+        CountingDataSource( int masterId )
+        {
+            super( new byte[] { 1 }, "nioneo" );
+            this.masterId = masterId;
+        }
+
+        @Override
+        public Pair<Integer, Long> getMasterForCommittedTx( long txId ) throws IOException
+        {
+            lookups++;
+            return Pair.of( masterId, txId );
+        }
+
+        @Override
+        public XaConnection getXaConnection()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
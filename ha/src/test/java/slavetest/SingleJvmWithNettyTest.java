@@ -33,6 +33,11 @@ import static org.neo4j.helpers.collection.MapUtil.stringMap;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -51,7 +56,12 @@ import org.junit.Test;
 import org.neo4j.com.Client;
 import org.neo4j.com.Client.ConnectionLostHandler;
 import org.neo4j.com.ComException;
+import org.neo4j.com.FairRequestScheduler;
 import org.neo4j.com.Protocol;
+import org.neo4j.com.RequestStatistics;
+import org.neo4j.com.Response;
+import org.neo4j.com.ResponseFuture;
+import org.neo4j.com.SlaveContext;
 import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -71,15 +81,20 @@ import org.neo4j.kernel.configuration.ConfigurationDefaults;
 import org.neo4j.kernel.ha.AbstractBroker;
 import org.neo4j.kernel.ha.Broker;
 import org.neo4j.kernel.ha.HaSettings;
+import org.neo4j.kernel.ha.LockResult;
+import org.neo4j.kernel.ha.LockStatus;
 import org.neo4j.kernel.ha.Master;
 import org.neo4j.kernel.ha.MasterClient;
+import org.neo4j.kernel.ha.MasterClient.HaRequestType;
 import org.neo4j.kernel.ha.MasterImpl;
+import org.neo4j.kernel.ha.SlaveDatabaseOperations;
 import org.neo4j.kernel.ha.zookeeper.AbstractZooKeeperManager;
 import org.neo4j.kernel.ha.zookeeper.Machine;
 import org.neo4j.kernel.impl.core.RelationshipTypeHolder;
 import org.neo4j.kernel.impl.nioneo.store.NeoStore;
 import org.neo4j.kernel.impl.transaction.LockType;
 import org.neo4j.kernel.impl.transaction.TxManager;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
 import org.neo4j.kernel.impl.util.FileUtils;
 import org.neo4j.kernel.impl.util.StringLogger;
 
@@ -117,7 +132,8 @@ public class SingleJvmWithNettyTest extends SingleJvmTest
                 db.getStoreIdGetter(),
                 ConnectionLostHandler.NO_ACTION,
                 readTimeout, getConfigInt( config, HaSettings.lock_read_timeout.name(), readTimeout ),
-                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT);
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
+                getConfigInt( config, HaSettings.multiplexed_channels_per_slave.name(), 0 ) );
         return new AbstractBroker( new Config( new ConfigurationDefaults(GraphDatabaseSettings.class, HaSettings.class ).apply( config ) ))
         {
             public boolean iAmMaster()
@@ -710,6 +726,365 @@ public class SingleJvmWithNettyTest extends SingleJvmTest
         }
     }
     
+    @Test
+    public void writeLocksAcquiredUpFrontAreSentToTheMasterInBatches() throws Exception
+    {
+        initializeDbs( 1 );
+        GraphDatabaseAPI master = getMaster().getGraphDb();
+        int nodeCount = 500;
+        long[] ids = new long[nodeCount];
+        Transaction tx = master.beginTx();
+        for ( int i = 0; i < nodeCount; i++ )
+        {
+            ids[i] = master.createNode().getId();
+        }
+        tx.success();
+        tx.finish();
+        pullUpdates();
+
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        RequestStatistics statistics = ((MasterClient) slave.getBroker().getMaster().first()).getRequestStatistics();
+        tx = slave.beginTx();
+        Node[] nodes = new Node[nodeCount];
+        for ( int i = 0; i < nodeCount; i++ )
+        {
+            nodes[i] = slave.getNodeById( ids[i] );
+        }
+        slave.acquireWriteLocks( nodes );
+        for ( Node node : nodes )
+        {
+            node.setProperty( "name", "batched" );
+        }
+        tx.success();
+        tx.finish();
+
+        assertEquals( 1, requests( statistics, HaRequestType.ACQUIRE_NODE_WRITE_LOCK ) );
+        for ( long id : ids )
+        {
+            assertEquals( "batched", master.getNodeById( id ).getProperty( "name" ) );
+        }
+    }
+
+    @Test
+    public void lockRequestsOfTransactionsHoldingLocksDontQueueBehindThoseWaitingForThem() throws Exception
+    {
+        initializeDbs( 1, stringMap( HaSettings.lock_lane_threads.name(), "1",
+                HaSettings.lock_read_timeout.name(), "10" ) );
+        final long first = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        long second = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        pullUpdates();
+        final HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+
+        Transaction tx = slave.beginTx();
+        slave.getNodeById( first ).setProperty( "by", "holder" );
+
+        // Another transaction waits for the lock on the master, in the only thread of the lock lane
+        ExecutorService executor = newFixedThreadPool( 1 );
+        Future<Void> waiter = executor.submit( new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                Transaction tx = slave.beginTx();
+                try
+                {
+                    slave.getNodeById( first ).setProperty( "by", "waiter" );
+                    tx.success();
+                }
+                finally
+                {
+                    tx.finish();
+                }
+                return null;
+            }
+        } );
+        FairRequestScheduler.Lane locks = ((FairRequestScheduler<?>)
+                getMasterHaDb().getMasterServerIfMaster().getRequestScheduler()).getLanes()[0];
+        assertEquals( "locks", locks.getName() );
+        while ( locks.getActive() == 0 ) Thread.sleep( 10 );
+
+        long start = System.currentTimeMillis();
+        slave.getNodeById( second ).setProperty( "by", "holder" );
+        tx.success();
+        tx.finish();
+        assertTrue( "Took " + (System.currentTimeMillis()-start) + "ms",
+                System.currentTimeMillis()-start < 5000 );
+        waiter.get();
+        executor.shutdown();
+        assertEquals( "waiter", getMaster().getGraphDb().getNodeById( first ).getProperty( "by" ) );
+        assertEquals( "holder", getMaster().getGraphDb().getNodeById( second ).getProperty( "by" ) );
+    }
+
+    @Test
+    public void lockRequestsOfDifferentTransactionsCanBeGoingAtTheSameTime() throws Exception
+    {
+        initializeDbs( 1, stringMap( HaSettings.multiplexed_channels_per_slave.name(), "1" ) );
+        long first = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        long second = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        pullUpdates();
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        MasterClient master = (MasterClient) slave.getBroker().getMaster().first();
+        SlaveDatabaseOperations operations = slave.getSlaveDatabaseOperations();
+        operations.beginTxWithNextRequest( 1001 );
+        operations.beginTxWithNextRequest( 1002 );
+        SlaveContext holder = operations.getSlaveContext( 1001 );
+        SlaveContext waiter = operations.getSlaveContext( 1002 );
+
+        assertLocked( master.acquireNodeWriteLockAsync( holder, first ) );
+        // Waits on the master for the holder, while the holder goes on over the same channel
+        ResponseFuture<LockResult> waiting = master.acquireNodeWriteLockAsync( waiter, first, second );
+        assertLocked( master.acquireNodeWriteLockAsync( holder, second ) );
+        assertFalse( waiting.isDone() );
+        master.finishTransaction( holder, false ).close();
+        assertLocked( waiting );
+        master.finishTransaction( waiter, false ).close();
+    }
+
+    private static void assertLocked( ResponseFuture<LockResult> future )
+    {
+        Response<LockResult> response = future.get();
+        try
+        {
+            assertEquals( LockStatus.OK_LOCKED, response.response().getStatus() );
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    @Test
+    public void readLocksAreOnlyTakenOnTheSlaveWithLocalReadLocks() throws Exception
+    {
+        initializeDbs( 1, stringMap( HaSettings.local_read_locks.name(), "true" ) );
+        executeJobOnMaster( new CommonJobs.CreateSomeEntitiesJob() );
+        pullUpdates();
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        long nodeId = slave.getReferenceNode().getId();
+        RequestStatistics statistics = ((MasterClient) slave.getBroker().getMaster().first()).getRequestStatistics();
+
+        // Read only
+        Transaction tx = slave.beginTx();
+        Node node = slave.getNodeById( nodeId );
+        tx.acquireReadLock( node );
+        for ( Relationship relationship : node.getRelationships() ) tx.acquireReadLock( relationship );
+        tx.success();
+        tx.finish();
+        assertEquals( 0, readLockRequests( statistics ) );
+        assertEquals( 0, requests( statistics, HaRequestType.FINISH ) );
+
+        // Read, then write
+        tx = slave.beginTx();
+        node = slave.getNodeById( nodeId );
+        tx.acquireReadLock( node );
+        node.setProperty( "written", "after read" );
+        tx.success();
+        tx.finish();
+        assertEquals( 0, readLockRequests( statistics ) );
+        assertTrue( requests( statistics, HaRequestType.ACQUIRE_NODE_WRITE_LOCK ) > 0 );
+        assertEquals( "after read", getMaster().getGraphDb().getNodeById( nodeId ).getProperty( "written" ) );
+    }
+
+    @Test
+    public void slavesReadingAndThenWritingTheSameNodeWaitForEachOtherOnTheMasterOnly() throws Exception
+    {
+        initializeDbs( 2, stringMap( HaSettings.local_read_locks.name(), "true" ) );
+        final long nodeId = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        pullUpdates();
+        HighlyAvailableGraphDatabase first = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        final HighlyAvailableGraphDatabase second = (HighlyAvailableGraphDatabase) getSlave( 1 );
+
+        Transaction tx = first.beginTx();
+        tx.acquireReadLock( first.getNodeById( nodeId ) );
+
+        // The second slave reads the node too, the read lock of the first one isn't seen there
+        final CountDownLatch read = new CountDownLatch( 1 );
+        final CountDownLatch written = new CountDownLatch( 1 );
+        ExecutorService executor = newFixedThreadPool( 1 );
+        Future<Void> otherWriter = executor.submit( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                Transaction tx = second.beginTx();
+                try
+                {
+                    Node node = second.getNodeById( nodeId );
+                    tx.acquireReadLock( node );
+                    read.countDown();
+                    written.await();
+                    node.setProperty( "by", "second" );
+                    tx.success();
+                }
+                finally
+                {
+                    tx.finish();
+                }
+                return null;
+            }
+        } );
+        read.await();
+
+        // Both hold read locks, only the write locks meet on the master
+        first.getNodeById( nodeId ).setProperty( "by", "first" );
+        written.countDown();
+        Thread.sleep( 500 );
+        assertFalse( "Second slave got its write lock while the first one held it", otherWriter.isDone() );
+        tx.success();
+        tx.finish();
+        otherWriter.get();
+        executor.shutdown();
+        assertEquals( "second", getMaster().getGraphDb().getNodeById( nodeId ).getProperty( "by" ) );
+        pullUpdates();
+    }
+
+    private long readLockRequests( RequestStatistics statistics )
+    {
+        return requests( statistics, HaRequestType.ACQUIRE_NODE_READ_LOCK ) +
+                requests( statistics, HaRequestType.ACQUIRE_RELATIONSHIP_READ_LOCK ) +
+                requests( statistics, HaRequestType.ACQUIRE_GRAPH_READ_LOCK ) +
+                requests( statistics, HaRequestType.ACQUIRE_INDEX_READ_LOCK );
+    }
+
+    @Test
+    public void transactionsAreBegunOnTheMasterByTheirFirstRequest() throws Exception
+    {
+        initializeDbs( 1 );
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        Transaction tx = slave.beginTx();
+        long id = slave.createNode().getId();
+        tx.success();
+        tx.finish();
+
+        RequestStatistics statistics = ((MasterClient) slave.getBroker().getMaster().first()).getRequestStatistics();
+        assertEquals( 0, requests( statistics, HaRequestType.INITIALIZE_TX ) );
+        assertEquals( 1, requests( statistics, HaRequestType.COMMIT ) );
+        assertNotNull( getMaster().getGraphDb().getNodeById( id ) );
+    }
+
+    @Test
+    public void slaveContextsFollowCommittedAndAppliedTransactions() throws Exception
+    {
+        initializeDbs( 1 );
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        SlaveDatabaseOperations operations = slave.getSlaveDatabaseOperations();
+        XaDataSource slaveDataSource = slave.getXaDataSourceManager().getNeoStoreDataSource();
+        SlaveContext before = operations.getSlaveContext( -1 );
+
+        // Each context has its own transactions
+        operations.getSlaveContext( -1 ).lastAppliedTransactions()[0] = null;
+        for ( SlaveContext.Tx tx : operations.getSlaveContext( -1 ).lastAppliedTransactions() ) assertNotNull( tx );
+
+        // Committed on the slave
+        executeJob( new CommonJobs.CreateNodeJob( true ), 0 );
+        assertSlaveContextIsCurrent( operations.getSlaveContext( -1 ), slaveDataSource,
+                neoStoreTxId( before ) );
+
+        // Committed on the master and then applied to the slave
+        SlaveContext afterSlaveCommit = operations.getSlaveContext( -1 );
+        executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        pullUpdates();
+        assertSlaveContextIsCurrent( operations.getSlaveContext( -1 ), slaveDataSource,
+                neoStoreTxId( afterSlaveCommit ) );
+        assertEquals( getMaster().getGraphDb().getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId(),
+                neoStoreTxId( operations.getSlaveContext( -1 ) ) );
+    }
+
+    private void assertSlaveContextIsCurrent( SlaveContext context, XaDataSource dataSource, long previousTxId )
+            throws IOException
+    {
+        long txId = dataSource.getLastCommittedTxId();
+        assertTrue( txId > previousTxId );
+        assertEquals( txId, neoStoreTxId( context ) );
+        Pair<Integer, Long> master = dataSource.getMasterForCommittedTx( txId );
+        assertEquals( master, Pair.of( context.getMasterId(), context.getChecksum() ) );
+    }
+
+    private long neoStoreTxId( SlaveContext context )
+    {
+        for ( SlaveContext.Tx tx : context.lastAppliedTransactions() )
+        {
+            if ( tx.getDataSourceName().equals( Config.DEFAULT_DATA_SOURCE_NAME ) ) return tx.getTxId();
+        }
+        throw new IllegalStateException( "No " + Config.DEFAULT_DATA_SOURCE_NAME + " in " + context );
+    }
+
+    @Test
+    public void transactionsWhoseFirstRequestFailsAreForgottenWhenTheyComplete() throws Exception
+    {
+        initializeDbs( 1 );
+        long nodeId = executeJobOnMaster( new CommonJobs.CreateNodeJob( true ) );
+        pullUpdates();
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        final Master master = slave.getBroker().getMaster().first();
+        Master failingLocks = (Master) Proxy.newProxyInstance( Master.class.getClassLoader(),
+                new Class<?>[] { Master.class }, new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+                    {
+                        if ( method.getName().startsWith( "acquire" ) )
+                        {
+                            throw new IllegalStateException( "Failing the first request" );
+                        }
+                        try
+                        {
+                            return method.invoke( master, args );
+                        }
+                        catch ( InvocationTargetException e )
+                        {
+                            throw e.getCause();
+                        }
+                    }
+                } );
+        cachedMasterOverride = Pair.of( failingLocks, slave.getBroker().getMaster().other() );
+
+        Transaction tx = slave.beginTx();
+        int eventIdentifier = ((TxManager) slave.getTxManager()).getEventIdentifier();
+        try
+        {
+            slave.getNodeById( nodeId ).setProperty( "key", "value" );
+            fail( "Should have failed to get the lock" );
+        }
+        catch ( RuntimeException e )
+        {   // Good
+        }
+        // Still to be begun by the next request, should the transaction try again
+        assertTrue( slave.getSlaveDatabaseOperations().getSlaveContext( eventIdentifier ).beginsTx() );
+        tx.finish();
+        cachedMasterOverride = null;
+        assertFalse( slave.getSlaveDatabaseOperations().getSlaveContext( eventIdentifier ).beginsTx() );
+    }
+
+    @Test
+    public void transactionsAreFinishedSeparatelyWhenAnotherDataSourceMayHaveACommitComing() throws Exception
+    {
+        initializeDbs( 1 );
+        HighlyAvailableGraphDatabase slave = (HighlyAvailableGraphDatabase) getSlave( 0 );
+        // The index data source is registered here, whether or not a transaction uses it
+        for ( int i = 0; i < 3; i++ )
+        {
+            Transaction tx = slave.beginTx();
+            slave.createNode().setProperty( "name", "two round trips " + i );
+            tx.success();
+            tx.finish();
+        }
+
+        RequestStatistics statistics = ((MasterClient) slave.getBroker().getMaster().first()).getRequestStatistics();
+        assertEquals( 0, requests( statistics, HaRequestType.COMMIT_AND_FINISH ) );
+        assertEquals( 3, requests( statistics, HaRequestType.COMMIT ) );
+        assertEquals( 3, requests( statistics, HaRequestType.FINISH ) );
+    }
+
+    private long requests( RequestStatistics statistics, HaRequestType type )
+    {
+        for ( RequestStatistics.Entry entry : statistics.getEntries() )
+        {
+            if ( entry.getName().equals( type.name() ) ) return entry.getRequests();
+        }
+        return 0;
+    }
+
     @Test
     public void bruteForceCreateSameRelationshipTypeOnDifferentSlaveAtTheSameTimeShouldYieldSameId() throws Exception
     {
@@ -120,6 +120,12 @@ class TestMaster implements Master
         return actual.finishTransaction( context, success );
     }
 
+    public Response<Long> commitAndFinishTransaction( SlaveContext context, String resource,
+            TxExtractor txGetter )
+    {
+        return actual.commitAndFinishTransaction( context, resource, txGetter );
+    }
+
     public Response<Void> pullUpdates( SlaveContext context )
     {
         return actual.pullUpdates( context );